@@ -0,0 +1,241 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.pubnative.AdvertisingIdClient;
+import net.pubnative.mediation.config.PubnativeConfigManager;
+import net.pubnative.mediation.config.PubnativeDeliveryManager;
+import net.pubnative.mediation.config.model.PubnativeConfigModel;
+import net.pubnative.mediation.insights.PubnativeInsightsManager;
+import net.pubnative.mediation.insights.model.PubnativeInsightDataModel;
+import net.pubnative.mediation.network.PubnativeNetworkExecutor;
+import net.pubnative.mediation.utils.PubnativeDeviceUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Entry point to warm up the SDK before the first ad request. Stored data, the config, the
+ * network adapters, the advertising id and the device info are loaded in parallel in background
+ * so the first request doesn't pay for them in series.
+ */
+public class PubnativeMediation {
+
+    private static final   String            TAG                  = PubnativeMediation.class.getSimpleName();
+    public static final    String            PHASE_PREFERENCES    = "preferences";
+    public static final    String            PHASE_CONFIG         = "config";
+    public static final    String            PHASE_ADVERTISING_ID = "advertising_id";
+    public static final    String            PHASE_DEVICE_INFO    = "device_info";
+    protected static final String[]          PHASES               = {PHASE_PREFERENCES, PHASE_CONFIG, PHASE_ADVERTISING_ID, PHASE_DEVICE_INFO};
+    protected static       Map<String, Long> sPhaseTimings        = new LinkedHashMap<String, Long>();
+    protected static       List<Listener>    sListeners           = new ArrayList<Listener>();
+    protected static       int               sPendingPhases       = 0;
+    protected static       boolean           sReady               = false;
+    protected static       Handler           sHandler             = null;
+
+    /**
+     * Interface for initialize callbacks
+     */
+    public interface Listener {
+
+        /**
+         * Called in the main thread when all the warm up phases finished
+         */
+        void onPubnativeMediationReady();
+    }
+
+    //==============================================================================================
+    // PubnativeMediation
+    //==============================================================================================
+
+    private PubnativeMediation() {
+        // Static access only
+    }
+
+    /**
+     * Starts warming up the SDK in background. It can be called several times, the warm up only
+     * runs once and every listener gets called when it finishes
+     *
+     * @param context  valid context object
+     * @param appToken app token the first requests will be done with
+     * @param listener listener to be notified when the SDK is ready, can be null
+     */
+    public synchronized static void initialize(Context context, String appToken, Listener listener) {
+
+        Log.v(TAG, "initialize: " + appToken);
+        if (context == null || TextUtils.isEmpty(appToken)) {
+            Log.e(TAG, "initialize - Error: invalid context or app token, dropping this call");
+        } else {
+            if (sHandler == null) {
+                sHandler = new Handler(Looper.getMainLooper());
+            }
+            if (listener != null) {
+                sListeners.add(listener);
+            }
+            if (sReady) {
+                invokeReady();
+            } else if (sPendingPhases == 0) {
+                startWarmUp(context.getApplicationContext(), appToken);
+            }
+        }
+    }
+
+    /**
+     * Tells if the warm up finished
+     *
+     * @return true if all the phases finished
+     */
+    public synchronized static boolean isReady() {
+
+        Log.v(TAG, "isReady");
+        return sReady;
+    }
+
+    /**
+     * Gets how long each warm up phase took, phases that didn't finish yet are not included
+     *
+     * @return map of phase name to duration in milliseconds
+     */
+    public synchronized static Map<String, Long> getPhaseTimings() {
+
+        Log.v(TAG, "getPhaseTimings");
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(sPhaseTimings));
+    }
+
+    //==============================================================================================
+    // Private methods
+    //==============================================================================================
+
+    protected static void startWarmUp(final Context context, final String appToken) {
+
+        Log.v(TAG, "startWarmUp");
+        sPendingPhases = PHASES.length;
+        final long startTimestamp = System.currentTimeMillis();
+        startPhase(PHASE_PREFERENCES, startTimestamp, new Runnable() {
+
+            @Override
+            public void run() {
+
+                PubnativeConfigManager.preload(context);
+                PubnativeDeliveryManager.preload(context);
+                PubnativeInsightsManager.preload(context);
+                finishPhase(PHASE_PREFERENCES, startTimestamp);
+            }
+        });
+        startPhase(PHASE_CONFIG, startTimestamp, new Runnable() {
+
+            @Override
+            public void run() {
+
+                // Loading the config also compiles the placement plans, which resolve the adapters
+                PubnativeConfigManager.getConfig(context, appToken, null, new PubnativeConfigManager.Listener() {
+
+                    @Override
+                    public void onConfigLoaded(PubnativeConfigModel configModel) {
+
+                        finishPhase(PHASE_CONFIG, startTimestamp);
+                    }
+                });
+            }
+        });
+        startPhase(PHASE_DEVICE_INFO, startTimestamp, new Runnable() {
+
+            @Override
+            public void run() {
+
+                new PubnativeInsightDataModel().fillDefaults(context);
+                finishPhase(PHASE_DEVICE_INFO, startTimestamp);
+            }
+        });
+        PubnativeDeviceUtils.getAdvertisingId(context, new AdvertisingIdClient.Listener() {
+
+            @Override
+            public void onAdvertisingIdClientFinish(AdvertisingIdClient.AdInfo adInfo) {
+
+                finishPhase(PHASE_ADVERTISING_ID, startTimestamp);
+            }
+
+            @Override
+            public void onAdvertisingIdClientFail(Exception exception) {
+
+                Log.w(TAG, "startWarmUp - Warning: unable to get advertising id: " + exception);
+                finishPhase(PHASE_ADVERTISING_ID, startTimestamp);
+            }
+        });
+    }
+
+    protected static void startPhase(String phase, long startTimestamp, Runnable runnable) {
+
+        // Shared background pool, queued behind the critical network work. Not the analytics
+        // class, which can be deferred and dropped, so every phase is sure to finish
+        if (!PubnativeNetworkExecutor.execute(PubnativeNetworkExecutor.Priority.ASSET, runnable)) {
+            Log.w(TAG, "startPhase - Warning: network queue is full, skipping phase " + phase);
+            finishPhase(phase, startTimestamp);
+        }
+    }
+
+    protected synchronized static void finishPhase(String phase, long startTimestamp) {
+
+        long duration = System.currentTimeMillis() - startTimestamp;
+        Log.v(TAG, "finishPhase: " + phase + " - " + duration + "ms");
+        if (!sPhaseTimings.containsKey(phase)) {
+            sPhaseTimings.put(phase, duration);
+            sPendingPhases--;
+            if (sPendingPhases == 0) {
+                sReady = true;
+                invokeReady();
+            }
+        }
+    }
+
+    //==============================================================================================
+    // Callback helpers
+    //==============================================================================================
+
+    protected synchronized static void invokeReady() {
+
+        Log.v(TAG, "invokeReady");
+        final List<Listener> listeners = new ArrayList<Listener>(sListeners);
+        sListeners.clear();
+        sHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+
+                for (Listener listener : listeners) {
+                    listener.onPubnativeMediationReady();
+                }
+            }
+        });
+    }
+}
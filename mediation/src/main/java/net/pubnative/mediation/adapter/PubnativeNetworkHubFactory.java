@@ -43,18 +43,55 @@ public class PubnativeNetworkHubFactory {
      */
     public static PubnativeNetworkHub createHub(PubnativeNetworkModel model) {
 
+        Log.v(TAG, "createHub");
+        return createHub(getHubConstructor(model), model);
+    }
+
+    /**
+     * Creates a new hub instance from an already resolved constructor, so no class lookup is done
+     *
+     * @param hubConstructor constructor resolved with getHubConstructor()
+     * @param model          network model that contains the values needed for creating the hub
+     *
+     * @return instance of PubnativeNetworkHub if created, else null
+     */
+    public static PubnativeNetworkHub createHub(Constructor<? extends PubnativeNetworkHub> hubConstructor, PubnativeNetworkModel model) {
+
         Log.v(TAG, "createHub");
         PubnativeNetworkHub result = null;
-        try {
-            Class<?> hubClass = Class.forName(getPackageName(model.adapter));
-            Constructor<?> hubConstructor = hubClass.getConstructor();
-            result = (PubnativeNetworkHub) hubConstructor.newInstance();
-            if (result != null) {
-                result.setNetworkData(model.params);
+        if (hubConstructor != null && model != null) {
+            try {
+                result = hubConstructor.newInstance();
+                if (result != null) {
+                    result.setNetworkData(model.params);
+                }
+            } catch (Exception e) {
+                // Don't crash, just return null, log error and return null
+                Log.e(TAG, "Error creating adapter: " + e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resolves the hub constructor for the adapter specified in the model
+     *
+     * @param model network model that contains the adapter name
+     *
+     * @return hub constructor if the adapter exists, else null
+     */
+    public static Constructor<? extends PubnativeNetworkHub> getHubConstructor(PubnativeNetworkModel model) {
+
+        Log.v(TAG, "getHubConstructor");
+        Constructor<? extends PubnativeNetworkHub> result = null;
+        if (model != null && model.adapter != null) {
+            try {
+                Class<? extends PubnativeNetworkHub> hubClass = Class.forName(getPackageName(model.adapter)).asSubclass(PubnativeNetworkHub.class);
+                result = hubClass.getConstructor();
+            } catch (Exception e) {
+                // Don't crash, just return null, log error and return null
+                Log.e(TAG, "Error resolving adapter: " + e);
             }
-        } catch (Exception e) {
-            // Don't crash, just return null, log error and return null
-            Log.e(TAG, "Error creating adapter: " + e);
         }
         return result;
     }
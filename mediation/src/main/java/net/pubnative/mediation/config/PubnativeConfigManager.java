@@ -30,15 +30,30 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
 
+import net.pubnative.mediation.config.PubnativeConfigStore.Metadata;
 import net.pubnative.mediation.config.model.PubnativeConfigAPIResponseModel;
 import net.pubnative.mediation.config.model.PubnativeConfigModel;
 import net.pubnative.mediation.config.model.PubnativeConfigRequestModel;
 import net.pubnative.mediation.config.model.PubnativePlacementModel;
-import net.pubnative.mediation.insights.model.PubnativeInsightsAPIResponseModel;
+import net.pubnative.mediation.insights.PubnativeInsightsManager;
 import net.pubnative.mediation.network.PubnativeHttpRequest;
-
+import net.pubnative.mediation.network.PubnativeHttpTransport;
+import net.pubnative.mediation.network.PubnativePreconnector;
+import net.pubnative.mediation.network.PubnativeRetryPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -46,16 +61,36 @@ import java.util.concurrent.TimeUnit;
 
 public class PubnativeConfigManager {
 
-    private static         String                            TAG                       = PubnativeConfigManager.class.getSimpleName();
-    protected static final String                            SHARED_PREFERENCES_CONFIG = "net.pubnative.mediation";
-    protected static final String                            CONFIG_STRING_KEY         = "config";
-    protected static final String                            APP_TOKEN_STRING_KEY      = "appToken";
-    protected static final String                            TIMESTAMP_LONG_KEY        = "config.timestamp";
-    protected static final String                            REFRESH_LONG_KEY          = "refresh";
-    protected static final String                            CONFIG_DOWNLOAD_BASE_URL  = "https://ml.pubnative.net/ml/v1/config";
-    protected static final String                            APP_TOKEN_KEY             = "app_token";
-    protected static       List<PubnativeConfigRequestModel> sQueue                    = null;
-    protected static       boolean                           sIdle                     = true;
+    private static            String                                         TAG                        = PubnativeConfigManager.class.getSimpleName();
+    protected static final    String                                         SHARED_PREFERENCES_CONFIG  = "net.pubnative.mediation";
+    protected static final    String                                         CONFIG_STRING_KEY          = "config";
+    protected static final    String                                         CONFIG_FILE_PREFIX         = "net.pubnative.mediation.config.";
+    protected static final    String                                         CONFIG_FILE_EXTENSION      = ".bin";
+    protected static final    String                                         LEGACY_CONFIG_FILE_NAME    = "net.pubnative.mediation.config.json";
+    protected static final    String                                         CONFIG_INDEX_FILE_NAME     = "net.pubnative.mediation.config.index.bin";
+    protected static final    String                                         CONFIG_DOWNLOAD_PREFIX     = "net.pubnative.mediation.config.download";
+    protected static final    String                                         APP_TOKEN_STRING_KEY       = "appToken";
+    protected static final    String                                         TIMESTAMP_LONG_KEY         = "config.timestamp";
+    protected static final    String                                         REFRESH_LONG_KEY           = "refresh";
+    protected static final    String                                         HEADER_ETAG                = "ETag";
+    protected static final    String                                         HEADER_LAST_MODIFIED       = "Last-Modified";
+    protected static final    String                                         HEADER_IF_NONE_MATCH       = "If-None-Match";
+    protected static final    String                                         HEADER_IF_MODIFIED_SINCE   = "If-Modified-Since";
+    protected static final    String                                         CONFIG_DOWNLOAD_BASE_URL   = "https://ml.pubnative.net/ml/v1/config";
+    protected static final    String                                         APP_TOKEN_KEY              = "app_token";
+    protected static final    long                                           DEFAULT_MAX_STALENESS      = TimeUnit.DAYS.toMinutes(1);
+    protected static final    int                                            DEFAULT_MAX_STORED_CONFIGS = 4;
+    protected static          Map<String, List<PubnativeConfigRequestModel>> sFlights                   = null;
+    protected static          Set<String>                                    sRevalidating              = new HashSet<String>();
+    protected static          Set<String>                                    sRevalidationFlights       = new HashSet<String>();
+    protected static          boolean                                        sStaleWhileRevalidate      = false;
+    protected static          long                                           sMaxStaleness              = DEFAULT_MAX_STALENESS;
+    protected static          int                                            sMaxStoredConfigs          = DEFAULT_MAX_STORED_CONFIGS;
+    protected static          LinkedHashMap<String, Metadata>                sIndex                     = null;
+    protected static volatile Map<String, PubnativeConfigSnapshot>           sSnapshots                 = Collections.emptyMap();
+    protected static          long                                           sSnapshotVersion           = 0;
+    protected static          PubnativeHttpTransport                         sTransport                 = null;
+    protected static          PubnativeRetryPolicy                           sRetryPolicy               = PubnativeRetryPolicy.DEFAULT;
     //==============================================================================================
     // Listener
     //==============================================================================================
@@ -95,7 +130,7 @@ public class PubnativeConfigManager {
      * @param extras   valid extras map with parameters for the request
      * @param listener listener to be used for tracking the config loaded callback
      */
-    public synchronized static void getConfig(Context context, String appToken, Map extras, PubnativeConfigManager.Listener listener) {
+    public static void getConfig(Context context, String appToken, Map extras, PubnativeConfigManager.Listener listener) {
 
         Log.v(TAG, "getConfig: " + appToken);
         if (listener == null) {
@@ -113,98 +148,485 @@ public class PubnativeConfigManager {
             item.appToken = appToken;
             item.extras = extras;
             item.listener = listener;
-            enqueueRequest(item);
-            doNextConfigRequest();
+            if (joinFlight(item)) {
+                getNextConfig(item);
+            }
+        }
+    }
+
+    /**
+     * Downloads the config even if the stored one didn't expire yet, joining any download
+     * already running for the same app token
+     *
+     * @param context  valid context object
+     * @param appToken unique identification key provided by Pubnative for mediation sdk
+     * @param extras   valid extras map with parameters for the request
+     * @param listener listener to be used for tracking the config loaded callback
+     */
+    public static void refreshConfig(Context context, String appToken, Map extras, PubnativeConfigManager.Listener listener) {
+
+        Log.v(TAG, "refreshConfig: " + appToken);
+        if (listener == null) {
+            Log.e(TAG, "refreshConfig - Error: listener is null, dropping this call");
+        } else if (context == null || TextUtils.isEmpty(appToken)) {
+            Log.e(TAG, "refreshConfig - Error: invalid context or app token");
+            invokeLoaded(null, listener);
+        } else {
+            PubnativeConfigRequestModel item = new PubnativeConfigRequestModel();
+            item.context = context;
+            item.appToken = appToken;
+            item.extras = extras;
+            item.listener = listener;
+            if (joinFlight(item)) {
+                downloadOrJoinRevalidation(item);
+            }
+        }
+    }
+
+    /**
+     * Enables or disables serving an expired stored config while a new one is downloaded in
+     * background. Requests arriving after the max staleness will wait for the download again.
+     *
+     * @param enabled true to serve stale configs while revalidating, false to always wait for the download
+     */
+    public static void setStaleWhileRevalidate(boolean enabled) {
+
+        Log.v(TAG, "setStaleWhileRevalidate: " + enabled);
+        sStaleWhileRevalidate = enabled;
+    }
+
+    /**
+     * Sets for how long an expired config can still be served while revalidating, default is 1 day
+     *
+     * @param minutes time in minutes after the config refresh was elapsed
+     */
+    public static void setMaxStaleness(long minutes) {
+
+        Log.v(TAG, "setMaxStaleness: " + minutes);
+        sMaxStaleness = minutes;
+    }
+
+    /**
+     * Loads the stored config data from disk, so it's already in memory when the first ad
+     * request needs it. Meant to be called from a background thread
+     *
+     * @param context valid context object
+     */
+    public static void preload(Context context) {
+
+        Log.v(TAG, "preload");
+        for (String appToken : getStoredAppTokens(context)) {
+            getSnapshot(context, appToken);
         }
     }
 
+    /**
+     * Sets how many app tokens keep a stored config, when a new app token goes over this limit
+     * the config of the least recently used one is dropped. Default is 4
+     *
+     * @param maxStoredConfigs max amount of stored configs, at least 1
+     */
+    public static void setMaxStoredConfigs(int maxStoredConfigs) {
+
+        Log.v(TAG, "setMaxStoredConfigs: " + maxStoredConfigs);
+        sMaxStoredConfigs = Math.max(1, maxStoredConfigs);
+    }
+
+    /**
+     * Sets the transport used to download the config
+     *
+     * @param transport valid transport, null to use the PubnativeHttpRequest default one
+     */
+    public static void setTransport(PubnativeHttpTransport transport) {
+
+        Log.v(TAG, "setTransport");
+        sTransport = transport;
+    }
+
+    /**
+     * Sets the policy used to retry failed config downloads. Default is PubnativeRetryPolicy.DEFAULT
+     *
+     * @param retryPolicy valid policy, null for no retries
+     */
+    public static void setRetryPolicy(PubnativeRetryPolicy retryPolicy) {
+
+        Log.v(TAG, "setRetryPolicy");
+        sRetryPolicy = retryPolicy;
+    }
+
     /**
      * Completely resets all stored config data
      *
      * @param context valid context object
      */
-    public static void clean(Context context) {
+    public synchronized static void clean(Context context) {
 
         Log.v(TAG, "clean");
-        setStoredAppToken(context, null);
-        setStoredTimestamp(context, null);
-        setStoredRefresh(context, null);
-        setStoredConfig(context, null);
+        for (String appToken : getStoredAppTokens(context)) {
+            deleteStoredConfig(context, appToken);
+        }
+        PubnativeConfigStore.delete(getConfigFile(context, CONFIG_INDEX_FILE_NAME));
+        // Read again on next use, importing any legacy config stored until then
+        sIndex = null;
+        cleanLegacyConfig(context);
+        sSnapshotVersion++;
+        sSnapshots = Collections.emptyMap();
+    }
+
+    /**
+     * Returns the version of the in-memory config snapshot, it changes every time
+     * the stored config gets replaced or cleaned
+     *
+     * @return current snapshot version, 0 if nothing was loaded yet
+     */
+    public static long getStoredConfigVersion() {
+
+        Log.v(TAG, "getStoredConfigVersion");
+        return sSnapshotVersion;
     }
     //----------------------------------------------------------------------------------------------
     // Private
     //----------------------------------------------------------------------------------------------
 
-    protected static void doNextConfigRequest() {
+    private static void getNextConfig(PubnativeConfigRequestModel requestModel) {
 
-        Log.v(TAG, "doNextConfigRequest");
+        Log.v(TAG, "getNextConfig: " + requestModel.appToken);
+        if (!configNeedsUpdate(requestModel)) {
+            serveStoredConfig(requestModel);
+        } else if (canServeStaleConfig(requestModel)) {
+            serveStoredConfig(requestModel);
+            revalidateConfig(requestModel);
+        } else {
+            downloadOrJoinRevalidation(requestModel);
+        }
+    }
 
-        if (sIdle) {
-            PubnativeConfigRequestModel item = dequeueRequest();
-            if(item != null) {
-                sIdle = false;
-                getNextConfig(item);
+    /**
+     * Downloads the config for the flight, unless a background revalidation is already
+     * downloading it. In that case the flight is completed when the revalidation finishes.
+     */
+    protected static void downloadOrJoinRevalidation(PubnativeConfigRequestModel requestModel) {
+
+        Log.v(TAG, "downloadOrJoinRevalidation: " + requestModel.appToken);
+        boolean startDownload;
+        synchronized (PubnativeConfigManager.class) {
+            startDownload = !sRevalidating.contains(requestModel.appToken);
+            if (!startDownload) {
+                sRevalidationFlights.add(requestModel.appToken);
             }
         }
+        if (startDownload) {
+            downloadConfig(requestModel, true);
+        } else {
+            Log.v(TAG, "downloadOrJoinRevalidation - waiting for the running revalidation");
+        }
     }
 
-    private static void getNextConfig(PubnativeConfigRequestModel requestModel) {
+    protected static void revalidateConfig(PubnativeConfigRequestModel requestModel) {
 
-        Log.v(TAG, "getNextConfig: " + requestModel.appToken);
-        if (configNeedsUpdate(requestModel)) {
-            downloadConfig(requestModel);
+        Log.v(TAG, "revalidateConfig: " + requestModel.appToken);
+        boolean startDownload;
+        synchronized (PubnativeConfigManager.class) {
+            startDownload = sRevalidating.add(requestModel.appToken);
+        }
+        if (startDownload) {
+            downloadConfig(requestModel, false);
         } else {
-            serveStoredConfig(requestModel);
+            Log.v(TAG, "revalidateConfig - already revalidating, dropping call");
+        }
+    }
+
+    /**
+     * @return true if a flight joined the revalidation and is waiting for it to be served
+     */
+    protected static boolean finishRevalidation(String appToken) {
+
+        Log.v(TAG, "finishRevalidation: " + appToken);
+        boolean result;
+        synchronized (PubnativeConfigManager.class) {
+            sRevalidating.remove(appToken);
+            result = sRevalidationFlights.remove(appToken);
         }
+        return result;
     }
 
     protected static void serveStoredConfig(PubnativeConfigRequestModel request) {
 
         Log.v(TAG, "serveStoredConfig");
-        invokeLoaded(getStoredConfig(request.context), request.listener);
+        PubnativeConfigModel config = getStoredConfig(request.context, request.appToken);
+        if (config != null) {
+            touchStoredAppToken(request.context, request.appToken);
+        }
+        completeFlight(request.appToken, config);
     }
 
+    /**
+     * Gets the stored config of the most recently used app token without checking if it's outdated
+     *
+     * @param context valid context object
+     *
+     * @return stored config, null if there is none
+     *
+     * @deprecated configs are stored per app token, use {@link #getStoredConfig(Context, String)}
+     */
+    @Deprecated
     public static PubnativeConfigModel getStoredConfig(Context context) {
 
         Log.v(TAG, "getStoredConfig");
-        PubnativeConfigModel currentConfig = null;
-        String configString = getStoredConfigString(context);
-        if (!TextUtils.isEmpty(configString)) {
-            try {
-                currentConfig = new Gson().fromJson(configString, PubnativeConfigModel.class);
-            } catch (Exception e) {
-                Log.e(TAG, "getStoredConfig - Error: " + e);
+        PubnativeConfigModel result = null;
+        if (context != null) {
+            List<String> appTokens = getStoredAppTokens(context);
+            if (!appTokens.isEmpty()) {
+                result = getStoredConfig(context, appTokens.get(appTokens.size() - 1));
             }
         }
-        // Ensure not returning an invalid getConfig
-        if (currentConfig == null || currentConfig.isEmpty()) {
-            currentConfig = null;
+        return result;
+    }
+
+    /**
+     * Gets the stored config of the given app token without checking if it's outdated
+     *
+     * @param context  valid context object
+     * @param appToken app token the config was downloaded for
+     *
+     * @return stored config, null if there is none for this app token
+     */
+    public static PubnativeConfigModel getStoredConfig(Context context, String appToken) {
+
+        Log.v(TAG, "getStoredConfig: " + appToken);
+        PubnativeConfigModel result = null;
+        PubnativeConfigSnapshot snapshot = getSnapshot(context, appToken);
+        if (snapshot != null) {
+            result = snapshot.config;
         }
-        return currentConfig;
+        return result;
     }
 
-    protected static void updateConfig(Context context, String appToken, PubnativeConfigModel configModel) {
+    /**
+     * Gets the execution plan of a placement, reusing the one compiled with the snapshot
+     * when the config is the one currently loaded
+     *
+     * @param config        config the placement was loaded from
+     * @param placementName placement name
+     *
+     * @return valid plan, null if the placement doesn't exist in the config
+     */
+    public static PubnativePlacementPlan getPlacementPlan(PubnativeConfigModel config, String placementName) {
+
+        Log.v(TAG, "getPlacementPlan: " + placementName);
+        PubnativePlacementPlan result = null;
+        boolean found = false;
+        for (PubnativeConfigSnapshot snapshot : sSnapshots.values()) {
+            if (snapshot.config == config) {
+                result = snapshot.getPlan(placementName);
+                found = true;
+                break;
+            }
+        }
+        if (!found) {
+            result = PubnativePlacementPlan.compile(config, placementName);
+        }
+        return result;
+    }
 
-        Log.v(TAG, "updateConfig");
-        if (context != null) {
-            if (TextUtils.isEmpty(appToken) || configModel == null || configModel.isEmpty()) {
-                clean(context);
-            } else {
-                setStoredConfig(context, configModel);
-                setStoredAppToken(context, appToken);
-                setStoredTimestamp(context, System.currentTimeMillis());
-                if (configModel.globals.containsKey(PubnativeConfigModel.GLOBAL.REFRESH)) {
-                    Double refresh = (Double) configModel.globals.get(PubnativeConfigModel.GLOBAL.REFRESH);
-                    setStoredRefresh(context, refresh.longValue());
+    protected static PubnativeConfigSnapshot getSnapshot(Context context, String appToken) {
+
+        Log.v(TAG, "getSnapshot: " + appToken);
+        PubnativeConfigSnapshot result = null;
+        if (!TextUtils.isEmpty(appToken)) {
+            result = sSnapshots.get(appToken);
+            if (result == null) {
+                result = loadSnapshot(context, appToken);
+            }
+        }
+        return result;
+    }
+
+    protected synchronized static PubnativeConfigSnapshot loadSnapshot(Context context, String appToken) {
+
+        Log.v(TAG, "loadSnapshot: " + appToken);
+        // Another thread could have loaded it while we were waiting for the lock
+        PubnativeConfigSnapshot result = sSnapshots.get(appToken);
+        if (result == null) {
+            // Files of evicted app tokens are never read back
+            if (getStoredAppTokens(context).contains(appToken)) {
+                PubnativeConfigModel storedConfig = getStoredConfigFromFile(context, appToken);
+                // Ensure not returning an invalid getConfig
+                if (storedConfig != null && !storedConfig.isEmpty()) {
+                    result = swapSnapshot(appToken, storedConfig);
+                    preconnect(context, storedConfig);
                 }
             }
         }
+        return result;
+    }
+
+    protected synchronized static PubnativeConfigSnapshot swapSnapshot(String appToken, PubnativeConfigModel config) {
+
+        Log.v(TAG, "swapSnapshot: " + appToken);
+        PubnativeConfigSnapshot result = null;
+        sSnapshotVersion++;
+        // Copy on write, so readers can keep using the map without locking
+        Map<String, PubnativeConfigSnapshot> snapshots = new HashMap<String, PubnativeConfigSnapshot>(sSnapshots);
+        if (config == null) {
+            snapshots.remove(appToken);
+        } else {
+            result = new PubnativeConfigSnapshot(sSnapshotVersion, appToken, config);
+            snapshots.put(appToken, result);
+        }
+        sSnapshots = Collections.unmodifiableMap(snapshots);
+        return result;
+    }
+
+    protected static void updateConfig(Context context, String appToken, PubnativeConfigModel configModel) {
+
+        updateConfig(context, appToken, configModel, null);
+    }
+
+    /**
+     * Stores the given config, when a snapshot file of it is given, that file is moved in place
+     * instead of serializing the config again
+     */
+    protected synchronized static void updateConfig(Context context, String appToken, PubnativeConfigModel configModel, File snapshotFile) {
+
+        Log.v(TAG, "updateConfig: " + appToken);
+        if (context == null || TextUtils.isEmpty(appToken)) {
+            Log.e(TAG, "updateConfig - Error: invalid context or app token, dropping this call");
+        } else if (configModel == null || configModel.isEmpty()) {
+            removeStoredConfig(context, appToken);
+        } else {
+            if (snapshotFile == null || !setStoredConfigFile(context, appToken, snapshotFile)) {
+                setStoredConfig(context, appToken, configModel);
+            }
+            Metadata metadata = getIndex(context).get(appToken);
+            if (metadata == null) {
+                metadata = new Metadata();
+                sIndex.put(appToken, metadata);
+            }
+            metadata.timestamp = System.currentTimeMillis();
+            if (configModel.globals.containsKey(PubnativeConfigModel.GLOBAL.REFRESH)) {
+                Double refresh = (Double) configModel.globals.get(PubnativeConfigModel.GLOBAL.REFRESH);
+                metadata.refresh = refresh.longValue();
+            }
+            swapSnapshot(appToken, configModel);
+            // Index is written once with the new metadata and order
+            touchIndex(context, appToken);
+            saveIndex(context);
+            preconnect(context, configModel);
+        }
     }
 
-    protected synchronized static void downloadConfig(final PubnativeConfigRequestModel requestModel) {
+    /**
+     * Warms up the config and beacon hosts of the given config, so the next download and the
+     * first beacons reuse an open connection
+     */
+    protected static void preconnect(Context context, PubnativeConfigModel config) {
+
+        Log.v(TAG, "preconnect");
+        // Each host is warmed up with the transport that is going to use it
+        String configUrl = (String) config.getGlobal(PubnativeConfigModel.GLOBAL.CONFIG_URL);
+        PubnativePreconnector.preconnect(context, Collections.singletonList(TextUtils.isEmpty(configUrl) ? CONFIG_DOWNLOAD_BASE_URL : configUrl), sTransport);
+        List<String> beaconUrls = new ArrayList<String>();
+        beaconUrls.add((String) config.getGlobal(PubnativeConfigModel.GLOBAL.REQUEST_BEACON));
+        beaconUrls.add((String) config.getGlobal(PubnativeConfigModel.GLOBAL.IMPRESSION_BEACON));
+        beaconUrls.add((String) config.getGlobal(PubnativeConfigModel.GLOBAL.CLICK_BEACON));
+        PubnativeInsightsManager.preconnect(context, beaconUrls);
+    }
+
+    protected synchronized static void removeStoredConfig(Context context, String appToken) {
+
+        Log.v(TAG, "removeStoredConfig: " + appToken);
+        if (getIndex(context).containsKey(appToken)) {
+            deleteStoredConfig(context, appToken);
+            saveIndex(context);
+        } else {
+            deleteStoredConfig(context, appToken);
+        }
+    }
+
+    protected synchronized static void deleteStoredConfig(Context context, String appToken) {
+
+        Log.v(TAG, "deleteStoredConfig: " + appToken);
+        setStoredConfig(context, appToken, null);
+        // Callers write the index once they are done with it
+        getIndex(context).remove(appToken);
+        if (sSnapshots.containsKey(appToken)) {
+            swapSnapshot(appToken, null);
+        }
+    }
+
+    /**
+     * Marks the app token as the most recently used one, dropping the configs of the least
+     * recently used ones when there are more than the max stored configs
+     */
+    protected synchronized static void touchStoredAppToken(Context context, String appToken) {
+
+        Log.v(TAG, "touchStoredAppToken: " + appToken);
+        if (getIndex(context).containsKey(appToken) && touchIndex(context, appToken)) {
+            saveIndex(context);
+        }
+    }
+
+    /**
+     * Moves the app token to the end of the loaded index, evicting the least recently used ones
+     * over the max stored configs. The index is not written here
+     *
+     * @return true if the index changed, false if the app token already was the most recently used
+     */
+    protected synchronized static boolean touchIndex(Context context, String appToken) {
+
+        boolean result = false;
+        List<String> appTokens = getStoredAppTokens(context);
+        // Most recently used is kept last, nothing to write if it's already there
+        if (appTokens.isEmpty() || !appToken.equals(appTokens.get(appTokens.size() - 1))) {
+            Metadata metadata = sIndex.remove(appToken);
+            sIndex.put(appToken, metadata == null ? new Metadata() : metadata);
+            appTokens.remove(appToken);
+            appTokens.add(appToken);
+            result = true;
+        }
+        for (int i = 0; i < appTokens.size() - sMaxStoredConfigs; i++) {
+            String evictedAppToken = appTokens.get(i);
+            Log.v(TAG, "touchIndex - evicting config for: " + evictedAppToken);
+            deleteStoredConfig(context, evictedAppToken);
+            result = true;
+        }
+        return result;
+    }
+
+    protected synchronized static void downloadConfig(final PubnativeConfigRequestModel requestModel, final boolean serveWhenDone) {
 
         Log.v(TAG, "downloadConfig");
+        // Filled in the request thread while the response is streamed
+        final PubnativeConfigAPIResponseModel[] streamedResponse = new PubnativeConfigAPIResponseModel[1];
+        final File downloadFile = createDownloadFile(requestModel.context);
         PubnativeHttpRequest http = new PubnativeHttpRequest();
+        http.setTransport(sTransport);
+        http.setRetryPolicy(sRetryPolicy);
+        if (getSnapshot(requestModel.context, requestModel.appToken) != null) {
+            // We only can accept a "not modified" answer if we have the config the validators refer to
+            http.setHeader(HEADER_IF_NONE_MATCH, getStoredETag(requestModel.context, requestModel.appToken));
+            http.setHeader(HEADER_IF_MODIFIED_SINCE, getStoredLastModified(requestModel.context, requestModel.appToken));
+        }
+        http.setStreamProcessor(new PubnativeHttpRequest.StreamProcessor() {
+
+            @Override
+            public void onPubnativeHttpRequestStream(PubnativeHttpRequest request, InputStream inputStream) throws Exception {
+
+                Log.v(TAG, "onPubnativeHttpRequestStream");
+                PubnativeConfigAPIResponseModel response = readConfigResponse(inputStream);
+                if (response != null
+                    && PubnativeConfigAPIResponseModel.Status.OK.equals(response.status)
+                    && response.config != null
+                    && !response.config.isEmpty()) {
+                    // Snapshot is written here, off the main thread, and just moved in place later
+                    if (!PubnativeConfigStore.write(downloadFile, response.config)) {
+                        PubnativeConfigStore.delete(downloadFile);
+                    }
+                }
+                streamedResponse[0] = response;
+            }
+        });
         http.start(requestModel.context, getConfigDownloadUrl(requestModel), new PubnativeHttpRequest.Listener() {
 
             @Override
@@ -217,59 +639,88 @@ public class PubnativeConfigManager {
             public void onPubnativeHttpRequestFinish(PubnativeHttpRequest request, String result) {
 
                 Log.v(TAG, "onPubnativeHttpRequestFinish");
-                processConfigDownloadResponse(requestModel, result);
-                serveStoredConfig(requestModel);
+                if (request.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    processConfigNotModified(requestModel);
+                } else if (processConfigDownloadResponse(requestModel, streamedResponse[0], downloadFile)) {
+                    setStoredValidators(requestModel.context,
+                                        requestModel.appToken,
+                                        request.getResponseHeader(HEADER_ETAG),
+                                        request.getResponseHeader(HEADER_LAST_MODIFIED));
+                }
+                onDownloadDone();
             }
 
             @Override
             public void onPubnativeHttpRequestFail(PubnativeHttpRequest request, Exception exception) {
 
                 Log.v(TAG, "onPubnativeHttpRequestFail: " + exception.toString());
-                serveStoredConfig(requestModel);
+                onDownloadDone();
+            }
+
+            private void onDownloadDone() {
+
+                if (downloadFile != null && downloadFile.exists() && !downloadFile.delete()) {
+                    Log.w(TAG, "downloadConfig - Warning: unable to delete download file");
+                }
+                if (serveWhenDone || finishRevalidation(requestModel.appToken)) {
+                    serveStoredConfig(requestModel);
+                }
             }
         });
     }
 
-    protected static void processConfigDownloadResponse(PubnativeConfigRequestModel request, String result) {
+    /**
+     * Parses the config response straight from the stream
+     *
+     * @param inputStream response stream
+     *
+     * @return parsed response
+     *
+     * @throws IOException if the stream can't be read
+     */
+    protected static PubnativeConfigAPIResponseModel readConfigResponse(InputStream inputStream) throws IOException {
+
+        Log.v(TAG, "readConfigResponse");
+        JsonReader reader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
+        return new Gson().fromJson(reader, PubnativeConfigAPIResponseModel.class);
+    }
+
+    protected static void processConfigNotModified(PubnativeConfigRequestModel request) {
+
+        Log.v(TAG, "processConfigNotModified");
+        // Stored config is still valid, just restart the refresh countdown
+        setStoredTimestamp(request.context, request.appToken, System.currentTimeMillis());
+    }
+
+    protected static boolean processConfigDownloadResponse(PubnativeConfigRequestModel request, PubnativeConfigAPIResponseModel response, File snapshotFile) {
 
         Log.v(TAG, "processConfigDownloadResponse");
-        if (TextUtils.isEmpty(result)) {
-            // In case of server error problem, we serve the stored config
+        boolean success = false;
+        if (response == null) {
+            // In case of server error problem, the stored config will be served
             Log.e(TAG, "downloadConfig - Error, empty response");
-            serveStoredConfig(request);
+        } else if (PubnativeConfigAPIResponseModel.Status.OK.equals(response.status)) {
+            // Update delivery manager's tracking data
+            updateDeliveryManagerCache(request.context, request.appToken, response.config);
+            // Saving the downloaded config
+            updateConfig(request.context, request.appToken, response.config, snapshotFile);
+            success = true;
         } else {
-            try {
-                PubnativeConfigAPIResponseModel response = new Gson().fromJson(result, PubnativeConfigAPIResponseModel.class);
-                if (PubnativeInsightsAPIResponseModel.Status.OK.equals(response.status)) {
-                    // Update delivery manager's tracking data
-                    updateDeliveryManagerCache(request.context, response.config);
-                    // Saving config string
-                    updateConfig(request.context, request.appToken, response.config);
-                } else {
-                    Log.e(TAG, "downloadConfig - Error: " + response.error_message);
-                    serveStoredConfig(request);
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "downloadConfig - Error: " + e);
-                serveStoredConfig(request);
-            }
+            Log.e(TAG, "downloadConfig - Error: " + response.error_message);
         }
+        return success;
     }
 
     protected static boolean configNeedsUpdate(PubnativeConfigRequestModel request) {
 
         Log.v(TAG, "configNeedsUpdate");
         boolean result = false;
-        String storedConfigString = getStoredConfigString(request.context);
-        String storedAppToken = getStoredAppToken(request.context);
-        Long refresh = getStoredRefresh(request.context);
-        Long storedTimestamp = getStoredTimestamp(request.context);
+        PubnativeConfigSnapshot snapshot = getSnapshot(request.context, request.appToken);
+        Long refresh = getStoredRefresh(request.context, request.appToken);
+        Long storedTimestamp = getStoredTimestamp(request.context, request.appToken);
         Long currentTimestamp = System.currentTimeMillis();
-        if (TextUtils.isEmpty(storedConfigString) || TextUtils.isEmpty(storedAppToken)) {
-            // There is no stored config
-            result = true;
-        } else if (!storedAppToken.equals(request.appToken)) {
-            // Stored config is different than the requested app token
+        if (snapshot == null) {
+            // There is no stored config for this app token
             result = true;
         } else if (refresh == null ||
                    storedTimestamp == null) {
@@ -282,10 +733,29 @@ public class PubnativeConfigManager {
         return result;
     }
 
-    private static void updateDeliveryManagerCache(Context context, PubnativeConfigModel downloadedConfig) {
+    protected static boolean canServeStaleConfig(PubnativeConfigRequestModel request) {
+
+        Log.v(TAG, "canServeStaleConfig");
+        boolean result = false;
+        if (sStaleWhileRevalidate) {
+            PubnativeConfigSnapshot snapshot = getSnapshot(request.context, request.appToken);
+            Long refresh = getStoredRefresh(request.context, request.appToken);
+            Long storedTimestamp = getStoredTimestamp(request.context, request.appToken);
+            if (snapshot != null
+                && refresh != null
+                && storedTimestamp != null) {
+                long elapsed = TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - storedTimestamp);
+                // Only configs that are expired but still within the max staleness can be served
+                result = elapsed < refresh + sMaxStaleness;
+            }
+        }
+        return result;
+    }
+
+    private static void updateDeliveryManagerCache(Context context, String appToken, PubnativeConfigModel downloadedConfig) {
 
         Log.v(TAG, "updateDeliveryManagerCache");
-        PubnativeConfigModel storedConfig = getStoredConfig(context);
+        PubnativeConfigModel storedConfig = getStoredConfig(context, appToken);
         if (storedConfig != null) {
             Set<String> storePlacementIds = storedConfig.placements.keySet();
             for (String placementId : storePlacementIds) {
@@ -324,44 +794,63 @@ public class PubnativeConfigManager {
         if (listener != null) {
             listener.onConfigLoaded(configModel);
         }
-        sIdle = true;
-        doNextConfigRequest();
     }
     //==============================================================================================
-    // QUEUE
+    // FLIGHTS
     //==============================================================================================
+    // All the requests for the same app token share a single download or stored config read,
+    // the first one to join starts the flight and the rest just wait for it to complete
+    //----------------------------------------------------------------------------------------------
 
-    protected static void enqueueRequest(PubnativeConfigRequestModel item) {
+    protected synchronized static boolean joinFlight(PubnativeConfigRequestModel item) {
 
-        Log.v(TAG, "enqueueRequest");
-        if (item != null) {
-            if (sQueue == null) {
-                sQueue = new ArrayList<PubnativeConfigRequestModel>();
-            }
-            sQueue.add(item);
+        Log.v(TAG, "joinFlight: " + item.appToken);
+        boolean result = false;
+        if (sFlights == null) {
+            sFlights = new HashMap<String, List<PubnativeConfigRequestModel>>();
+        }
+        List<PubnativeConfigRequestModel> flight = sFlights.get(item.appToken);
+        if (flight == null) {
+            flight = new ArrayList<PubnativeConfigRequestModel>();
+            sFlights.put(item.appToken, flight);
+            result = true;
         }
+        flight.add(item);
+        return result;
     }
 
-    protected static PubnativeConfigRequestModel dequeueRequest() {
+    /**
+     * Notifies every request waiting for the app token. Must be called without holding the class
+     * lock, getConfig and refreshConfig only take it inside the methods they call
+     */
+    protected static void completeFlight(String appToken, PubnativeConfigModel configModel) {
 
-        Log.v(TAG, "dequeueRequest");
-        PubnativeConfigRequestModel result = null;
-        if (sQueue != null && sQueue.size() > 0) {
-            result = sQueue.remove(0);
+        Log.v(TAG, "completeFlight: " + appToken);
+        List<PubnativeConfigRequestModel> flight = null;
+        synchronized (PubnativeConfigManager.class) {
+            if (sFlights != null) {
+                flight = sFlights.remove(appToken);
+            }
+        }
+        // Listeners are notified outside the lock, so they can start new requests from the callback
+        if (flight != null) {
+            for (PubnativeConfigRequestModel item : flight) {
+                invokeLoaded(configModel, item.listener);
+            }
         }
-        return result;
     }
+
     //==============================================================================================
-    // SHARED PREFERENCES
+    // STORAGE
     //==============================================================================================
     // CONFIG URL
     //----------------------------------------------------------------------------------------------
 
-    protected static String getConfigDownloadBaseUrl(Context context) {
+    protected static String getConfigDownloadBaseUrl(Context context, String appToken) {
 
         Log.v(TAG, "getConfigDownloadBaseUrl");
         String configDownloadBaseUrl = CONFIG_DOWNLOAD_BASE_URL;
-        PubnativeConfigModel storedConfig = getStoredConfig(context);
+        PubnativeConfigModel storedConfig = getStoredConfig(context, appToken);
         if (storedConfig != null && !storedConfig.isEmpty()) {
             String configUrl = (String) storedConfig.globals.get(PubnativeConfigModel.GLOBAL.CONFIG_URL);
             if (!TextUtils.isEmpty(configUrl)) {
@@ -373,7 +862,7 @@ public class PubnativeConfigManager {
 
     protected static String getConfigDownloadUrl(PubnativeConfigRequestModel request) {
 
-        Uri.Builder uriBuilder = Uri.parse(getConfigDownloadBaseUrl(request.context)).buildUpon();
+        Uri.Builder uriBuilder = Uri.parse(getConfigDownloadBaseUrl(request.context, request.appToken)).buildUpon();
         uriBuilder.appendQueryParameter(APP_TOKEN_KEY, request.appToken);
         if (request.extras != null) {
             for (String key : request.extras.keySet()) {
@@ -387,66 +876,259 @@ public class PubnativeConfigManager {
     // CONFIG
     //----------------------------------------------------------------------------------------------
 
-    protected synchronized static String getStoredConfigString(Context context) {
+    protected synchronized static PubnativeConfigModel getStoredConfigFromFile(Context context, String appToken) {
+
+        Log.v(TAG, "getStoredConfigFromFile: " + appToken);
+        // Loading the index imports any legacy config first
+        getIndex(context);
+        return PubnativeConfigStore.read(getStoredConfigFile(context, appToken));
+    }
+
+    protected synchronized static void setStoredConfig(Context context, String appToken, PubnativeConfigModel config) {
 
-        Log.v(TAG, "getStoredConfigString");
-        return getStringSharedPreference(context, CONFIG_STRING_KEY);
+        Log.v(TAG, "setStoredConfig: " + appToken);
+        File configFile = getStoredConfigFile(context, appToken);
+        if (config == null) {
+            PubnativeConfigStore.delete(configFile);
+        } else if (!PubnativeConfigStore.write(configFile, config)) {
+            Log.e(TAG, "setStoredConfig - Error: unable to store config");
+        }
     }
 
-    protected synchronized static void setStoredConfig(Context context, PubnativeConfigModel config) {
+    protected synchronized static boolean setStoredConfigFile(Context context, String appToken, File snapshotFile) {
 
-        Log.v(TAG, "setStoredConfig");
-        // ensuring the string "null" is not getting saved.
-        String configString = (config != null) ? new Gson().toJson(config) : null;
-        setStringSharedPreference(context, CONFIG_STRING_KEY, configString);
+        Log.v(TAG, "setStoredConfigFile: " + appToken);
+        boolean result = false;
+        File configFile = getStoredConfigFile(context, appToken);
+        if (configFile != null && snapshotFile != null && snapshotFile.length() > 0) {
+            // rename is atomic, so readers see either the old or the new config
+            result = snapshotFile.renameTo(configFile);
+            if (!result) {
+                Log.e(TAG, "setStoredConfigFile - Error: unable to move " + snapshotFile.getName());
+            }
+        }
+        return result;
     }
+
+    protected static File getStoredConfigFile(Context context, String appToken) {
+
+        File result = null;
+        if (!TextUtils.isEmpty(appToken)) {
+            // App tokens are hashed so any value makes a valid file name
+            result = getConfigFile(context, CONFIG_FILE_PREFIX + getAppTokenHash(appToken) + CONFIG_FILE_EXTENSION);
+        }
+        return result;
+    }
+
+    protected static String getAppTokenHash(String appToken) {
+
+        String result;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(appToken.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte value : digest) {
+                builder.append(Integer.toHexString((value & 0xff) | 0x100).substring(1));
+            }
+            result = builder.toString();
+        } catch (Exception e) {
+            Log.e(TAG, "getAppTokenHash - Error: " + e);
+            result = Integer.toHexString(appToken.hashCode());
+        }
+        return result;
+    }
+
+    /**
+     * Older versions kept a single config for the last used app token, first as a JSON string in
+     * the shared preferences and later in an unkeyed file. This moves it to the app token store.
+     * It only runs when there is no index yet, so the preferences are not read once migrated.
+     */
+    protected synchronized static void migrateStoredConfig(Context context) {
+
+        Log.v(TAG, "migrateStoredConfig");
+        File legacyFile = getConfigFile(context, LEGACY_CONFIG_FILE_NAME);
+        String legacyConfigString = getStringSharedPreference(context, CONFIG_STRING_KEY);
+        if (!TextUtils.isEmpty(legacyConfigString)) {
+            try {
+                PubnativeConfigStore.write(legacyFile, new Gson().fromJson(legacyConfigString, PubnativeConfigModel.class));
+            } catch (Exception e) {
+                Log.e(TAG, "migrateStoredConfig - Error: " + e);
+            }
+        }
+        String legacyAppToken = getStringSharedPreference(context, APP_TOKEN_STRING_KEY);
+        if (!TextUtils.isEmpty(legacyAppToken)) {
+            File configFile = getStoredConfigFile(context, legacyAppToken);
+            if (legacyFile != null && legacyFile.exists() && legacyFile.renameTo(configFile)) {
+                Metadata metadata = new Metadata();
+                metadata.timestamp = getLongSharedPreference(context, TIMESTAMP_LONG_KEY);
+                metadata.refresh = getLongSharedPreference(context, REFRESH_LONG_KEY);
+                sIndex.put(legacyAppToken, metadata);
+            }
+        }
+        cleanLegacyConfig(context);
+    }
+
+    protected synchronized static void cleanLegacyConfig(Context context) {
+
+        Log.v(TAG, "cleanLegacyConfig");
+        PubnativeConfigStore.delete(getConfigFile(context, LEGACY_CONFIG_FILE_NAME));
+        SharedPreferences preferences = getSharedPreferences(context);
+        // Nothing else is stored in these preferences, avoid rewriting them when already empty
+        if (preferences != null && !preferences.getAll().isEmpty()) {
+            preferences.edit().clear().apply();
+        }
+    }
+
+    protected static File createDownloadFile(Context context) {
+
+        File result = null;
+        if (context != null && context.getFilesDir() != null) {
+            try {
+                // Unique name, downloads for different app tokens can run at the same time
+                result = File.createTempFile(CONFIG_DOWNLOAD_PREFIX, null, context.getFilesDir());
+            } catch (IOException e) {
+                Log.e(TAG, "createDownloadFile - Error: " + e);
+            }
+        }
+        return result;
+    }
+
+    protected static File getConfigFile(Context context, String fileName) {
+
+        File result = null;
+        if (context != null && context.getFilesDir() != null) {
+            result = new File(context.getFilesDir(), fileName);
+        }
+        return result;
+    }
+
     //----------------------------------------------------------------------------------------------
-    // APP_TOKEN
+    // INDEX
     //----------------------------------------------------------------------------------------------
+    // Stored app tokens, least recently used first, with the refresh data of their configs. It's
+    // loaded once and written as a single binary file every time it changes
+    //----------------------------------------------------------------------------------------------
+
+    protected synchronized static Map<String, Metadata> getIndex(Context context) {
+
+        if (sIndex == null && context != null) {
+            File indexFile = getConfigFile(context, CONFIG_INDEX_FILE_NAME);
+            sIndex = PubnativeConfigStore.readIndex(indexFile);
+            if (sIndex == null) {
+                sIndex = new LinkedHashMap<String, Metadata>();
+                if (indexFile == null || !indexFile.exists()) {
+                    migrateStoredConfig(context);
+                }
+                saveIndex(context);
+            }
+        }
+        Map<String, Metadata> result = sIndex;
+        if (result == null) {
+            result = new LinkedHashMap<String, Metadata>();
+        }
+        return result;
+    }
+
+    protected synchronized static void saveIndex(Context context) {
 
-    protected static String getStoredAppToken(Context context) {
+        Log.v(TAG, "saveIndex");
+        if (sIndex != null && !PubnativeConfigStore.writeIndex(getConfigFile(context, CONFIG_INDEX_FILE_NAME), sIndex)) {
+            Log.e(TAG, "saveIndex - Error: unable to store config index");
+        }
+    }
+
+    protected synchronized static Metadata getMetadata(Context context, String appToken) {
 
-        Log.v(TAG, "getStoredAppToken");
-        return getStringSharedPreference(context, APP_TOKEN_STRING_KEY);
+        Metadata result = null;
+        if (!TextUtils.isEmpty(appToken)) {
+            result = getIndex(context).get(appToken);
+        }
+        return result;
     }
 
-    protected static void setStoredAppToken(Context context, String appToken) {
+    /**
+     * Gets the app tokens with a stored config, least recently used first
+     *
+     * @param context valid context object
+     *
+     * @return modifiable list of app tokens, empty if there are none
+     */
+    protected synchronized static List<String> getStoredAppTokens(Context context) {
 
-        Log.v(TAG, "getStoredAppToken");
-        setStringSharedPreference(context, APP_TOKEN_STRING_KEY, appToken);
+        Log.v(TAG, "getStoredAppTokens");
+        return new ArrayList<String>(getIndex(context).keySet());
+    }
+    //----------------------------------------------------------------------------------------------
+    // VALIDATORS
+    //----------------------------------------------------------------------------------------------
+
+    protected static String getStoredETag(Context context, String appToken) {
+
+        Log.v(TAG, "getStoredETag");
+        Metadata metadata = getMetadata(context, appToken);
+        return metadata == null ? null : metadata.eTag;
+    }
+
+    protected static String getStoredLastModified(Context context, String appToken) {
+
+        Log.v(TAG, "getStoredLastModified");
+        Metadata metadata = getMetadata(context, appToken);
+        return metadata == null ? null : metadata.lastModified;
+    }
+
+    protected synchronized static void setStoredValidators(Context context, String appToken, String eTag, String lastModified) {
+
+        Log.v(TAG, "setStoredValidators");
+        Metadata metadata = getMetadata(context, appToken);
+        if (metadata != null) {
+            metadata.eTag = eTag;
+            metadata.lastModified = lastModified;
+            saveIndex(context);
+        }
     }
     //----------------------------------------------------------------------------------------------
     // TIMESTAMP
     //----------------------------------------------------------------------------------------------
 
-    protected static Long getStoredTimestamp(Context context) {
+    protected static Long getStoredTimestamp(Context context, String appToken) {
 
         Log.v(TAG, "getStoredTimestamp");
-        return getLongSharedPreference(context, TIMESTAMP_LONG_KEY);
+        Metadata metadata = getMetadata(context, appToken);
+        return metadata == null ? null : metadata.timestamp;
     }
 
-    protected static void setStoredTimestamp(Context context, Long timestamp) {
+    protected synchronized static void setStoredTimestamp(Context context, String appToken, Long timestamp) {
 
-        Log.v(TAG, "getStoredTimestamp");
-        setLongSharedPreference(context, TIMESTAMP_LONG_KEY, timestamp);
+        Log.v(TAG, "setStoredTimestamp");
+        Metadata metadata = getMetadata(context, appToken);
+        if (metadata != null) {
+            metadata.timestamp = timestamp;
+            saveIndex(context);
+        }
     }
     //----------------------------------------------------------------------------------------------
     // REFRESH
     //----------------------------------------------------------------------------------------------
 
-    protected static Long getStoredRefresh(Context context) {
+    protected static Long getStoredRefresh(Context context, String appToken) {
 
         Log.v(TAG, "getStoredRefresh");
-        return getLongSharedPreference(context, REFRESH_LONG_KEY);
+        Metadata metadata = getMetadata(context, appToken);
+        return metadata == null ? null : metadata.refresh;
     }
 
-    protected static void setStoredRefresh(Context context, Long refresh) {
+    protected synchronized static void setStoredRefresh(Context context, String appToken, Long refresh) {
 
         Log.v(TAG, "setStoredRefresh");
-        setLongSharedPreference(context, REFRESH_LONG_KEY, refresh);
+        Metadata metadata = getMetadata(context, appToken);
+        if (metadata != null) {
+            metadata.refresh = refresh;
+            saveIndex(context);
+        }
     }
-    //----------------------------------------------------------------------------------------------
-    // String
+    //==============================================================================================
+    // SHARED PREFERENCES
+    //==============================================================================================
+    // String (only read to import the config stored by previous versions)
     //----------------------------------------------------------------------------------------------
 
     protected static String getStringSharedPreference(Context context, String key) {
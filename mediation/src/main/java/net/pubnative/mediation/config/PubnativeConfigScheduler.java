@@ -0,0 +1,261 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.config;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.pubnative.mediation.config.model.PubnativeConfigModel;
+import net.pubnative.mediation.network.PubnativeNetworkExecutor;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opt-in scheduler that refreshes the config of an app token in background shortly before it
+ * expires, so ad requests don't need to wait for the download.
+ *
+ * Android 2.3 doesn't provide activity lifecycle callbacks, so the app needs to call onPause()
+ * and onResume() from its activities to stop refreshing while it's in background.
+ */
+public class PubnativeConfigScheduler implements PubnativeConfigManager.Listener {
+
+    private static final   String              TAG              = PubnativeConfigScheduler.class.getSimpleName();
+    protected static final long                MAX_REFRESH_LEAD = TimeUnit.SECONDS.toMillis(30);
+    protected static final long                MIN_BACKOFF      = TimeUnit.SECONDS.toMillis(15);
+    protected static final long                MAX_BACKOFF      = TimeUnit.MINUTES.toMillis(30);
+    protected              Context             mContext;
+    protected              String              mAppToken;
+    protected              Map<String, String> mExtras;
+    protected              Handler             mHandler;
+    protected              Clock               mClock;
+    protected              boolean             mStarted;
+    protected              boolean             mPaused;
+    protected              boolean             mRefreshing;
+    protected              int                 mFailedAttempts;
+    protected              Long                mRefreshTimestamp;
+
+    /**
+     * Source of the current time, replaceable for testing
+     */
+    public interface Clock {
+
+        /**
+         * Gets the current time
+         *
+         * @return current time in milliseconds since epoch
+         */
+        long currentTimeMillis();
+    }
+
+    protected static final Clock SYSTEM_CLOCK = new Clock() {
+
+        @Override
+        public long currentTimeMillis() {
+
+            return System.currentTimeMillis();
+        }
+    };
+
+    protected Runnable mRefreshRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            refresh();
+        }
+    };
+
+    protected Runnable mDownloadRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            PubnativeConfigManager.refreshConfig(mContext, mAppToken, mExtras, PubnativeConfigScheduler.this);
+        }
+    };
+
+    //==============================================================================================
+    // PubnativeConfigScheduler
+    //==============================================================================================
+
+    /**
+     * Creates a scheduler for the given app token, it does nothing until started
+     *
+     * @param context  valid context object, only its application context is kept
+     * @param appToken app token to keep the config refreshed for
+     * @param extras   valid extras map with parameters for the config request, can be null
+     */
+    public PubnativeConfigScheduler(Context context, String appToken, Map<String, String> extras) {
+
+        // The scheduler can live as long as the process, it must not keep an activity
+        mContext = context == null ? null : context.getApplicationContext();
+        mAppToken = appToken;
+        mExtras = extras;
+        mHandler = new Handler(Looper.getMainLooper());
+        mClock = SYSTEM_CLOCK;
+    }
+
+    /**
+     * Starts refreshing the config in background
+     */
+    public synchronized void start() {
+
+        Log.v(TAG, "start");
+        if (mContext == null || TextUtils.isEmpty(mAppToken)) {
+            Log.e(TAG, "start - Error: invalid context or app token, dropping this call");
+        } else if (!mStarted) {
+            mStarted = true;
+            mFailedAttempts = 0;
+            schedule();
+        }
+    }
+
+    /**
+     * Stops refreshing the config, a running download will still complete
+     */
+    public synchronized void stop() {
+
+        Log.v(TAG, "stop");
+        mStarted = false;
+        mHandler.removeCallbacks(mRefreshRunnable);
+    }
+
+    /**
+     * Should be called when the app goes to background, no refresh is done while paused
+     */
+    public synchronized void onPause() {
+
+        Log.v(TAG, "onPause");
+        mPaused = true;
+        mHandler.removeCallbacks(mRefreshRunnable);
+    }
+
+    /**
+     * Should be called when the app comes back to foreground, if the config expired meanwhile
+     * it's refreshed right away
+     */
+    public synchronized void onResume() {
+
+        Log.v(TAG, "onResume");
+        if (mPaused) {
+            mPaused = false;
+            schedule();
+        }
+    }
+
+    //==============================================================================================
+    // Private methods
+    //==============================================================================================
+
+    protected void setClock(Clock clock) {
+
+        mClock = clock == null ? SYSTEM_CLOCK : clock;
+    }
+
+    protected synchronized void schedule() {
+
+        Log.v(TAG, "schedule");
+        mHandler.removeCallbacks(mRefreshRunnable);
+        if (mStarted && !mPaused && !mRefreshing) {
+            mHandler.postDelayed(mRefreshRunnable, getNextRefreshDelay());
+        }
+    }
+
+    protected synchronized void refresh() {
+
+        Log.v(TAG, "refresh");
+        if (mStarted && !mPaused && !mRefreshing) {
+            mRefreshing = true;
+            mRefreshTimestamp = PubnativeConfigManager.getStoredTimestamp(mContext, mAppToken);
+            // Starting the download can load the stored config from disk, keep it off the main thread
+            if (!PubnativeNetworkExecutor.execute(mDownloadRunnable)) {
+                onConfigLoaded(null);
+            }
+        }
+    }
+
+    /**
+     * Gets how long to wait for the next refresh, backing off after failed downloads
+     *
+     * @return delay in milliseconds
+     */
+    protected synchronized long getNextRefreshDelay() {
+
+        long result;
+        if (mFailedAttempts > 0) {
+            // Exponential backoff, capped so a long outage doesn't stop refreshing for ever
+            result = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(mFailedAttempts - 1, 16));
+        } else {
+            Long refresh = getRefreshMillis();
+            Long timestamp = PubnativeConfigManager.getStoredTimestamp(mContext, mAppToken);
+            if (refresh == null || timestamp == null) {
+                // Nothing stored yet, prefetch it right away
+                result = 0;
+            } else {
+                long lead = Math.min(MAX_REFRESH_LEAD, refresh / 2);
+                result = Math.max(0, timestamp + refresh - lead - mClock.currentTimeMillis());
+            }
+        }
+        return result;
+    }
+
+    protected Long getRefreshMillis() {
+
+        Long result = null;
+        // Taken from the in-memory config index, the stored config itself is never read here
+        Long refresh = PubnativeConfigManager.getStoredRefresh(mContext, mAppToken);
+        if (refresh != null) {
+            result = TimeUnit.MINUTES.toMillis(refresh);
+        }
+        return result;
+    }
+
+    //==============================================================================================
+    // Callbacks
+    //==============================================================================================
+    // PubnativeConfigManager.Listener
+    //----------------------------------------------------------------------------------------------
+
+    @Override
+    public void onConfigLoaded(PubnativeConfigModel configModel) {
+
+        Log.v(TAG, "onConfigLoaded");
+        synchronized (this) {
+            // The manager serves the stored config on failures, only a new timestamp means a
+            // new config was stored or the stored one was confirmed as not modified
+            Long timestamp = PubnativeConfigManager.getStoredTimestamp(mContext, mAppToken);
+            if (timestamp == null || timestamp.equals(mRefreshTimestamp)) {
+                mFailedAttempts++;
+            } else {
+                mFailedAttempts = 0;
+            }
+            mRefreshing = false;
+        }
+        schedule();
+    }
+}
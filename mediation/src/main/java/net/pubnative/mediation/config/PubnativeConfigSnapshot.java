@@ -0,0 +1,86 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.config;
+
+import net.pubnative.mediation.config.model.PubnativeConfigModel;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable in-memory view of the stored config, swapped as a whole by the config manager
+ * so readers never need to touch SharedPreferences or Gson once it's loaded, placement plans
+ * are compiled along with it
+ */
+public class PubnativeConfigSnapshot {
+
+    public final long                                version;
+    public final String                              appToken;
+    public final PubnativeConfigModel                config;
+    public final Map<String, PubnativePlacementPlan> plans;
+
+    //==============================================================================================
+    // PubnativeConfigSnapshot
+    //==============================================================================================
+
+    protected PubnativeConfigSnapshot(long version, String appToken, PubnativeConfigModel config) {
+
+        this.version = version;
+        this.appToken = appToken;
+        this.config = freeze(config);
+        this.plans = PubnativePlacementPlan.compile(this.config);
+    }
+
+    /**
+     * Gets the precompiled plan for the given placement
+     *
+     * @param placementName placement name
+     *
+     * @return valid plan, null if the placement doesn't exist in this snapshot
+     */
+    public PubnativePlacementPlan getPlan(String placementName) {
+
+        return placementName == null ? null : plans.get(placementName);
+    }
+
+    protected static PubnativeConfigModel freeze(PubnativeConfigModel config) {
+
+        PubnativeConfigModel result = new PubnativeConfigModel();
+        result.globals = freeze(config.globals);
+        result.networks = freeze(config.networks);
+        result.request_params = freeze(config.request_params);
+        result.placements = freeze(config.placements);
+        return result;
+    }
+
+    protected static <K, V> Map<K, V> freeze(Map<K, V> map) {
+
+        Map<K, V> result = null;
+        if (map != null) {
+            result = Collections.unmodifiableMap(new LinkedHashMap<K, V>(map));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,633 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.config;
+
+import android.util.Log;
+
+import net.pubnative.mediation.config.model.PubnativeConfigModel;
+import net.pubnative.mediation.config.model.PubnativeDeliveryRuleModel;
+import net.pubnative.mediation.config.model.PubnativeNetworkModel;
+import net.pubnative.mediation.config.model.PubnativePlacementModel;
+import net.pubnative.mediation.config.model.PubnativePriorityRuleModel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary on-disk snapshot of a config. The file is a fixed header (magic, format version,
+ * payload length and CRC32 of the payload) followed by the payload, so loading it is a single
+ * sequential read with no XML or JSON parsing. Files are replaced atomically by writing to a
+ * temporary file and renaming it over the previous one. The index of stored app tokens and
+ * their refresh data uses the same file format.
+ */
+public class PubnativeConfigStore {
+
+    private static final   String TAG            = PubnativeConfigStore.class.getSimpleName();
+    protected static final int    MAGIC          = 0x504E4346; // "PNCF"
+    protected static final int    INDEX_MAGIC    = 0x504E4349; // "PNCI"
+    protected static final int    FORMAT_VERSION = 1;
+    protected static final int    HEADER_SIZE    = 4 + 4 + 4 + 8;
+    protected static final String TEMP_SUFFIX    = ".tmp";
+    // Value types for untyped maps and lists
+    protected static final byte   TYPE_NULL      = 0;
+    protected static final byte   TYPE_STRING    = 1;
+    protected static final byte   TYPE_DOUBLE    = 2;
+    protected static final byte   TYPE_BOOLEAN   = 3;
+    protected static final byte   TYPE_LONG      = 4;
+    protected static final byte   TYPE_MAP       = 5;
+    protected static final byte   TYPE_LIST      = 6;
+
+    /**
+     * Data stored along with the config of an app token, it changes on every refresh while the
+     * config itself doesn't
+     */
+    public static class Metadata {
+
+        public Long   timestamp;
+        public Long   refresh;
+        public String eTag;
+        public String lastModified;
+    }
+
+    //==============================================================================================
+    // PubnativeConfigStore
+    //==============================================================================================
+
+    /**
+     * Writes the config into the given file, replacing it atomically
+     *
+     * @param file   destination file
+     * @param config valid config
+     *
+     * @return true if the file was written, false if not
+     */
+    public static boolean write(File file, PubnativeConfigModel config) {
+
+        Log.v(TAG, "write");
+        boolean result = false;
+        if (file != null && config != null) {
+            try {
+                ByteArrayOutputStream payloadStream = new ByteArrayOutputStream();
+                DataOutputStream payload = new DataOutputStream(payloadStream);
+                writeConfig(payload, config);
+                payload.flush();
+                result = writeFile(file, MAGIC, payloadStream.toByteArray());
+            } catch (IOException e) {
+                Log.e(TAG, "write - Error: " + e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the config stored in the given file
+     *
+     * @param file file previously written with {@link #write(File, PubnativeConfigModel)}
+     *
+     * @return stored config, null if the file doesn't exist, is corrupted or has another format version
+     */
+    public static PubnativeConfigModel read(File file) {
+
+        Log.v(TAG, "read");
+        PubnativeConfigModel result = null;
+        try {
+            DataInputStream input = readFile(file, MAGIC);
+            if (input != null) {
+                result = readConfig(input);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "read - Error: " + e);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the index of stored app tokens into the given file, replacing it atomically
+     *
+     * @param file  destination file
+     * @param index metadata of every stored app token, in the order it has to be read back
+     *
+     * @return true if the file was written, false if not
+     */
+    public static boolean writeIndex(File file, Map<String, Metadata> index) {
+
+        Log.v(TAG, "writeIndex");
+        boolean result = false;
+        if (file != null && index != null) {
+            try {
+                ByteArrayOutputStream payloadStream = new ByteArrayOutputStream();
+                DataOutputStream payload = new DataOutputStream(payloadStream);
+                payload.writeInt(index.size());
+                for (Map.Entry<String, Metadata> entry : index.entrySet()) {
+                    Metadata metadata = entry.getValue();
+                    writeString(payload, entry.getKey());
+                    writeValue(payload, metadata.timestamp);
+                    writeValue(payload, metadata.refresh);
+                    writeString(payload, metadata.eTag);
+                    writeString(payload, metadata.lastModified);
+                }
+                payload.flush();
+                result = writeFile(file, INDEX_MAGIC, payloadStream.toByteArray());
+            } catch (IOException e) {
+                Log.e(TAG, "writeIndex - Error: " + e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the index stored in the given file
+     *
+     * @param file file previously written with {@link #writeIndex(File, Map)}
+     *
+     * @return stored index in the order it was written, null if the file doesn't exist or is corrupted
+     */
+    public static LinkedHashMap<String, Metadata> readIndex(File file) {
+
+        Log.v(TAG, "readIndex");
+        LinkedHashMap<String, Metadata> result = null;
+        try {
+            DataInputStream input = readFile(file, INDEX_MAGIC);
+            if (input != null) {
+                LinkedHashMap<String, Metadata> index = new LinkedHashMap<String, Metadata>();
+                int size = input.readInt();
+                for (int i = 0; i < size; i++) {
+                    String appToken = readString(input);
+                    Metadata metadata = new Metadata();
+                    metadata.timestamp = (Long) readValue(input);
+                    metadata.refresh = (Long) readValue(input);
+                    metadata.eTag = readString(input);
+                    metadata.lastModified = readString(input);
+                    index.put(appToken, metadata);
+                }
+                result = index;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "readIndex - Error: " + e);
+        }
+        return result;
+    }
+
+    /**
+     * Deletes the stored config file
+     *
+     * @param file file to delete
+     */
+    public static void delete(File file) {
+
+        Log.v(TAG, "delete");
+        if (file != null && file.exists() && !file.delete()) {
+            Log.e(TAG, "delete - Error: unable to delete " + file.getName());
+        }
+    }
+
+    //==============================================================================================
+    // Private
+    //==============================================================================================
+
+    protected static boolean writeFile(File file, int magic, byte[] payloadBytes) throws IOException {
+
+        boolean result = false;
+        File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        FileOutputStream outputStream = null;
+        try {
+            CRC32 checksum = new CRC32();
+            checksum.update(payloadBytes, 0, payloadBytes.length);
+            outputStream = new FileOutputStream(tempFile);
+            DataOutputStream output = new DataOutputStream(outputStream);
+            output.writeInt(magic);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(payloadBytes.length);
+            output.writeLong(checksum.getValue());
+            output.write(payloadBytes);
+            output.flush();
+            outputStream.getFD().sync();
+            outputStream.close();
+            outputStream = null;
+            result = tempFile.renameTo(file);
+            if (!result) {
+                Log.e(TAG, "writeFile - Error: unable to move " + tempFile.getName());
+            }
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "writeFile - Error: " + e);
+                }
+            }
+            if (tempFile.exists() && !tempFile.delete()) {
+                Log.w(TAG, "writeFile - Warning: unable to delete " + tempFile.getName());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return stream positioned at the payload, null if the file doesn't exist, is corrupted or
+     * has another format
+     */
+    protected static DataInputStream readFile(File file, int expectedMagic) throws IOException {
+
+        DataInputStream result = null;
+        if (file != null && file.exists() && file.length() > HEADER_SIZE) {
+            byte[] data = readBytes(file);
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+            int magic = input.readInt();
+            int version = input.readInt();
+            int length = input.readInt();
+            long expectedChecksum = input.readLong();
+            if (magic != expectedMagic || version != FORMAT_VERSION) {
+                Log.w(TAG, "readFile - Warning: unknown format, dropping " + file.getName());
+            } else if (length != data.length - HEADER_SIZE) {
+                Log.w(TAG, "readFile - Warning: truncated file, dropping " + file.getName());
+            } else {
+                CRC32 checksum = new CRC32();
+                checksum.update(data, HEADER_SIZE, length);
+                if (checksum.getValue() == expectedChecksum) {
+                    result = input;
+                } else {
+                    Log.w(TAG, "readFile - Warning: checksum mismatch, dropping " + file.getName());
+                }
+            }
+        }
+        return result;
+    }
+
+    protected static byte[] readBytes(File file) throws IOException {
+
+        byte[] result = new byte[(int) file.length()];
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < result.length) {
+                int read = inputStream.read(result, offset, result.length - offset);
+                if (read == -1) {
+                    throw new IOException("unexpected end of file");
+                }
+                offset += read;
+            }
+        } finally {
+            inputStream.close();
+        }
+        return result;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Models
+    //----------------------------------------------------------------------------------------------
+
+    protected static void writeConfig(DataOutputStream output, PubnativeConfigModel config) throws IOException {
+
+        writeValue(output, config.globals);
+        writeStringMap(output, config.request_params);
+        if (config.networks == null) {
+            output.writeInt(-1);
+        } else {
+            output.writeInt(config.networks.size());
+            for (Map.Entry<String, PubnativeNetworkModel> entry : config.networks.entrySet()) {
+                writeString(output, entry.getKey());
+                writeNetwork(output, entry.getValue());
+            }
+        }
+        if (config.placements == null) {
+            output.writeInt(-1);
+        } else {
+            output.writeInt(config.placements.size());
+            for (Map.Entry<String, PubnativePlacementModel> entry : config.placements.entrySet()) {
+                writeString(output, entry.getKey());
+                writePlacement(output, entry.getValue());
+            }
+        }
+    }
+
+    protected static PubnativeConfigModel readConfig(DataInputStream input) throws IOException {
+
+        PubnativeConfigModel result = new PubnativeConfigModel();
+        result.globals = (Map<String, Object>) readValue(input);
+        result.request_params = readStringMap(input);
+        int networks = input.readInt();
+        if (networks >= 0) {
+            result.networks = new LinkedHashMap<String, PubnativeNetworkModel>();
+            for (int i = 0; i < networks; i++) {
+                result.networks.put(readString(input), readNetwork(input));
+            }
+        }
+        int placements = input.readInt();
+        if (placements >= 0) {
+            result.placements = new LinkedHashMap<String, PubnativePlacementModel>();
+            for (int i = 0; i < placements; i++) {
+                result.placements.put(readString(input), readPlacement(input));
+            }
+        }
+        return result;
+    }
+
+    protected static void writeNetwork(DataOutputStream output, PubnativeNetworkModel network) throws IOException {
+
+        output.writeBoolean(network != null);
+        if (network != null) {
+            writeStringMap(output, network.params);
+            writeString(output, network.adapter);
+            writeValue(output, network.crash_report);
+            writeValue(output, network.timeout == null ? null : network.timeout.longValue());
+        }
+    }
+
+    protected static PubnativeNetworkModel readNetwork(DataInputStream input) throws IOException {
+
+        PubnativeNetworkModel result = null;
+        if (input.readBoolean()) {
+            result = new PubnativeNetworkModel();
+            result.params = readStringMap(input);
+            result.adapter = readString(input);
+            result.crash_report = (Boolean) readValue(input);
+            Long timeout = (Long) readValue(input);
+            result.timeout = timeout == null ? null : timeout.intValue();
+        }
+        return result;
+    }
+
+    protected static void writePlacement(DataOutputStream output, PubnativePlacementModel placement) throws IOException {
+
+        output.writeBoolean(placement != null);
+        if (placement != null) {
+            writeString(output, placement.ad_format_code);
+            if (placement.priority_rules == null) {
+                output.writeInt(-1);
+            } else {
+                output.writeInt(placement.priority_rules.size());
+                for (PubnativePriorityRuleModel rule : placement.priority_rules) {
+                    writePriorityRule(output, rule);
+                }
+            }
+            writeDeliveryRule(output, placement.delivery_rule);
+        }
+    }
+
+    protected static PubnativePlacementModel readPlacement(DataInputStream input) throws IOException {
+
+        PubnativePlacementModel result = null;
+        if (input.readBoolean()) {
+            result = new PubnativePlacementModel();
+            result.ad_format_code = readString(input);
+            int rules = input.readInt();
+            if (rules >= 0) {
+                result.priority_rules = new ArrayList<PubnativePriorityRuleModel>(rules);
+                for (int i = 0; i < rules; i++) {
+                    result.priority_rules.add(readPriorityRule(input));
+                }
+            }
+            result.delivery_rule = readDeliveryRule(input);
+        }
+        return result;
+    }
+
+    protected static void writePriorityRule(DataOutputStream output, PubnativePriorityRuleModel rule) throws IOException {
+
+        output.writeBoolean(rule != null);
+        if (rule != null) {
+            output.writeInt(rule.id);
+            writeString(output, rule.network_code);
+            writeValue(output, rule.params);
+            output.writeBoolean(rule.cache_links);
+            writeIntegerList(output, rule.segment_ids);
+        }
+    }
+
+    protected static PubnativePriorityRuleModel readPriorityRule(DataInputStream input) throws IOException {
+
+        PubnativePriorityRuleModel result = null;
+        if (input.readBoolean()) {
+            result = new PubnativePriorityRuleModel();
+            result.id = input.readInt();
+            result.network_code = readString(input);
+            result.params = (Map<String, Object>) readValue(input);
+            result.cache_links = input.readBoolean();
+            result.segment_ids = readIntegerList(input);
+        }
+        return result;
+    }
+
+    protected static void writeDeliveryRule(DataOutputStream output, PubnativeDeliveryRuleModel rule) throws IOException {
+
+        output.writeBoolean(rule != null);
+        if (rule != null) {
+            output.writeInt(rule.imp_cap_day);
+            output.writeInt(rule.imp_cap_hour);
+            output.writeInt(rule.pacing_cap_hour);
+            output.writeInt(rule.pacing_cap_minute);
+            output.writeBoolean(rule.no_ads);
+            writeIntegerList(output, rule.segment_ids);
+        }
+    }
+
+    protected static PubnativeDeliveryRuleModel readDeliveryRule(DataInputStream input) throws IOException {
+
+        PubnativeDeliveryRuleModel result = null;
+        if (input.readBoolean()) {
+            result = new PubnativeDeliveryRuleModel();
+            result.imp_cap_day = input.readInt();
+            result.imp_cap_hour = input.readInt();
+            result.pacing_cap_hour = input.readInt();
+            result.pacing_cap_minute = input.readInt();
+            result.no_ads = input.readBoolean();
+            result.segment_ids = readIntegerList(input);
+        }
+        return result;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Values
+    //----------------------------------------------------------------------------------------------
+
+    protected static void writeString(DataOutputStream output, String value) throws IOException {
+
+        if (value == null) {
+            output.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    protected static String readString(DataInputStream input) throws IOException {
+
+        String result = null;
+        int length = input.readInt();
+        if (length >= 0) {
+            byte[] bytes = new byte[length];
+            input.readFully(bytes);
+            result = new String(bytes, "UTF-8");
+        }
+        return result;
+    }
+
+    protected static void writeStringMap(DataOutputStream output, Map<String, String> map) throws IOException {
+
+        if (map == null) {
+            output.writeInt(-1);
+        } else {
+            output.writeInt(map.size());
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                writeString(output, entry.getKey());
+                writeString(output, entry.getValue());
+            }
+        }
+    }
+
+    protected static Map<String, String> readStringMap(DataInputStream input) throws IOException {
+
+        Map<String, String> result = null;
+        int size = input.readInt();
+        if (size >= 0) {
+            result = new LinkedHashMap<String, String>();
+            for (int i = 0; i < size; i++) {
+                result.put(readString(input), readString(input));
+            }
+        }
+        return result;
+    }
+
+    protected static void writeIntegerList(DataOutputStream output, List<Integer> list) throws IOException {
+
+        if (list == null) {
+            output.writeInt(-1);
+        } else {
+            output.writeInt(list.size());
+            for (Integer item : list) {
+                output.writeInt(item == null ? 0 : item);
+            }
+        }
+    }
+
+    protected static List<Integer> readIntegerList(DataInputStream input) throws IOException {
+
+        List<Integer> result = null;
+        int size = input.readInt();
+        if (size >= 0) {
+            result = new ArrayList<Integer>(size);
+            for (int i = 0; i < size; i++) {
+                result.add(input.readInt());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes an untyped value as parsed by Gson: strings, numbers, booleans, maps and lists
+     */
+    protected static void writeValue(DataOutputStream output, Object value) throws IOException {
+
+        if (value == null) {
+            output.writeByte(TYPE_NULL);
+        } else if (value instanceof String) {
+            output.writeByte(TYPE_STRING);
+            writeString(output, (String) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(TYPE_BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        } else if (value instanceof Long || value instanceof Integer) {
+            output.writeByte(TYPE_LONG);
+            output.writeLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            // Gson parses every untyped number as Double, keep it that way
+            output.writeByte(TYPE_DOUBLE);
+            output.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            output.writeByte(TYPE_MAP);
+            output.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(output, String.valueOf(entry.getKey()));
+                writeValue(output, entry.getValue());
+            }
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            output.writeByte(TYPE_LIST);
+            output.writeInt(list.size());
+            for (Object item : list) {
+                writeValue(output, item);
+            }
+        } else {
+            throw new IOException("unsupported value type: " + value.getClass().getName());
+        }
+    }
+
+    protected static Object readValue(DataInputStream input) throws IOException {
+
+        Object result;
+        byte type = input.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                result = null;
+                break;
+            case TYPE_STRING:
+                result = readString(input);
+                break;
+            case TYPE_BOOLEAN:
+                result = input.readBoolean();
+                break;
+            case TYPE_LONG:
+                result = input.readLong();
+                break;
+            case TYPE_DOUBLE:
+                result = input.readDouble();
+                break;
+            case TYPE_MAP: {
+                int size = input.readInt();
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                for (int i = 0; i < size; i++) {
+                    map.put(readString(input), readValue(input));
+                }
+                result = map;
+            }
+            break;
+            case TYPE_LIST: {
+                int size = input.readInt();
+                List<Object> list = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(input));
+                }
+                result = list;
+            }
+            break;
+            default:
+                throw new IOException("unknown value type: " + type);
+        }
+        return result;
+    }
+}
@@ -65,6 +65,21 @@ public class PubnativeDeliveryManager {
     // Public
     //----------------------------------------------------------------------------------------------
 
+    /**
+     * Loads the stored impression count data from disk, so it's already in memory when the first ad
+     * request needs it. Meant to be called from a background thread
+     *
+     * @param context valid context object
+     */
+    public static void preload(Context context) {
+
+        Log.v(TAG, "preload");
+        SharedPreferences preferences = getPreferences(context);
+        if (preferences != null) {
+            preferences.getAll();
+        }
+    }
+
     /**
      * Gets the Calendar Object that points to the last pacing update for the given placementID
      *
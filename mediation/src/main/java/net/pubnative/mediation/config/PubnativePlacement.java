@@ -48,6 +48,7 @@ public class PubnativePlacement implements PubnativeConfigManager.Listener {
     protected String                  mPlacementName;
     protected PubnativePlacementModel mPlacementModel;
     protected PubnativeConfigModel    mConfigModel;
+    protected PubnativePlacementPlan  mPlan;
     protected int                     mCurrentNetworkIndex;
 
     /**
@@ -179,6 +180,21 @@ public class PubnativePlacement implements PubnativeConfigManager.Listener {
         return mPlacementName;
     }
 
+    /**
+     * Gets the current waterfall step of the placement plan
+     *
+     * @return valid PubnativePlacementPlan.Step, null if there are no more
+     */
+    public PubnativePlacementPlan.Step currentStep() {
+
+        Log.v(TAG, "currentStep");
+        PubnativePlacementPlan.Step result = null;
+        if (mPlan != null) {
+            result = mPlan.getStep(mCurrentNetworkIndex);
+        }
+        return result;
+    }
+
     /**
      * Gets the current priority model
      *
@@ -188,8 +204,9 @@ public class PubnativePlacement implements PubnativeConfigManager.Listener {
 
         Log.v(TAG, "currentPriority");
         PubnativePriorityRuleModel result = null;
-        if (mPlacementName != null) {
-            result = mPlacementModel.getPriorityRule(mCurrentNetworkIndex);
+        PubnativePlacementPlan.Step step = currentStep();
+        if (step != null) {
+            result = step.priority;
         }
         return result;
     }
@@ -203,9 +220,9 @@ public class PubnativePlacement implements PubnativeConfigManager.Listener {
 
         Log.v(TAG, "currentNetwork");
         PubnativeNetworkModel result = null;
-        PubnativePriorityRuleModel rule = currentPriority();
-        if (rule != null) {
-            result = mConfigModel.getNetwork(rule.network_code);
+        PubnativePlacementPlan.Step step = currentStep();
+        if (step != null) {
+            result = step.network;
         }
         return result;
     }
@@ -241,6 +258,7 @@ public class PubnativePlacement implements PubnativeConfigManager.Listener {
             } else if (isFrequencyCapActive()) {
                 invokeOnLoadFail(PubnativeException.PLACEMENT_FREQUENCY_CAP);
             } else {
+                mPlan = PubnativeConfigManager.getPlacementPlan(mConfigModel, mPlacementName);
                 invokeOnReady(isPacingCapActive());
             }
         }
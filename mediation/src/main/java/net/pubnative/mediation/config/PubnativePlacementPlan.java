@@ -0,0 +1,151 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.config;
+
+import net.pubnative.mediation.adapter.PubnativeNetworkHub;
+import net.pubnative.mediation.adapter.PubnativeNetworkHubFactory;
+import net.pubnative.mediation.config.model.PubnativeConfigModel;
+import net.pubnative.mediation.config.model.PubnativeNetworkModel;
+import net.pubnative.mediation.config.model.PubnativePlacementModel;
+import net.pubnative.mediation.config.model.PubnativePriorityRuleModel;
+
+import java.lang.reflect.Constructor;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable execution plan of a placement, compiled once per config so the waterfall
+ * steps by index without looking up networks or resolving adapter classes
+ */
+public class PubnativePlacementPlan {
+
+    public final String                  placementName;
+    public final PubnativePlacementModel placement;
+    protected final Step[]               mSteps;
+
+    /**
+     * Single waterfall step of the plan
+     */
+    public static class Step {
+
+        public final PubnativePriorityRuleModel                 priority;
+        public final PubnativeNetworkModel                      network;
+        public final Constructor<? extends PubnativeNetworkHub> hubConstructor;
+        public final Integer                                    timeout;
+        public final boolean                                    cacheLinks;
+
+        protected Step(PubnativePriorityRuleModel priority, PubnativeNetworkModel network) {
+
+            this.priority = priority;
+            this.network = network;
+            this.hubConstructor = PubnativeNetworkHubFactory.getHubConstructor(network);
+            this.timeout = network == null ? null : network.timeout;
+            this.cacheLinks = priority != null && priority.cache_links;
+        }
+    }
+
+    //==============================================================================================
+    // PubnativePlacementPlan
+    //==============================================================================================
+
+    protected PubnativePlacementPlan(String placementName, PubnativePlacementModel placement, Step[] steps) {
+
+        this.placementName = placementName;
+        this.placement = placement;
+        mSteps = steps;
+    }
+
+    /**
+     * Gets the amount of steps in this plan
+     *
+     * @return number of waterfall steps
+     */
+    public int size() {
+
+        return mSteps.length;
+    }
+
+    /**
+     * Gets the step at the given waterfall position
+     *
+     * @param index waterfall position
+     *
+     * @return valid Step, null if the index is out of the plan
+     */
+    public Step getStep(int index) {
+
+        Step result = null;
+        if (index >= 0 && index < mSteps.length) {
+            result = mSteps[index];
+        }
+        return result;
+    }
+
+    /**
+     * Compiles the plans for every placement in the given config
+     *
+     * @param config valid config model
+     *
+     * @return unmodifiable map of placement name to plan, empty if there are no placements
+     */
+    public static Map<String, PubnativePlacementPlan> compile(PubnativeConfigModel config) {
+
+        Map<String, PubnativePlacementPlan> result = new HashMap<String, PubnativePlacementPlan>();
+        if (config != null && config.placements != null) {
+            for (String placementName : config.placements.keySet()) {
+                PubnativePlacementPlan plan = compile(config, placementName);
+                if (plan != null) {
+                    result.put(placementName, plan);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Compiles the plan for a single placement of the given config
+     *
+     * @param config        valid config model
+     * @param placementName placement to compile
+     *
+     * @return valid plan, null if the placement doesn't exist
+     */
+    public static PubnativePlacementPlan compile(PubnativeConfigModel config, String placementName) {
+
+        PubnativePlacementPlan result = null;
+        PubnativePlacementModel placement = config == null ? null : config.getPlacement(placementName);
+        if (placement != null) {
+            int size = placement.priority_rules == null ? 0 : placement.priority_rules.size();
+            Step[] steps = new Step[size];
+            for (int i = 0; i < size; i++) {
+                PubnativePriorityRuleModel priority = placement.priority_rules.get(i);
+                PubnativeNetworkModel network = priority == null ? null : config.getNetwork(priority.network_code);
+                steps[i] = new Step(priority, network);
+            }
+            result = new PubnativePlacementPlan(placementName, placement, steps);
+        }
+        return result;
+    }
+}
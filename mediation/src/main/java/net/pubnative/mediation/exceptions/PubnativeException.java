@@ -54,6 +54,10 @@ public class PubnativeException extends Exception {
     public static final PubnativeException NETWORK_NO_INTERNET             = new PubnativeException(5001, "Internet connection is not available");
     public static final PubnativeException NETWORK_INVALID_RESPONSE        = new PubnativeException(5002, "Invalid response from server");
     public static final PubnativeException NETWORK_INVALID_STATUS_CODE     = new PubnativeException(5003, "Invalid status code from server");
+    public static final PubnativeException NETWORK_QUEUE_FULL              = new PubnativeException(5004, "Too many network operations queued");
+    public static final PubnativeException NETWORK_DEADLINE_EXCEEDED       = new PubnativeException(5005, "Request didn't finish before its deadline");
+    public static final PubnativeException NETWORK_CIRCUIT_OPEN            = new PubnativeException(5006, "Host disabled for a while after repeated failures");
+    public static final PubnativeException NETWORK_RESPONSE_TOO_LARGE      = new PubnativeException(5007, "Response body is bigger than the allowed size");
     //==============================================================================================
     // FeedBanner Exceptions
     //==============================================================================================
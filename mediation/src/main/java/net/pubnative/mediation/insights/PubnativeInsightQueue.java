@@ -0,0 +1,516 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.insights;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Durable FIFO queue of byte records stored as an append-only log split in segment files.
+ * Every record is written as [length][crc32][payload] with a single write at the end of the
+ * newest segment, so enqueue cost doesn't depend on the queue size, and a record torn by a
+ * crash is detected and cut on the next open. Dequeue only moves a persisted read cursor,
+ * segments are deleted once the cursor leaves them and everything is reset when the queue
+ * gets empty.
+ */
+public class PubnativeInsightQueue {
+
+    private static final   String TAG             = PubnativeInsightQueue.class.getSimpleName();
+    protected static final String SEGMENT_SUFFIX  = ".log";
+    protected static final String CURSOR_FILE     = "cursor";
+    protected static final int    RECORD_HEADER   = 4 + 4;
+    protected static final int    CURSOR_SIZE     = 8 + 8 + 8;
+    protected static final int    MAX_RECORD_SIZE = 1024 * 1024; // 1 MB
+    protected static final int    SEGMENT_SIZE    = 64 * 1024; // 64 KB
+    //==============================================================================================
+    // Properties
+    //==============================================================================================
+    protected File             mDirectory;
+    protected LinkedList<Long> mSegments     = new LinkedList<Long>();
+    protected long             mNextSegment  = 0;
+    protected int              mSize         = 0;
+    protected long             mBytes        = 0;
+    // Read cursor
+    protected long             mHeadOffset   = 0;
+    protected RandomAccessFile mReader       = null;
+    protected RandomAccessFile mCursorFile   = null;
+    // Writer
+    protected long             mTailLength   = 0;
+    protected FileOutputStream mWriter       = null;
+    protected long             mSegmentSize  = SEGMENT_SIZE;
+    protected boolean          mOpen         = false;
+    protected long             mWrittenBytes = 0; // Segment and cursor bytes written since opened
+
+    //==============================================================================================
+    // PubnativeInsightQueue
+    //==============================================================================================
+
+    /**
+     * Creates a queue stored in the given directory, records left by a previous process are
+     * recovered on the first access
+     *
+     * @param directory directory owned by this queue
+     */
+    public PubnativeInsightQueue(File directory) {
+
+        mDirectory = directory;
+    }
+
+    /**
+     * Appends a record at the end of the queue
+     *
+     * @param record record bytes
+     *
+     * @return true if the record was stored, false if not
+     */
+    public synchronized boolean enqueue(byte[] record) {
+
+        Log.v(TAG, "enqueue");
+        boolean result = false;
+        if (record != null && record.length <= MAX_RECORD_SIZE && open()) {
+            try {
+                if (mWriter == null || mTailLength >= mSegmentSize) {
+                    rollSegment();
+                }
+                CRC32 checksum = new CRC32();
+                checksum.update(record, 0, record.length);
+                byte[] data = new byte[RECORD_HEADER + record.length];
+                writeInt(data, 0, record.length);
+                writeInt(data, 4, (int) checksum.getValue());
+                System.arraycopy(record, 0, data, RECORD_HEADER, record.length);
+                // Single write, a crash can only leave a torn record at the very end
+                mWriter.write(data);
+                mWrittenBytes += data.length;
+                mTailLength += data.length;
+                mSize++;
+                mBytes += record.length;
+                result = true;
+            } catch (IOException e) {
+                Log.e(TAG, "enqueue - Error: " + e);
+                // The tail may end with a partial record now, continue in a new segment
+                closeWriter();
+                mTailLength = mSegmentSize;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the first record of the queue
+     *
+     * @return record bytes, null if the queue is empty
+     */
+    public synchronized byte[] dequeue() {
+
+        Log.v(TAG, "dequeue");
+        byte[] result = next();
+        if (result != null) {
+            mHeadOffset += RECORD_HEADER + result.length;
+            mSize--;
+            mBytes -= result.length;
+            if (mSize == 0) {
+                compact();
+            } else {
+                writeCursor();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the first record of the queue without removing it
+     *
+     * @return record bytes, null if the queue is empty
+     */
+    public synchronized byte[] peek() {
+
+        Log.v(TAG, "peek");
+        return next();
+    }
+
+    /**
+     * @return amount of records in the queue
+     */
+    public synchronized int size() {
+
+        Log.v(TAG, "size");
+        int result = 0;
+        if (open()) {
+            result = mSize;
+        }
+        return result;
+    }
+
+    /**
+     * @return size of the records in the queue, not counting the file overhead
+     */
+    public synchronized long byteSize() {
+
+        Log.v(TAG, "byteSize");
+        long result = 0;
+        if (open()) {
+            result = mBytes;
+        }
+        return result;
+    }
+
+    /**
+     * Removes every record and the queue files
+     */
+    public synchronized void clear() {
+
+        Log.v(TAG, "clear");
+        if (open()) {
+            compact();
+        }
+    }
+
+    /**
+     * Releases the open files, the queue reopens them on the next access
+     */
+    public synchronized void close() {
+
+        Log.v(TAG, "close");
+        closeReader();
+        closeWriter();
+        closeFile(mCursorFile);
+        mCursorFile = null;
+        mSegments.clear();
+        mSize = 0;
+        mBytes = 0;
+        mOpen = false;
+    }
+
+    //==============================================================================================
+    // Private
+    //==============================================================================================
+
+    protected boolean open() {
+
+        if (!mOpen && mDirectory != null) {
+            if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                Log.e(TAG, "open - Error: unable to create " + mDirectory.getPath());
+            } else {
+                try {
+                    mCursorFile = new RandomAccessFile(new File(mDirectory, CURSOR_FILE), "rw");
+                    recover();
+                    mOpen = true;
+                } catch (IOException e) {
+                    Log.e(TAG, "open - Error: " + e);
+                    close();
+                }
+            }
+        }
+        return mOpen;
+    }
+
+    protected void recover() throws IOException {
+
+        Log.v(TAG, "recover");
+        List<Long> segments = listSegments();
+        long headSegment = -1;
+        long headOffset = 0;
+        // Cursor: segment, offset and a check value so a torn cursor write is ignored
+        if (mCursorFile.length() >= CURSOR_SIZE) {
+            mCursorFile.seek(0);
+            long segment = mCursorFile.readLong();
+            long offset = mCursorFile.readLong();
+            if (mCursorFile.readLong() == (segment ^ ~offset)) {
+                headSegment = segment;
+                headOffset = offset;
+            }
+        }
+        mSegments.clear();
+        mNextSegment = Math.max(headSegment, 0);
+        for (Long segment : segments) {
+            if (segment < headSegment) {
+                // Consumed before the previous process could delete it
+                deleteSegment(segment);
+            } else {
+                mSegments.add(segment);
+                mNextSegment = Math.max(mNextSegment, segment + 1);
+            }
+        }
+        if (mSegments.isEmpty()
+            || mSegments.getFirst() != headSegment
+            || headOffset > getSegmentFile(headSegment).length()) {
+            // Unknown position, start over from the oldest record and deliver it again
+            headOffset = 0;
+        }
+        mHeadOffset = headOffset;
+        mSize = 0;
+        mBytes = 0;
+        for (Long segment : mSegments) {
+            boolean isTail = segment.equals(mSegments.getLast());
+            long start = segment.equals(mSegments.getFirst()) ? mHeadOffset : 0;
+            mSize += countRecords(segment, start, isTail);
+        }
+    }
+
+    protected int countRecords(long segment, long start, boolean truncate) throws IOException {
+
+        int result = 0;
+        RandomAccessFile file = new RandomAccessFile(getSegmentFile(segment), "rw");
+        try {
+            long offset = start;
+            int length;
+            while ((length = checkRecord(file, offset)) >= 0) {
+                offset += RECORD_HEADER + length;
+                mBytes += length;
+                result++;
+            }
+            if (truncate && offset < file.length()) {
+                Log.w(TAG, "recover - Warning: cutting torn record at the end of the queue");
+                file.setLength(offset);
+            }
+            if (truncate) {
+                mTailLength = offset;
+            }
+        } finally {
+            file.close();
+        }
+        return result;
+    }
+
+    /**
+     * @return length of the valid record at the given offset, -1 if there is no valid record
+     */
+    protected int checkRecord(RandomAccessFile file, long offset) throws IOException {
+
+        int result = -1;
+        byte[] payload = readRecord(file, offset);
+        if (payload != null) {
+            result = payload.length;
+        }
+        return result;
+    }
+
+    /**
+     * @return record at the read cursor, skipping finished segments, null if there is none
+     */
+    protected byte[] next() {
+
+        byte[] result = null;
+        if (open()) {
+            while (result == null && mSize > 0 && !mSegments.isEmpty()) {
+                result = readRecord();
+                if (result == null) {
+                    if (mSegments.size() > 1) {
+                        // End of the head segment, nothing else will be read from it
+                        dropHeadSegment();
+                    } else {
+                        Log.w(TAG, "next - Warning: queue file ended before the expected size");
+                        compact();
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    protected byte[] readRecord() {
+
+        byte[] result = null;
+        try {
+            if (mReader == null) {
+                mReader = new RandomAccessFile(getSegmentFile(mSegments.getFirst()), "r");
+            }
+            result = readRecord(mReader, mHeadOffset);
+        } catch (IOException e) {
+            Log.e(TAG, "readRecord - Error: " + e);
+            closeReader();
+        }
+        return result;
+    }
+
+    protected byte[] readRecord(RandomAccessFile file, long offset) throws IOException {
+
+        byte[] result = null;
+        if (offset + RECORD_HEADER <= file.length()) {
+            file.seek(offset);
+            int length = file.readInt();
+            int expectedChecksum = file.readInt();
+            if (length >= 0 && length <= MAX_RECORD_SIZE && offset + RECORD_HEADER + length <= file.length()) {
+                byte[] payload = new byte[length];
+                file.readFully(payload);
+                CRC32 checksum = new CRC32();
+                checksum.update(payload, 0, length);
+                if ((int) checksum.getValue() == expectedChecksum) {
+                    result = payload;
+                }
+            }
+        }
+        return result;
+    }
+
+    protected void writeCursor() {
+
+        try {
+            long segment = mSegments.isEmpty() ? mNextSegment : mSegments.getFirst();
+            byte[] data = new byte[CURSOR_SIZE];
+            writeLong(data, 0, segment);
+            writeLong(data, 8, mHeadOffset);
+            writeLong(data, 16, segment ^ ~mHeadOffset);
+            mCursorFile.seek(0);
+            mCursorFile.write(data);
+            mWrittenBytes += data.length;
+        } catch (IOException e) {
+            Log.e(TAG, "writeCursor - Error: " + e);
+        }
+    }
+
+    protected void rollSegment() throws IOException {
+
+        Log.v(TAG, "rollSegment");
+        if (mWriter != null) {
+            // The segment won't be written anymore, make it durable once
+            mWriter.getFD().sync();
+            closeWriter();
+        }
+        if (mSegments.isEmpty() || mTailLength >= mSegmentSize) {
+            mSegments.add(mNextSegment);
+            mNextSegment++;
+            mTailLength = 0;
+            if (mSegments.size() == 1) {
+                mHeadOffset = 0;
+                writeCursor();
+            }
+        }
+        // else reopen the tail segment left by a previous process
+        mWriter = new FileOutputStream(getSegmentFile(mSegments.getLast()), true);
+    }
+
+    protected void dropHeadSegment() {
+
+        Log.v(TAG, "dropHeadSegment");
+        closeReader();
+        long segment = mSegments.removeFirst();
+        mHeadOffset = 0;
+        writeCursor();
+        deleteSegment(segment);
+    }
+
+    protected void compact() {
+
+        Log.v(TAG, "compact");
+        closeReader();
+        closeWriter();
+        for (Long segment : mSegments) {
+            deleteSegment(segment);
+        }
+        mSegments.clear();
+        mSize = 0;
+        mBytes = 0;
+        mHeadOffset = 0;
+        mTailLength = 0;
+        // The next record starts a fresh segment, the cursor already points at its beginning
+        writeCursor();
+    }
+
+    protected List<Long> listSegments() {
+
+        List<Long> result = new ArrayList<Long>();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        result.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "listSegments - Warning: unknown file " + name);
+                    }
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    protected File getSegmentFile(long segment) {
+
+        return new File(mDirectory, String.format(Locale.US, "%016d", segment) + SEGMENT_SUFFIX);
+    }
+
+    protected void deleteSegment(long segment) {
+
+        File file = getSegmentFile(segment);
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "deleteSegment - Error: unable to delete " + file.getName());
+        }
+    }
+
+    protected void closeReader() {
+
+        closeFile(mReader);
+        mReader = null;
+    }
+
+    protected void closeWriter() {
+
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "closeWriter - Error: " + e);
+            }
+        }
+        mWriter = null;
+    }
+
+    protected static void closeFile(RandomAccessFile file) {
+
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.e(TAG, "closeFile - Error: " + e);
+            }
+        }
+    }
+
+    protected static void writeInt(byte[] data, int offset, int value) {
+
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    protected static void writeLong(byte[] data, int offset, long value) {
+
+        writeInt(data, offset, (int) (value >>> 32));
+        writeInt(data, offset + 4, (int) value);
+    }
+}
@@ -26,45 +26,136 @@ package net.pubnative.mediation.insights;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+
 
 import net.pubnative.mediation.exceptions.PubnativeException;
 import net.pubnative.mediation.insights.model.PubnativeInsightDataModel;
+import net.pubnative.mediation.insights.model.PubnativeInsightHeaderModel;
 import net.pubnative.mediation.insights.model.PubnativeInsightRequestModel;
 import net.pubnative.mediation.insights.model.PubnativeInsightsAPIResponseModel;
 import net.pubnative.mediation.network.PubnativeHttpRequest;
+import net.pubnative.mediation.network.PubnativeHttpTransport;
+import net.pubnative.mediation.network.PubnativeNetworkExecutor;
+import net.pubnative.mediation.network.PubnativePreconnector;
+import net.pubnative.mediation.network.PubnativeRetryPolicy;
+import net.pubnative.mediation.utils.PubnativeConnectivityMonitor;
+import net.pubnative.mediation.utils.PubnativeDeviceUtils;
 import net.pubnative.mediation.utils.PubnativeStringUtils;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 public class PubnativeInsightsManager {
 
-    private static         String  TAG                      = PubnativeInsightsManager.class.getSimpleName();
-    protected static final String  INSIGHTS_PREFERENCES_KEY = "net.pubnative.mediation.tracking.PubnativeInsightsManager";
-    protected static final String  INSIGHTS_PENDING_DATA    = "pending_data";
-    protected static final String  INSIGHTS_FAILED_DATA     = "failed_data";
-    protected static       boolean sIdle                    = true;
+    private static         String                                   TAG                       = PubnativeInsightsManager.class.getSimpleName();
+    protected static final String                                   INSIGHTS_PREFERENCES_KEY  = "net.pubnative.mediation.tracking.PubnativeInsightsManager";
+    protected static final String                                   INSIGHTS_PENDING_DATA     = "pending_data";
+    protected static final String                                   INSIGHTS_FAILED_DATA      = "failed_data";
+    protected static final String                                   INSIGHTS_QUEUE_DIRECTORY  = "pubnative_insights";
+    protected static final String                                   CHARSET_UTF8              = "UTF-8";
+    protected static final Map<String, PubnativeInsightQueue>       sQueues                   = new HashMap<String, PubnativeInsightQueue>();
+    protected static       boolean                                  sGzipRequests             = false;
+    protected static       PubnativeHttpTransport                   sTransport                = null;
+    // Batch upload
+    protected static final int                                      DEFAULT_BATCH_EVENTS      = 50;
+    protected static final int                                      DEFAULT_BATCH_BYTES       = 64 * 1024; // 64 KB
+    protected static final long                                     DEFAULT_BATCH_AGE         = TimeUnit.SECONDS.toMillis(30);
+    protected static       boolean                                  sBatchUpload              = false;
+    protected static       int                                      sBatchMaxEvents           = DEFAULT_BATCH_EVENTS;
+    protected static       int                                      sBatchMaxBytes            = DEFAULT_BATCH_BYTES;
+    protected static       long                                     sBatchMaxAge              = DEFAULT_BATCH_AGE;
+    protected static       boolean                                  sFlushRequested           = false;
+    protected static final String                                   WORKER_THREAD_NAME        = "PubnativeInsights";
+    protected static final Object                                   HANDLER_LOCK              = new Object();
+    protected static       Handler                                  sHandler                  = null;
+    protected static       Runnable                                 sFlushRunnable            = null;
+    protected static       boolean                                  sCompactBatches           = false;
+    // Session fields stored once for all the events
+    protected static final String                                   INSIGHTS_HEADERS_FILE     = "headers";
+    protected static final String                                   HEADERS_TEMP_SUFFIX       = ".tmp";
+    protected static final int                                      MAX_HEADERS               = 16;
+    protected static       Map<String, PubnativeInsightHeaderModel> sHeaders                  = null;
+    protected static       File                                     sHeadersFile              = null;
+    // Dispatch
+    protected static final int                                      DEFAULT_MAX_REQUESTS      = 4;
+    protected static final int                                      DEFAULT_MAX_HOST_REQUESTS = 2;
+    protected static final int                                      MAX_PARKED                = 4;
+    protected static       int                                      sMaxRequests              = DEFAULT_MAX_REQUESTS;
+    protected static       int                                      sMaxHostRequests          = DEFAULT_MAX_HOST_REQUESTS;
+    protected static       int                                      sInFlight                 = 0;
+    protected static final Map<String, Integer>                     sHostInFlight             = new HashMap<String, Integer>();
+    protected static final LinkedList<Dispatch>                     sParked                   = new LinkedList<Dispatch>();
+    // Drain stats
+    protected static       long                                     sDrainedCount             = 0;
+    protected static       long                                     sBusyTime                 = 0;
+    protected static       long                                     sBusySince                = 0;
+    // Event retries
+    protected static final PubnativeRetryPolicy                     DEFAULT_EVENT_RETRY       = new PubnativeRetryPolicy(5, TimeUnit.MINUTES.toMillis(1), TimeUnit.HOURS.toMillis(1));
+    protected static final long                                     DEFAULT_EVENT_TTL         = TimeUnit.DAYS.toMillis(1);
+    protected static final long                                     DEFAULT_STORAGE_BUDGET    = 512 * 1024; // 512 KB
+    protected static       PubnativeRetryPolicy                     sEventRetryPolicy         = DEFAULT_EVENT_RETRY;
+    protected static       long                                     sEventTimeToLive          = DEFAULT_EVENT_TTL;
+    protected static       long                                     sStorageBudget            = DEFAULT_STORAGE_BUDGET;
+    protected static       long                                     sNextRetryTimestamp       = 0;
+    protected static       Runnable                                 sRetryRunnable            = null;
+    protected static       long                                     sScheduledRetryTimestamp  = Long.MAX_VALUE;
+    protected static       PubnativeConnectivityMonitor.Listener    sNetworkListener          = null;
+    protected static final long[]                                   sDroppedCount             = new long[DropReason.values().length];
+
+    /**
+     * Reasons to drop an event without sending it
+     */
+    public enum DropReason {
+        // Stored data can't be parsed or has no url
+        INVALID,
+        // Older than the event time to live
+        EXPIRED,
+        // Failed as many times as the event retry policy allows
+        MAX_ATTEMPTS,
+        // Oldest stored event, removed to keep the queues inside the storage budget
+        STORAGE_BUDGET
+    }
 
     //==============================================================================================
     // PubnativeInsightsManager
     //==============================================================================================
 
     /**
-     * Queues impression/click tracking data and sends it to pubnative server.
+     * Queues impression/click tracking data and sends it to pubnative server. The data is stored
+     * and sent from the insights thread, so this can be called from the main thread.
      *
      * @param context   valid Context object
      * @param baseURL   the base URL of the tracking server
      * @param extras    added parameters that will be included as querystring parameters
      * @param dataModel PubnativeInsightDataModel object with values filled in.
      */
-    public synchronized static void trackData(Context context, String baseURL, Map<String, String> extras, PubnativeInsightDataModel dataModel) {
+    public static void trackData(Context context, String baseURL, Map<String, String> extras, PubnativeInsightDataModel dataModel) {
 
         Log.v(TAG, "trackData");
         if (context == null) {
@@ -82,111 +173,790 @@ public class PubnativeInsightsManager {
                 }
             }
             dataModel.generated_at = System.currentTimeMillis()*1000;
-            PubnativeInsightRequestModel model = new PubnativeInsightRequestModel(uriBuilder.build().toString(), dataModel);
-            // Enqueue failed
-            List<PubnativeInsightRequestModel> failedList = getTrackingList(context, INSIGHTS_FAILED_DATA);
-            enqueueInsightList(context, INSIGHTS_PENDING_DATA, failedList);
-            setTrackingList(context, INSIGHTS_FAILED_DATA, null);
-            // Enqueue current
-            enqueueInsightItem(context, INSIGHTS_PENDING_DATA, model);
-            // Start tracking
-            trackNext(context);
+            // Callers keep filling the same data model for their next events
+            Gson gson = new Gson();
+            PubnativeInsightDataModel dataCopy = gson.fromJson(gson.toJsonTree(dataModel), PubnativeInsightDataModel.class);
+            final PubnativeInsightRequestModel model = new PubnativeInsightRequestModel(uriBuilder.build().toString(), dataCopy);
+            final Context appContext = context.getApplicationContext() == null ? context : context.getApplicationContext();
+            // The queue is stored in disk, keep the caller thread free of file access
+            getHandler().post(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    // Enqueue current
+                    enqueueInsightItem(appContext, INSIGHTS_PENDING_DATA, model);
+                    // Start tracking
+                    trackNext(appContext);
+                }
+            });
+        }
+    }
+
+    /**
+     * Enables gzip compression of the tracking POST bodies, which repeat the same field names
+     * and device strings and compress very well. Disabled by default
+     *
+     * @param enabled true to send Content-Encoding: gzip bodies
+     */
+    public static void setGzipRequests(boolean enabled) {
+
+        Log.v(TAG, "setGzipRequests: " + enabled);
+        sGzipRequests = enabled;
+    }
+
+    /**
+     * Sets the transport used to send the tracking data
+     *
+     * @param transport valid transport, null to use the PubnativeHttpRequest default one
+     */
+    public static void setTransport(PubnativeHttpTransport transport) {
+
+        Log.v(TAG, "setTransport");
+        sTransport = transport;
+    }
+
+    /**
+     * Warms up in background the given tracking hosts with the transport used for tracking
+     *
+     * @param context valid context object
+     * @param urls    tracking URLs that are going to be requested
+     */
+    public static void preconnect(Context context, Collection<String> urls) {
+
+        Log.v(TAG, "preconnect");
+        PubnativePreconnector.preconnect(context, urls, sTransport);
+    }
+
+    /**
+     * Enables sending the pending events in batches, as a JSON array of events in a single POST
+     * to their tracking URL, instead of one request per event. The tracking server must accept
+     * batches. Disabled by default
+     *
+     * @param enabled true to upload in batches
+     */
+    public static void setBatchUpload(boolean enabled) {
+
+        Log.v(TAG, "setBatchUpload: " + enabled);
+        sBatchUpload = enabled;
+    }
+
+    /**
+     * Enables the compact batch format: the session fields that are the same for every event,
+     * like app, device and user info, are sent once as {"header": {...}, "events": [...]}
+     * instead of repeated in every event. The tracking server must accept this format.
+     * Disabled by default
+     *
+     * @param enabled true to send compact batches
+     */
+    public static void setCompactBatches(boolean enabled) {
+
+        Log.v(TAG, "setCompactBatches: " + enabled);
+        sCompactBatches = enabled;
+    }
+
+    /**
+     * Sets when a batch is sent: as soon as there are enough events, enough stored bytes, or the
+     * oldest pending event is old enough, whatever happens first
+     *
+     * @param maxEvents      maximum amount of events in one batch
+     * @param maxBytes       maximum size of the stored events in one batch
+     * @param maxAgeInMillis maximum time an event waits for its batch to fill
+     */
+    public static void setBatchLimits(int maxEvents, int maxBytes, long maxAgeInMillis) {
+
+        Log.v(TAG, "setBatchLimits");
+        sBatchMaxEvents = Math.max(1, maxEvents);
+        sBatchMaxBytes = Math.max(1, maxBytes);
+        sBatchMaxAge = Math.max(0, maxAgeInMillis);
+    }
+
+    /**
+     * Sends all the pending events now without waiting for the batches to fill. Call it from the
+     * onPause() of your activities so nothing waits in the queue while the app is in background.
+     *
+     * @param context valid context object
+     */
+    public static void flush(final Context context) {
+
+        Log.v(TAG, "flush");
+        if (context == null) {
+            Log.e(TAG, "flush - context can't be null. Dropping call");
+        } else {
+            getHandler().post(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    synchronized (PubnativeInsightsManager.class) {
+                        sFlushRequested = true;
+                    }
+                    trackNext(context);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets how many tracking requests can run at the same time. The next request for a host that
+     * is at its limit waits aside, so requests for other hosts queued behind it can start. Events
+     * for the same host start in the order they were tracked, use 1 request per host to also
+     * finish them in order.
+     * Defaults are 4 requests and 2 per host
+     *
+     * @param maxRequests     maximum amount of requests running at once
+     * @param maxHostRequests maximum amount of requests running at once to the same host
+     */
+    public synchronized static void setMaxConcurrentRequests(int maxRequests, int maxHostRequests) {
+
+        Log.v(TAG, "setMaxConcurrentRequests");
+        sMaxRequests = Math.max(1, maxRequests);
+        sMaxHostRequests = Math.max(1, maxHostRequests);
+    }
+
+    /**
+     * Sets how many times an event is sent before it's dropped and how long a failed event waits
+     * before it's sent again. Default is 5 attempts waiting from 1 minute up to 1 hour
+     *
+     * @param retryPolicy valid policy, null to drop events at the first failure
+     */
+    public synchronized static void setEventRetryPolicy(PubnativeRetryPolicy retryPolicy) {
+
+        Log.v(TAG, "setEventRetryPolicy");
+        sEventRetryPolicy = retryPolicy == null ? PubnativeRetryPolicy.NONE : retryPolicy;
+    }
+
+    /**
+     * Sets how long an event is kept since it was generated, older events are dropped instead
+     * of sent. Default is 1 day
+     *
+     * @param timeToLiveInMillis time in milliseconds
+     */
+    public synchronized static void setEventTimeToLive(long timeToLiveInMillis) {
+
+        Log.v(TAG, "setEventTimeToLive");
+        sEventTimeToLive = timeToLiveInMillis;
+    }
+
+    /**
+     * Sets the maximum size of the stored events, pending and failed together. The oldest
+     * events are dropped to make room for new ones. Default is 512 KB
+     *
+     * @param budgetInBytes size in bytes
+     */
+    public synchronized static void setStorageBudget(long budgetInBytes) {
+
+        Log.v(TAG, "setStorageBudget");
+        sStorageBudget = budgetInBytes;
+    }
+
+    /**
+     * @param reason reason of the drop
+     *
+     * @return amount of events dropped for the given reason since the app started
+     */
+    public synchronized static long getDroppedCount(DropReason reason) {
+
+        Log.v(TAG, "getDroppedCount");
+        return sDroppedCount[reason.ordinal()];
+    }
+
+    /**
+     * @return amount of events sent to the server, successfully or not, since the app started
+     */
+    public synchronized static long getDrainedCount() {
+
+        Log.v(TAG, "getDrainedCount");
+        return sDrainedCount;
+    }
+
+    /**
+     * Speed at which the queue is sent while there are tracking requests running
+     *
+     * @return events per second, 0 if nothing was sent yet
+     */
+    public synchronized static double getDrainThroughput() {
+
+        Log.v(TAG, "getDrainThroughput");
+        double result = 0;
+        long busyTime = sBusyTime;
+        if (sInFlight > 0) {
+            busyTime += System.currentTimeMillis() - sBusySince;
+        }
+        if (busyTime > 0) {
+            result = sDrainedCount * 1000.0 / busyTime;
         }
+        return result;
+    }
+
+    /**
+     * Loads the stored insights data from disk, so it's already in memory when the first ad
+     * request needs it. Meant to be called from a background thread
+     *
+     * @param context valid context object
+     */
+    public static void preload(Context context) {
+
+        Log.v(TAG, "preload");
+        // Opening the queues recovers them and imports data left in the old preferences lists
+        getQueue(context, INSIGHTS_PENDING_DATA);
+        getQueue(context, INSIGHTS_FAILED_DATA);
     }
 
     //==============================================================================================
     // WORKFLOW
     //==============================================================================================
 
+    /**
+     * Handler of the insights thread, all the queue work runs there in order
+     */
+    protected static Handler getHandler() {
+
+        Handler result;
+        // Not the class lock, the insights thread holds it during file access and trackData
+        // is called from the main thread
+        synchronized (HANDLER_LOCK) {
+            if (sHandler == null) {
+                HandlerThread thread = new HandlerThread(WORKER_THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                sHandler = new Handler(thread.getLooper());
+            }
+            result = sHandler;
+        }
+        return result;
+    }
+
     protected synchronized static void trackNext(final Context context) {
 
         Log.v(TAG, "trackNext");
         if (context == null) {
             Log.e(TAG, "trackNext - context can't be null. Dropping call");
-        } else if (sIdle) {
-            sIdle = false;
-            final PubnativeInsightRequestModel model = dequeueInsightItem(context, INSIGHTS_PENDING_DATA);
-            if (model == null) {
-                Log.w(TAG, "trackNext - Dequeued item is null. Dropping call");
-                sIdle = true;
-            } else {
-                String trackingDataString = new Gson().toJson(model.dataModel);
-                if (!TextUtils.isEmpty(model.url) && !TextUtils.isEmpty(trackingDataString)) {
-                    PubnativeHttpRequest.Listener listener = new PubnativeHttpRequest.Listener() {
+        } else if (!PubnativeDeviceUtils.isNetworkAvailable(context)) {
+            // Keep the events stored instead of spending their attempts
+            Log.w(TAG, "trackNext - network not available, waiting");
+            waitForNetwork(context);
+        } else {
+            promoteFailedItems(context);
+            Dispatch dispatch;
+            while (sInFlight < sMaxRequests && (dispatch = nextDispatch(context)) != null) {
+                send(context, dispatch);
+            }
+        }
+    }
 
-                        @Override
-                        public void onPubnativeHttpRequestStart(PubnativeHttpRequest request) {
+    /**
+     * Continues sending the stored events as soon as the network is back
+     */
+    protected static void waitForNetwork(final Context context) {
 
-                            Log.v(TAG, "onPubnativeHttpRequestStart");
-                        }
+        if (sNetworkListener == null) {
+            Log.v(TAG, "waitForNetwork");
+            sNetworkListener = new PubnativeConnectivityMonitor.Listener() {
+
+                @Override
+                public void onPubnativeNetworkAvailable() {
+
+                    Log.v(TAG, "onPubnativeNetworkAvailable");
+                    PubnativeConnectivityMonitor.removeListener(this);
+                    getHandler().post(new Runnable() {
 
                         @Override
-                        public void onPubnativeHttpRequestFinish(PubnativeHttpRequest request, String result) {
-
-                            Log.v(TAG, "onPubnativeHttpRequestFinish");
-                            if (TextUtils.isEmpty(result)) {
-                                trackingFailed(context, model, "invalid insight response (empty or null)");
-                            } else {
-                                try {
-                                    PubnativeInsightsAPIResponseModel response = new Gson().fromJson(result, PubnativeInsightsAPIResponseModel.class);
-                                    if (PubnativeInsightsAPIResponseModel.Status.OK.equals(response.status)) {
-                                        trackingFinished(context, model);
-                                    } else {
-                                        trackingFailed(context, model, response.error_message);
-                                    }
-                                } catch (Exception e) {
-                                    Map errorData = new HashMap();
-                                    errorData.put("parsingException", e.toString());
-                                    errorData.put("serverResponse", result);
-                                    trackingFailed(context, model, PubnativeException.extraException(PubnativeException.NETWORK_INVALID_RESPONSE, errorData).toString());
-                                }
+                        public void run() {
+
+                            synchronized (PubnativeInsightsManager.class) {
+                                sNetworkListener = null;
                             }
+                            trackNext(context);
                         }
+                    });
+                }
+            };
+            PubnativeConnectivityMonitor.addListener(context, sNetworkListener);
+        }
+    }
 
-                        @Override
-                        public void onPubnativeHttpRequestFail(PubnativeHttpRequest request, Exception exception) {
+    protected static Dispatch nextDispatch(Context context) {
 
-                            Log.v(TAG, "onPubnativeHttpRequestFail: " + exception);
-                            trackingFailed(context, model, exception.toString());
-                        }
-                    };
-                    sendTrackingDataToServer(context, trackingDataString, model.url, listener);
+        Log.v(TAG, "nextDispatch");
+        Dispatch result = null;
+        // 1. Parked events whose host has room now, in arrival order
+        Iterator<Dispatch> iterator = sParked.iterator();
+        while (result == null && iterator.hasNext()) {
+            Dispatch parked = iterator.next();
+            if (hasRoom(parked.host)) {
+                iterator.remove();
+                result = parked;
+            }
+        }
+        // 2. Queued events, one dispatch of a busy host is parked so other hosts don't wait behind
+        // it. Parked events are only in memory, the rest wait in the queue for their host
+        boolean blocked = false;
+        while (result == null && !blocked && sParked.size() < MAX_PARKED) {
+            String host = peekHost(context);
+            if (host == null || (!hasRoom(host) && isParked(host))) {
+                blocked = true;
+            } else {
+                List<PubnativeInsightRequestModel> items = sBatchUpload ? nextBatch(context) : nextItem(context);
+                if (items == null) {
+                    blocked = true;
                 } else {
-                    // Drop the call, tracking data is errored
-                    trackingFinished(context, model);
+                    Dispatch dispatch = new Dispatch(items, sBatchUpload);
+                    if (hasRoom(dispatch.host)) {
+                        result = dispatch;
+                    } else {
+                        sParked.add(dispatch);
+                    }
                 }
             }
+        }
+        return result;
+    }
+
+    /**
+     * @return host of the first pending event, empty if it can't be read, null if there are none
+     */
+    protected static String peekHost(Context context) {
+
+        String result = null;
+        PubnativeInsightQueue queue = getQueue(context, INSIGHTS_PENDING_DATA);
+        byte[] record = queue == null ? null : queue.peek();
+        if (record != null) {
+            PubnativeInsightRequestModel model = fromRecord(record);
+            // Invalid events are dropped when they are taken
+            result = model == null ? "" : getHost(model.url);
+        }
+        return result;
+    }
+
+    protected static boolean isParked(String host) {
+
+        boolean result = false;
+        for (Dispatch parked : sParked) {
+            if (parked.host.equals(host)) {
+                result = true;
+                break;
+            }
+        }
+        return result;
+    }
+
+    protected static String getHost(String url) {
+
+        String result = null;
+        if (!TextUtils.isEmpty(url)) {
+            result = Uri.parse(url).getAuthority();
+        }
+        return result == null ? "" : result;
+    }
+
+    protected static List<PubnativeInsightRequestModel> nextItem(Context context) {
+
+        Log.v(TAG, "nextItem");
+        List<PubnativeInsightRequestModel> result = null;
+        PubnativeInsightRequestModel model;
+        while (result == null && (model = dequeueInsightItem(context, INSIGHTS_PENDING_DATA)) != null) {
+            if (TextUtils.isEmpty(model.url) || model.dataModel == null) {
+                // Drop the call, tracking data is errored
+                dropItem(DropReason.INVALID);
+            } else if (isExpired(model)) {
+                dropItem(DropReason.EXPIRED);
+            } else {
+                result = new ArrayList<PubnativeInsightRequestModel>();
+                result.add(model);
+            }
+        }
+        return result;
+    }
+
+    protected static boolean hasRoom(String host) {
+
+        Integer hostRequests = sHostInFlight.get(host);
+        return hostRequests == null || hostRequests < sMaxHostRequests;
+    }
+
+    protected static void send(final Context context, final Dispatch dispatch) {
+
+        Log.v(TAG, "send: " + dispatch.items.size());
+        if (sInFlight == 0) {
+            sBusySince = System.currentTimeMillis();
+        }
+        sInFlight++;
+        Integer hostRequests = sHostInFlight.get(dispatch.host);
+        sHostInFlight.put(dispatch.host, hostRequests == null ? 1 : hostRequests + 1);
+        // Stored events come without their session fields
+        PubnativeInsightHeaderModel header = null;
+        for (PubnativeInsightRequestModel model : dispatch.items) {
+            PubnativeInsightHeaderModel modelHeader = getHeader(context, model.headerId);
+            if (modelHeader != null) {
+                modelHeader.applyTo(model.dataModel);
+                header = modelHeader;
+            }
+        }
+        String trackingDataString;
+        if (dispatch.batch && sCompactBatches && header != null) {
+            trackingDataString = toCompactBatch(header, dispatch.items);
+        } else if (dispatch.batch) {
+            List<PubnativeInsightDataModel> events = new ArrayList<PubnativeInsightDataModel>();
+            for (PubnativeInsightRequestModel model : dispatch.items) {
+                events.add(model.dataModel);
+            }
+            trackingDataString = new Gson().toJson(events);
         } else {
-            Log.e(TAG, "trackNext - Already tracking one request. Dropping call");
+            trackingDataString = new Gson().toJson(dispatch.items.get(0).dataModel);
         }
+        PubnativeHttpRequest.Listener listener = new PubnativeHttpRequest.Listener() {
+
+            @Override
+            public void onPubnativeHttpRequestStart(PubnativeHttpRequest request) {
+
+                Log.v(TAG, "onPubnativeHttpRequestStart");
+            }
+
+            @Override
+            public void onPubnativeHttpRequestFinish(PubnativeHttpRequest request, String result) {
+
+                Log.v(TAG, "onPubnativeHttpRequestFinish");
+                if (TextUtils.isEmpty(result)) {
+                    postDispatchFinished(context, dispatch, null, "invalid insight response (empty or null)");
+                } else {
+                    try {
+                        PubnativeInsightsAPIResponseModel response = new Gson().fromJson(result, PubnativeInsightsAPIResponseModel.class);
+                        if (PubnativeInsightsAPIResponseModel.Status.OK.equals(response.status)) {
+                            // Partial success, only the listed events failed
+                            List<Integer> failedItems = response.failed_items;
+                            if (failedItems == null) {
+                                failedItems = new ArrayList<Integer>();
+                            }
+                            postDispatchFinished(context, dispatch, failedItems, response.error_message);
+                        } else {
+                            postDispatchFinished(context, dispatch, null, response.error_message);
+                        }
+                    } catch (Exception e) {
+                        Map errorData = new HashMap();
+                        errorData.put("parsingException", e.toString());
+                        errorData.put("serverResponse", result);
+                        postDispatchFinished(context, dispatch, null, PubnativeException.extraException(PubnativeException.NETWORK_INVALID_RESPONSE, errorData).toString());
+                    }
+                }
+            }
+
+            @Override
+            public void onPubnativeHttpRequestFail(PubnativeHttpRequest request, Exception exception) {
+
+                Log.v(TAG, "onPubnativeHttpRequestFail: " + exception);
+                postDispatchFinished(context, dispatch, null, exception.toString());
+            }
+        };
+        sendTrackingDataToServer(context, trackingDataString, dispatch.items.get(0).url, listener);
     }
 
-    protected static void trackingFailed(Context context, PubnativeInsightRequestModel model, String message) {
+    protected static void postDispatchFinished(final Context context, final Dispatch dispatch, final List<Integer> failedItems, final String message) {
 
-        Log.v(TAG, "trackingFailed");
-        // Add a retry
-        model.dataModel.retry = model.dataModel.retry + 1;
-        model.dataModel.retry_error = message;
-        enqueueInsightItem(context, INSIGHTS_FAILED_DATA, model);
-        sIdle = true;
-        trackNext(context);
+        // Request callbacks arrive in the main thread
+        getHandler().post(new Runnable() {
+
+            @Override
+            public void run() {
+
+                dispatchFinished(context, dispatch, failedItems, message);
+            }
+        });
     }
 
-    protected static void trackingFinished(Context context, PubnativeInsightRequestModel model) {
+    protected synchronized static void dispatchFinished(Context context, Dispatch dispatch, List<Integer> failedItems, String message) {
 
-        Log.v(TAG, "trackingFinished");
-        sIdle = true;
+        Log.v(TAG, "dispatchFinished");
+        storeFailedItems(context, dispatch.items, failedItems, message);
+        sInFlight--;
+        Integer hostRequests = sHostInFlight.get(dispatch.host);
+        if (hostRequests == null || hostRequests <= 1) {
+            sHostInFlight.remove(dispatch.host);
+        } else {
+            sHostInFlight.put(dispatch.host, hostRequests - 1);
+        }
+        sDrainedCount += dispatch.items.size();
+        if (sInFlight == 0) {
+            sBusyTime += System.currentTimeMillis() - sBusySince;
+        }
         trackNext(context);
     }
 
+    /**
+     * @param failedItems indexes of the failed events, null if all of them failed
+     */
+    protected static void storeFailedItems(Context context, List<PubnativeInsightRequestModel> items, List<Integer> failedItems, String message) {
+
+        Log.v(TAG, "storeFailedItems");
+        for (int i = 0; i < items.size(); i++) {
+            if (failedItems == null || failedItems.contains(i)) {
+                storeFailedItem(context, items.get(i), message);
+            }
+        }
+    }
+
+    protected static void storeFailedItem(Context context, PubnativeInsightRequestModel model, String message) {
+
+        Log.v(TAG, "storeFailedItem");
+        // Add a retry
+        model.dataModel.retry = model.dataModel.retry + 1;
+        model.dataModel.retry_error = message;
+        if (isExpired(model)) {
+            dropItem(DropReason.EXPIRED);
+        } else if (model.dataModel.retry >= sEventRetryPolicy.getMaxAttempts()) {
+            dropItem(DropReason.MAX_ATTEMPTS);
+        } else {
+            model.retryTimestamp = System.currentTimeMillis() + sEventRetryPolicy.getDelay(model.dataModel.retry);
+            sNextRetryTimestamp = Math.min(sNextRetryTimestamp, model.retryTimestamp);
+            enqueueInsightItem(context, INSIGHTS_FAILED_DATA, model);
+        }
+    }
+
     protected static void sendTrackingDataToServer(Context context, String trackingDataString, String url, PubnativeHttpRequest.Listener listener) {
 
         Log.v(TAG, "sendTrackingDataToServer");
         PubnativeHttpRequest http = new PubnativeHttpRequest();
         http.setPOSTString(trackingDataString);
+        http.setGzipPOST(sGzipRequests);
+        http.setTransport(sTransport);
+        // Failed events are retried from the failed queue, following the event retry policy
+        http.setRetryPolicy(PubnativeRetryPolicy.NONE);
+        http.setPriority(PubnativeNetworkExecutor.Priority.ANALYTICS);
         http.start(context, url, listener);
     }
 
+    /**
+     * Events sent together in one request
+     */
+    protected static class Dispatch {
+
+        public final List<PubnativeInsightRequestModel> items;
+        public final boolean                            batch;
+        public final String                             host;
+
+        public Dispatch(List<PubnativeInsightRequestModel> items, boolean batch) {
+
+            this.items = items;
+            this.batch = batch;
+            this.host = getHost(items.get(0).url);
+        }
+    }
+
+    //==============================================================================================
+    // RETRIES
+    //==============================================================================================
+
+    /**
+     * Moves the failed events that waited long enough back to the pending queue. The failed
+     * queue is only walked when its earliest retry time passed
+     */
+    protected static void promoteFailedItems(Context context) {
+
+        Log.v(TAG, "promoteFailedItems");
+        long now = System.currentTimeMillis();
+        PubnativeInsightQueue failed = getQueue(context, INSIGHTS_FAILED_DATA);
+        PubnativeInsightQueue pending = getQueue(context, INSIGHTS_PENDING_DATA);
+        if (failed != null && pending != null && now >= sNextRetryTimestamp) {
+            long nextRetryTimestamp = Long.MAX_VALUE;
+            int count = failed.size();
+            for (int i = 0; i < count; i++) {
+                byte[] record = failed.dequeue();
+                PubnativeInsightRequestModel model = record == null ? null : fromRecord(record);
+                if (model == null || model.dataModel == null) {
+                    dropItem(DropReason.INVALID);
+                } else if (isExpired(model)) {
+                    dropItem(DropReason.EXPIRED);
+                } else if (model.retryTimestamp == null || model.retryTimestamp <= now) {
+                    pending.enqueue(record);
+                } else {
+                    // Back at the end, the queue order doesn't matter for waiting events
+                    failed.enqueue(record);
+                    nextRetryTimestamp = Math.min(nextRetryTimestamp, model.retryTimestamp);
+                }
+            }
+            sNextRetryTimestamp = nextRetryTimestamp;
+        }
+        scheduleRetry(context);
+    }
+
+    protected static void scheduleRetry(final Context context) {
+
+        if (sNextRetryTimestamp < sScheduledRetryTimestamp) {
+            Log.v(TAG, "scheduleRetry");
+            if (sRetryRunnable != null) {
+                getHandler().removeCallbacks(sRetryRunnable);
+            }
+            sRetryRunnable = new Runnable() {
+
+                @Override
+                public void run() {
+
+                    synchronized (PubnativeInsightsManager.class) {
+                        sRetryRunnable = null;
+                        sScheduledRetryTimestamp = Long.MAX_VALUE;
+                    }
+                    trackNext(context);
+                }
+            };
+            sScheduledRetryTimestamp = sNextRetryTimestamp;
+            getHandler().postDelayed(sRetryRunnable, Math.max(0, sNextRetryTimestamp - System.currentTimeMillis()));
+        }
+    }
+
+    protected static boolean isExpired(PubnativeInsightRequestModel model) {
+
+        boolean result = false;
+        if (model.dataModel != null && model.dataModel.generated_at != null) {
+            // generated_at is in microseconds
+            result = System.currentTimeMillis() - model.dataModel.generated_at / 1000 > sEventTimeToLive;
+        }
+        return result;
+    }
+
+    protected static void dropItem(DropReason reason) {
+
+        Log.w(TAG, "dropItem: " + reason);
+        sDroppedCount[reason.ordinal()]++;
+    }
+
+    /**
+     * Drops the oldest stored events, failed ones first, until the given size fits in the budget
+     *
+     * @return true if there is room, false if the size alone is bigger than the budget
+     */
+    protected static boolean makeRoom(Context context, long size) {
+
+        PubnativeInsightQueue failed = getQueue(context, INSIGHTS_FAILED_DATA);
+        PubnativeInsightQueue pending = getQueue(context, INSIGHTS_PENDING_DATA);
+        boolean result = size <= sStorageBudget;
+        if (result && failed != null && pending != null) {
+            while (failed.byteSize() + pending.byteSize() + size > sStorageBudget
+                   && (failed.dequeue() != null || pending.dequeue() != null)) {
+                dropItem(DropReason.STORAGE_BUDGET);
+            }
+        }
+        return result;
+    }
+
+    //==============================================================================================
+    // BATCH
+    //==============================================================================================
+
+    protected static List<PubnativeInsightRequestModel> nextBatch(Context context) {
+
+        Log.v(TAG, "nextBatch");
+        List<PubnativeInsightRequestModel> result = null;
+        PubnativeInsightQueue queue = getQueue(context, INSIGHTS_PENDING_DATA);
+        if (queue == null || queue.size() == 0) {
+            sFlushRequested = false;
+        } else {
+            long wait = getBatchWait(queue);
+            if (wait > 0) {
+                scheduleFlush(context, wait);
+            } else {
+                cancelFlush();
+                List<PubnativeInsightRequestModel> batch = dequeueBatch(queue);
+                if (batch.size() > 0) {
+                    result = batch;
+                }
+            }
+        }
+        return result;
+    }
+
+    protected static long getBatchWait(PubnativeInsightQueue queue) {
+
+        long result = 0;
+        if (!sFlushRequested && queue.size() < sBatchMaxEvents && queue.byteSize() < sBatchMaxBytes) {
+            byte[] record = queue.peek();
+            PubnativeInsightRequestModel oldest = record == null ? null : fromRecord(record);
+            if (oldest != null && oldest.dataModel != null && oldest.dataModel.generated_at != null) {
+                // generated_at is in microseconds
+                long age = System.currentTimeMillis() - oldest.dataModel.generated_at / 1000;
+                result = Math.max(0, sBatchMaxAge - age);
+            }
+        }
+        return result;
+    }
+
+    protected static List<PubnativeInsightRequestModel> dequeueBatch(PubnativeInsightQueue queue) {
+
+        Log.v(TAG, "dequeueBatch");
+        List<PubnativeInsightRequestModel> result = new ArrayList<PubnativeInsightRequestModel>();
+        String url = null;
+        String headerId = null;
+        long bytes = 0;
+        byte[] record;
+        while (result.size() < sBatchMaxEvents && (record = queue.peek()) != null) {
+            PubnativeInsightRequestModel model = fromRecord(record);
+            if (model == null || TextUtils.isEmpty(model.url) || model.dataModel == null) {
+                // Drop the event, tracking data is errored
+                queue.dequeue();
+                dropItem(DropReason.INVALID);
+            } else if (isExpired(model)) {
+                queue.dequeue();
+                dropItem(DropReason.EXPIRED);
+            } else if (url != null && (!url.equals(model.url)
+                                       || !TextUtils.equals(headerId, model.headerId)
+                                       || bytes + record.length > sBatchMaxBytes)) {
+                // Goes in the next batch
+                break;
+            } else {
+                queue.dequeue();
+                url = model.url;
+                headerId = model.headerId;
+                bytes += record.length;
+                result.add(model);
+            }
+        }
+        return result;
+    }
+
+    protected static String toCompactBatch(PubnativeInsightHeaderModel header, List<PubnativeInsightRequestModel> items) {
+
+        Log.v(TAG, "toCompactBatch");
+        Gson gson = new Gson();
+        JsonObject headerJson = gson.toJsonTree(header).getAsJsonObject();
+        JsonArray events = new JsonArray();
+        for (PubnativeInsightRequestModel model : items) {
+            events.add(removeFields(gson.toJsonTree(model.dataModel).getAsJsonObject(), headerJson));
+        }
+        JsonObject result = new JsonObject();
+        result.add("header", headerJson);
+        result.add("events", events);
+        return gson.toJson(result);
+    }
+
+    protected static JsonObject removeFields(JsonObject json, JsonObject fields) {
+
+        for (Map.Entry<String, JsonElement> field : fields.entrySet()) {
+            json.remove(field.getKey());
+        }
+        return json;
+    }
+
+    protected static void scheduleFlush(final Context context, long delay) {
+
+        Log.v(TAG, "scheduleFlush: " + delay);
+        cancelFlush();
+        sFlushRunnable = new Runnable() {
+
+            @Override
+            public void run() {
+
+                trackNext(context);
+            }
+        };
+        getHandler().postDelayed(sFlushRunnable, delay);
+    }
+
+    protected static void cancelFlush() {
+
+        if (sHandler != null && sFlushRunnable != null) {
+            sHandler.removeCallbacks(sFlushRunnable);
+        }
+        sFlushRunnable = null;
+    }
+
     //==============================================================================================
     // QUEUE
     //==============================================================================================
@@ -195,12 +965,15 @@ public class PubnativeInsightsManager {
 
         Log.v(TAG, "enqueueInsightItem");
         if (context != null && model != null) {
-            List<PubnativeInsightRequestModel> pendingList = getTrackingList(context, listKey);
-            if (pendingList == null) {
-                pendingList = new ArrayList<PubnativeInsightRequestModel>();
+            PubnativeInsightQueue queue = getQueue(context, listKey);
+            byte[] record = toRecord(context, model);
+            if (record == null) {
+                dropItem(DropReason.INVALID);
+            } else if (!makeRoom(context, record.length)) {
+                dropItem(DropReason.STORAGE_BUDGET);
+            } else if (queue == null || !queue.enqueue(record)) {
+                Log.e(TAG, "enqueueInsightItem - Error: unable to store insight, dropping it");
             }
-            pendingList.add(model);
-            setTrackingList(context, listKey, pendingList);
         }
     }
 
@@ -208,12 +981,9 @@ public class PubnativeInsightsManager {
 
         Log.v(TAG, "enqueueInsightList");
         if (context != null && list != null) {
-            List<PubnativeInsightRequestModel> insightList = getTrackingList(context, listKey);
-            if (insightList == null) {
-                insightList = new ArrayList<PubnativeInsightRequestModel>();
+            for (PubnativeInsightRequestModel model : list) {
+                enqueueInsightItem(context, listKey, model);
             }
-            insightList.addAll(list);
-            setTrackingList(context, listKey, insightList);
         }
     }
 
@@ -222,20 +992,224 @@ public class PubnativeInsightsManager {
         Log.v(TAG, "dequeueInsightItem");
         PubnativeInsightRequestModel result = null;
         if (context != null) {
-            List<PubnativeInsightRequestModel> pendingList = getTrackingList(context, listKey);
-            if (pendingList != null && pendingList.size() > 0) {
-                result = pendingList.get(0);
-                pendingList.remove(0);
-                setTrackingList(context, listKey, pendingList);
+            PubnativeInsightQueue queue = getQueue(context, listKey);
+            if (queue != null) {
+                byte[] record;
+                // Skip records that can't be parsed anymore
+                while (result == null && (record = queue.dequeue()) != null) {
+                    result = fromRecord(record);
+                }
+            }
+        }
+        return result;
+    }
+
+    protected synchronized static PubnativeInsightQueue getQueue(Context context, String listKey) {
+
+        Log.v(TAG, "getQueue");
+        PubnativeInsightQueue result = null;
+        if (context != null && context.getFilesDir() != null) {
+            File directory = new File(new File(context.getFilesDir(), INSIGHTS_QUEUE_DIRECTORY), listKey);
+            result = sQueues.get(directory.getPath());
+            if (result == null) {
+                result = new PubnativeInsightQueue(directory);
+                sQueues.put(directory.getPath(), result);
+                // Import the list stored by previous versions
+                List<PubnativeInsightRequestModel> legacyList = getTrackingList(context, listKey);
+                if (legacyList != null) {
+                    for (PubnativeInsightRequestModel model : legacyList) {
+                        result.enqueue(toRecord(context, model));
+                    }
+                    setTrackingList(context, listKey, null);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Serializes an event for the queue, its session fields are replaced by the id of a stored
+     * header so they aren't written again for every event
+     */
+    protected static byte[] toRecord(Context context, PubnativeInsightRequestModel model) {
+
+        byte[] result = null;
+        Gson gson = new Gson();
+        JsonObject json = gson.toJsonTree(model).getAsJsonObject();
+        if (model.dataModel != null) {
+            PubnativeInsightHeaderModel header = new PubnativeInsightHeaderModel(model.dataModel);
+            JsonObject headerJson = gson.toJsonTree(header).getAsJsonObject();
+            // Events that were already stored keep their header id
+            String headerId = storeHeader(context, header, headerJson);
+            if (headerId != null) {
+                removeFields(json.getAsJsonObject("dataModel"), headerJson);
+                json.addProperty("headerId", headerId);
+            }
+        }
+        try {
+            result = gson.toJson(json).getBytes(CHARSET_UTF8);
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "toRecord - Error: " + e);
+        }
+        return result;
+    }
+
+    protected static PubnativeInsightRequestModel fromRecord(byte[] record) {
+
+        PubnativeInsightRequestModel result = null;
+        try {
+            result = new Gson().fromJson(new String(record, CHARSET_UTF8), PubnativeInsightRequestModel.class);
+        } catch (Exception e) {
+            Log.e(TAG, "fromRecord - Error: " + e);
+        }
+        return result;
+    }
+
+    //==============================================================================================
+    // HEADERS
+    //==============================================================================================
+
+    /**
+     * @return id of the header, null if it has no fields or it can't be stored
+     */
+    protected synchronized static String storeHeader(Context context, PubnativeInsightHeaderModel header, JsonObject headerJson) {
+
+        String result = null;
+        Map<String, PubnativeInsightHeaderModel> headers = getHeaders(context);
+        if (headers != null && headerJson.entrySet().size() > 0) {
+            CRC32 checksum = new CRC32();
+            try {
+                byte[] headerBytes = headerJson.toString().getBytes(CHARSET_UTF8);
+                checksum.update(headerBytes, 0, headerBytes.length);
+                String headerId = Long.toHexString(checksum.getValue());
+                PubnativeInsightHeaderModel storedHeader = headers.get(headerId);
+                if (storedHeader == null) {
+                    if (saveHeaders(context, headers, headerId, header)) {
+                        result = headerId;
+                    }
+                } else if (new Gson().toJsonTree(storedHeader).equals(headerJson)) {
+                    result = headerId;
+                } else {
+                    // Checksum collision with another session, the event keeps its own fields
+                    Log.w(TAG, "storeHeader - header id already used by another header: " + headerId);
+                }
+            } catch (UnsupportedEncodingException e) {
+                Log.e(TAG, "storeHeader - Error: " + e);
             }
         }
         return result;
     }
 
+    /**
+     * @return true if there are events stored without their session fields
+     */
+    protected static boolean hasStoredEvents(Context context) {
+
+        PubnativeInsightQueue pending = getQueue(context, INSIGHTS_PENDING_DATA);
+        PubnativeInsightQueue failed = getQueue(context, INSIGHTS_FAILED_DATA);
+        return (pending != null && pending.size() > 0)
+               || (failed != null && failed.size() > 0)
+               || !sParked.isEmpty();
+    }
+
+    protected synchronized static PubnativeInsightHeaderModel getHeader(Context context, String headerId) {
+
+        PubnativeInsightHeaderModel result = null;
+        Map<String, PubnativeInsightHeaderModel> headers = getHeaders(context);
+        if (headers != null && headerId != null) {
+            result = headers.get(headerId);
+        }
+        return result;
+    }
+
+    protected synchronized static Map<String, PubnativeInsightHeaderModel> getHeaders(Context context) {
+
+        Map<String, PubnativeInsightHeaderModel> result = null;
+        if (context != null && context.getFilesDir() != null) {
+            File file = new File(new File(context.getFilesDir(), INSIGHTS_QUEUE_DIRECTORY), INSIGHTS_HEADERS_FILE);
+            if (sHeaders == null || !file.equals(sHeadersFile)) {
+                sHeadersFile = file;
+                sHeaders = new HashMap<String, PubnativeInsightHeaderModel>();
+                if (file.exists()) {
+                    InputStreamReader reader = null;
+                    try {
+                        reader = new InputStreamReader(new FileInputStream(file), CHARSET_UTF8);
+                        Type type = new TypeToken<HashMap<String, PubnativeInsightHeaderModel>>() {}.getType();
+                        Map<String, PubnativeInsightHeaderModel> stored = new Gson().fromJson(reader, type);
+                        if (stored != null) {
+                            sHeaders.putAll(stored);
+                        }
+                    } catch (Exception e) {
+                        // Events with an unknown header are sent with their own fields only
+                        Log.e(TAG, "getHeaders - Error: " + e);
+                    } finally {
+                        if (reader != null) {
+                            try {
+                                reader.close();
+                            } catch (IOException e) {
+                                Log.e(TAG, "getHeaders - Error: " + e);
+                            }
+                        }
+                    }
+                }
+            }
+            result = sHeaders;
+        }
+        return result;
+    }
+
+    /**
+     * Adds a header to the stored ones. The headers are only written when a new one appears, old
+     * ones are dropped at that moment if no stored event uses them anymore
+     */
+    protected synchronized static boolean saveHeaders(Context context, Map<String, PubnativeInsightHeaderModel> headers, String headerId, PubnativeInsightHeaderModel header) {
+
+        Log.v(TAG, "saveHeaders");
+        boolean result = false;
+        Map<String, PubnativeInsightHeaderModel> newHeaders = new HashMap<String, PubnativeInsightHeaderModel>();
+        boolean hasRoom = true;
+        if (hasStoredEvents(context)) {
+            // Events keep their own fields until the stored ones are sent
+            hasRoom = headers.size() < MAX_HEADERS;
+            newHeaders.putAll(headers);
+        }
+        newHeaders.put(headerId, header);
+        File directory = sHeadersFile.getParentFile();
+        File tempFile = new File(sHeadersFile.getPath() + HEADERS_TEMP_SUFFIX);
+        FileOutputStream outputStream = null;
+        try {
+            if (hasRoom && (directory.exists() || directory.mkdirs())) {
+                outputStream = new FileOutputStream(tempFile);
+                outputStream.write(new Gson().toJson(newHeaders).getBytes(CHARSET_UTF8));
+                outputStream.getFD().sync();
+                outputStream.close();
+                outputStream = null;
+                result = tempFile.renameTo(sHeadersFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "saveHeaders - Error: " + e);
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "saveHeaders - Error: " + e);
+                }
+            }
+        }
+        if (result) {
+            headers.clear();
+            headers.putAll(newHeaders);
+        } else {
+            Log.e(TAG, "saveHeaders - Error: unable to store the header, events will keep their fields");
+        }
+        return result;
+    }
+
     //==============================================================================================
     // SHARED PREFERENCES
     //==============================================================================================
-    // TRACKING LIST
+    // TRACKING LIST (only read to import the data stored by previous versions)
     //----------------------------------------------------------------------------------------------
 
     protected static List<PubnativeInsightRequestModel> getTrackingList(Context context, String listKey) {
@@ -26,13 +26,13 @@ package net.pubnative.mediation.insights.model;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
 
 import net.pubnative.mediation.config.model.PubnativePriorityRuleModel;
 import net.pubnative.mediation.request.model.PubnativeAdTargetingModel;
+import net.pubnative.mediation.utils.PubnativeConnectivityMonitor;
 import net.pubnative.mediation.utils.PubnativeDeviceUtils;
 
 import java.util.ArrayList;
@@ -266,17 +266,13 @@ public class PubnativeInsightDataModel {
             device_name = Build.MODEL;
             sdk_version = net.pubnative.mediation.BuildConfig.VERSION_NAME + " (" + net.pubnative.mediation.BuildConfig.VERSION_CODE + ")";
             // Connection type
-            ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(
-                    Context.CONNECTIVITY_SERVICE);
-            if (connectivityManager != null) {
-                NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
-                if (networkInfo != null && networkInfo.isConnected()) {
-                    String connectionType = CONNECTION_TYPE_CELLULAR;
-                    if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
-                        connectionType = CONNECTION_TYPE_WIFI;
-                    }
-                    connection_type = connectionType;
+            int networkType = PubnativeConnectivityMonitor.getConnectedNetworkType(context);
+            if (networkType != PubnativeConnectivityMonitor.TYPE_NONE) {
+                String connectionType = CONNECTION_TYPE_CELLULAR;
+                if (networkType == ConnectivityManager.TYPE_WIFI) {
+                    connectionType = CONNECTION_TYPE_WIFI;
                 }
+                connection_type = connectionType;
             }
         }
     }
@@ -0,0 +1,97 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.insights.model;
+
+import java.util.List;
+
+/**
+ * Insight fields that stay the same for every event of a session. They are stored once for all
+ * the queued events that share them and sent once in the header of compact batches.
+ */
+public class PubnativeInsightHeaderModel {
+
+    // App and device info
+    public String       pub_app_version;
+    public String       pub_app_bundle_id;
+    public String       os_version;
+    public String       sdk_version;
+    public String       user_uid;
+    public String       connection_type;
+    public String       device_name;
+    // User info
+    public Integer      age;
+    public String       education;
+    public List<String> interests;
+    public String       gender;
+    public Boolean      iap;
+    public Float        iap_total;
+
+    //==============================================================================================
+    // PubnativeInsightHeaderModel
+    //==============================================================================================
+
+    /**
+     * Creates a header with the session fields of the given event
+     *
+     * @param dataModel valid event data
+     */
+    public PubnativeInsightHeaderModel(PubnativeInsightDataModel dataModel) {
+
+        pub_app_version = dataModel.pub_app_version;
+        pub_app_bundle_id = dataModel.pub_app_bundle_id;
+        os_version = dataModel.os_version;
+        sdk_version = dataModel.sdk_version;
+        user_uid = dataModel.user_uid;
+        connection_type = dataModel.connection_type;
+        device_name = dataModel.device_name;
+        age = dataModel.age;
+        education = dataModel.education;
+        interests = dataModel.interests;
+        gender = dataModel.gender;
+        iap = dataModel.iap;
+        iap_total = dataModel.iap_total;
+    }
+
+    /**
+     * Sets the header fields back into an event stored without them
+     *
+     * @param dataModel valid event data
+     */
+    public void applyTo(PubnativeInsightDataModel dataModel) {
+
+        dataModel.pub_app_version = pub_app_version;
+        dataModel.pub_app_bundle_id = pub_app_bundle_id;
+        dataModel.os_version = os_version;
+        dataModel.sdk_version = sdk_version;
+        dataModel.user_uid = user_uid;
+        dataModel.connection_type = connection_type;
+        dataModel.device_name = device_name;
+        dataModel.age = age;
+        dataModel.education = education;
+        dataModel.interests = interests;
+        dataModel.gender = gender;
+        dataModel.iap = iap;
+        dataModel.iap_total = iap_total;
+    }
+}
@@ -27,6 +27,8 @@ public class PubnativeInsightRequestModel {
 
     public String                    url;
     public PubnativeInsightDataModel dataModel;
+    public Long                      retryTimestamp; // Failed events: time in milliseconds when it can be sent again
+    public String                    headerId; // Stored events: id of the header with their session fields
 
     //==============================================================================================
     // PubnativeInsightRequestModel
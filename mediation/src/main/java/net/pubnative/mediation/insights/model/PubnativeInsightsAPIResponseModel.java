@@ -23,10 +23,13 @@
 
 package net.pubnative.mediation.insights.model;
 
+import java.util.List;
+
 public class PubnativeInsightsAPIResponseModel {
 
-    public String status;
-    public String error_message;
+    public String        status;
+    public String        error_message;
+    public List<Integer> failed_items; // Batch uploads: indexes of the events that weren't accepted
 
     //==============================================================================================
     // PubnativeInsightsAPIResponseModel.Status
@@ -0,0 +1,200 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.network;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per host circuit breaker. After too many consecutive failures against a host, requests to
+ * it fail immediately during a cool down period instead of piling on a backend in trouble.
+ * After the cool down a single trial request is let through to probe the host
+ */
+public class PubnativeCircuitBreaker {
+
+    private static final   String                 TAG                       = PubnativeCircuitBreaker.class.getSimpleName();
+    protected static final int                    DEFAULT_FAILURE_THRESHOLD = 5;
+    protected static final long                   DEFAULT_COOL_DOWN         = 60 * 1000; // 1 minute
+    protected static       int                    sFailureThreshold         = DEFAULT_FAILURE_THRESHOLD;
+    protected static       long                   sCoolDown                 = DEFAULT_COOL_DOWN;
+    protected static       Map<String, HostState> sHosts                    = new HashMap<String, HostState>();
+
+    public enum State {
+        // Requests go through
+        CLOSED,
+        // Requests fail until the cool down passes
+        OPEN,
+        // A single trial request is in flight
+        HALF_OPEN
+    }
+
+    protected static class HostState {
+
+        protected State mState    = State.CLOSED;
+        protected int   mFailures = 0;
+        protected long  mOpenedAt = 0;
+    }
+
+    //==============================================================================================
+    // PubnativeCircuitBreaker
+    //==============================================================================================
+
+    private PubnativeCircuitBreaker() {
+        // Static access only
+    }
+
+    /**
+     * Sets how many consecutive failures open the circuit of a host. Default is 5
+     *
+     * @param failureThreshold amount of failures, at least 1
+     */
+    public synchronized static void setFailureThreshold(int failureThreshold) {
+
+        Log.v(TAG, "setFailureThreshold: " + failureThreshold);
+        sFailureThreshold = Math.max(1, failureThreshold);
+    }
+
+    /**
+     * Sets how long an open circuit rejects requests before trying the host again. Default is
+     * 1 minute
+     *
+     * @param coolDownInMillis time in milliseconds
+     */
+    public synchronized static void setCoolDown(long coolDownInMillis) {
+
+        Log.v(TAG, "setCoolDown: " + coolDownInMillis);
+        sCoolDown = Math.max(0, coolDownInMillis);
+    }
+
+    /**
+     * Gets the current state of a host circuit
+     *
+     * @param host host name
+     *
+     * @return state of the circuit, CLOSED for unknown hosts
+     */
+    public synchronized static State getState(String host) {
+
+        State result = State.CLOSED;
+        HostState hostState = sHosts.get(host);
+        if (hostState != null) {
+            result = hostState.mState;
+            if (result == State.OPEN && isCoolDownOver(hostState)) {
+                // Next request will be the trial one
+                result = State.HALF_OPEN;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the consecutive failures counted for a host
+     *
+     * @param host host name
+     *
+     * @return failure count, 0 for unknown hosts
+     */
+    public synchronized static int getFailureCount(String host) {
+
+        HostState hostState = sHosts.get(host);
+        return hostState == null ? 0 : hostState.mFailures;
+    }
+
+    /**
+     * Closes every circuit and forgets all the failures
+     */
+    public synchronized static void reset() {
+
+        Log.v(TAG, "reset");
+        sHosts.clear();
+    }
+
+    //==============================================================================================
+    // Private methods
+    //==============================================================================================
+
+    /**
+     * Checks if a request to the host can go through, the caller must report its result with
+     * onSuccess or onFailure when it does
+     *
+     * @param host host name
+     *
+     * @return true if the request can be done, false if it must fail right away
+     */
+    protected synchronized static boolean allowRequest(String host) {
+
+        boolean result = true;
+        HostState hostState = sHosts.get(host);
+        if (hostState != null) {
+            if (hostState.mState == State.OPEN && isCoolDownOver(hostState)) {
+                Log.v(TAG, "allowRequest - trial request to " + host);
+                hostState.mState = State.HALF_OPEN;
+            } else if (hostState.mState != State.CLOSED) {
+                result = false;
+            }
+        }
+        return result;
+    }
+
+    protected synchronized static void onSuccess(String host) {
+
+        if (!TextUtils.isEmpty(host)) {
+            sHosts.remove(host);
+        }
+    }
+
+    protected synchronized static void onFailure(String host) {
+
+        if (!TextUtils.isEmpty(host)) {
+            HostState hostState = sHosts.get(host);
+            if (hostState == null) {
+                hostState = new HostState();
+                sHosts.put(host, hostState);
+            }
+            hostState.mFailures++;
+            if (hostState.mState == State.HALF_OPEN || hostState.mFailures >= sFailureThreshold) {
+                Log.w(TAG, "onFailure - opening circuit for " + host);
+                hostState.mState = State.OPEN;
+                hostState.mOpenedAt = System.currentTimeMillis();
+            }
+        }
+    }
+
+    protected synchronized static void onCanceled(String host) {
+
+        HostState hostState = sHosts.get(host);
+        if (hostState != null && hostState.mState == State.HALF_OPEN) {
+            // The trial didn't tell anything about the host, the next request takes its place
+            hostState.mState = State.OPEN;
+        }
+    }
+
+    protected static boolean isCoolDownOver(HostState hostState) {
+
+        return System.currentTimeMillis() - hostState.mOpenedAt >= sCoolDown;
+    }
+}
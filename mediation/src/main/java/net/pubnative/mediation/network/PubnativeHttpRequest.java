@@ -24,7 +24,6 @@
 package net.pubnative.mediation.network;
 
 import android.content.Context;
-import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.text.TextUtils;
@@ -34,27 +33,58 @@ import net.pubnative.mediation.exceptions.PubnativeException;
 import net.pubnative.mediation.utils.PubnativeDeviceUtils;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class PubnativeHttpRequest {
 
-    private static final String TAG = PubnativeHttpRequest.class.getSimpleName();
+    private static final   String                 TAG                       = PubnativeHttpRequest.class.getSimpleName();
+    protected static final int                    MIN_GZIP_BYTES            = 256;
+    protected static final String                 ENCODING_GZIP             = "gzip";
+    protected static final String                 CHARSET_UTF8              = "UTF-8";
+    protected static final int                    DEFAULT_MAX_RESPONSE_SIZE = 2 * 1024 * 1024; // 2 MB
+    protected static final int                    MIN_BUFFER_SIZE           = 1024;
+    protected static final int                    MAX_INITIAL_BUFFER_SIZE   = 64 * 1024; // Past this the buffer grows with the data actually read
+    protected static final int                    READ_BUFFER_SIZE          = 8 * 1024;
+    protected static       PubnativeHttpTransport sDefaultTransport         = new PubnativeUrlConnectionTransport();
     //==============================================================================================
     // Properties
     //==============================================================================================
     // Request properties
-    protected int      mTimeoutInMillis = 4000; // 4 seconds
-    protected String   mPOSTString      = null;
+    protected          int                               mTimeoutInMillis     = 4000; // 4 seconds
+    protected          int                               mReadTimeoutInMillis = 10000; // 10 seconds
+    protected          int                               mMaxResponseSize     = DEFAULT_MAX_RESPONSE_SIZE;
+    protected          long                              mDeadlineInMillis    = 0; // No deadline
+    protected          String                            mPOSTString          = null;
+    protected          boolean                           mGzipPOST            = false;
+    protected          Map<String, String>               mHeaders             = null;
+    protected          StreamProcessor                   mStreamProcessor     = null;
+    protected          PubnativeHttpTransport            mTransport           = null;
+    protected          PubnativeRetryPolicy              mRetryPolicy         = PubnativeRetryPolicy.NONE;
+    protected          PubnativeNetworkExecutor.Priority mPriority            = PubnativeNetworkExecutor.Priority.CRITICAL;
+    // Response properties
+    protected          int                               mResponseCode        = 0;
+    protected          Map<String, List<String>>         mResponseHeaders     = null;
     // Inner
-    protected Listener mListener        = null;
-    protected Handler  mHandler         = null;
+    protected          Listener                          mListener            = null;
+    protected          Handler                           mHandler             = null;
+    protected          long                              mStartTimestamp      = 0;
+    protected volatile int                               mAttempt             = 0;
+    protected volatile Future<?>                         mRetryFuture         = null;
+    protected volatile PubnativeHttpTransport.Call       mCall                = null;
+    protected volatile boolean                           mCanceled            = false;
+    protected volatile boolean                           mDeadlineExceeded    = false;
 
     //==============================================================================================
     // Listener
@@ -86,12 +116,30 @@ public class PubnativeHttpRequest {
         void onPubnativeHttpRequestFail(PubnativeHttpRequest request, Exception exception);
     }
 
+    /**
+     * Processor for consuming the response body directly from the connection
+     */
+    public interface StreamProcessor {
+
+        /**
+         * Called in the request thread with the body of a successful response. The request will
+         * callback finish with a null result after this method returns, or fail if it throws.
+         *
+         * @param request     request that is being processed
+         * @param inputStream response body stream, it will be closed by the request afterwards.
+         *                    Reading past the maximum response size throws an IOException
+         *
+         * @throws Exception if the stream can't be processed
+         */
+        void onPubnativeHttpRequestStream(PubnativeHttpRequest request, InputStream inputStream) throws Exception;
+    }
+
     //==============================================================================================
     // Public
     //==============================================================================================
 
     /**
-     * Sets timeout for connection and reading, if not specified default is 0 ms
+     * Sets timeout for establishing the connection, if not specified default is 4000 ms
      *
      * @param timeoutInMillis time in milliseconds
      */
@@ -101,12 +149,203 @@ public class PubnativeHttpRequest {
         mTimeoutInMillis = timeoutInMillis;
     }
 
+    /**
+     * Sets the max time to wait for data while reading the response, so a server that stalls
+     * mid-body doesn't hold a network thread forever. If not specified default is 10000 ms
+     *
+     * @param timeoutInMillis time in milliseconds, 0 waits forever
+     */
+    public void setReadTimeout(int timeoutInMillis) {
+
+        Log.v(TAG, "setReadTimeout");
+        mReadTimeoutInMillis = timeoutInMillis;
+    }
+
+    /**
+     * Sets the max time the whole request can take since start is called, including the time
+     * waiting in the network queue. When exceeded the request fails with
+     * PubnativeException.NETWORK_DEADLINE_EXCEEDED
+     *
+     * @param deadlineInMillis time in milliseconds, 0 for no deadline
+     */
+    public void setDeadline(long deadlineInMillis) {
+
+        Log.v(TAG, "setDeadline");
+        mDeadlineInMillis = deadlineInMillis;
+    }
+
+    /**
+     * Sets the policy used to retry failed attempts, retries are waited for in the network
+     * timer without holding a network thread. Default is PubnativeRetryPolicy.NONE
+     *
+     * @param retryPolicy valid policy, null for no retries
+     */
+    public void setRetryPolicy(PubnativeRetryPolicy retryPolicy) {
+
+        Log.v(TAG, "setRetryPolicy");
+        mRetryPolicy = retryPolicy == null ? PubnativeRetryPolicy.NONE : retryPolicy;
+    }
+
+    /**
+     * Sets the priority class of the request in the network pool. Default is CRITICAL
+     *
+     * @param priority valid priority
+     */
+    public void setPriority(PubnativeNetworkExecutor.Priority priority) {
+
+        Log.v(TAG, "setPriority: " + priority);
+        mPriority = priority;
+    }
+
+    /**
+     * Gets the amount of attempts done so far
+     *
+     * @return attempt count, 0 if the request didn't run yet
+     */
+    public int getAttemptCount() {
+
+        return mAttempt;
+    }
+
     public void setPOSTString(String postString) {
 
         Log.v(TAG, "setPOSTString");
         mPOSTString = postString;
     }
 
+    /**
+     * Enables gzip encoding of the POST body. Bodies smaller than MIN_GZIP_BYTES are sent
+     * as they are, since the gzip overhead would make them bigger
+     *
+     * @param gzip true to compress the body, the server must support Content-Encoding: gzip
+     */
+    public void setGzipPOST(boolean gzip) {
+
+        Log.v(TAG, "setGzipPOST: " + gzip);
+        mGzipPOST = gzip;
+    }
+
+    /**
+     * Sets the maximum size of the response body, bigger responses fail with
+     * NETWORK_RESPONSE_TOO_LARGE as soon as the size is known. If not specified default is 2 MB
+     *
+     * @param maxResponseSize size in bytes, 0 or less to disable the limit
+     */
+    public void setMaxResponseSize(int maxResponseSize) {
+
+        Log.v(TAG, "setMaxResponseSize");
+        mMaxResponseSize = maxResponseSize;
+    }
+
+    /**
+     * Sets a processor that will consume the response body as a stream instead of buffering it
+     * into a String, so big responses can be parsed without intermediate copies
+     *
+     * @param processor valid processor, null to get the body as String in the finish callback
+     */
+    public void setStreamProcessor(StreamProcessor processor) {
+
+        Log.v(TAG, "setStreamProcessor");
+        mStreamProcessor = processor;
+    }
+
+    /**
+     * Adds a header to be sent with the request, setting a null value removes it
+     *
+     * @param key   header name
+     * @param value header value
+     */
+    public void setHeader(String key, String value) {
+
+        Log.v(TAG, "setHeader: " + key);
+        if (!TextUtils.isEmpty(key)) {
+            if (mHeaders == null) {
+                mHeaders = new HashMap<String, String>();
+            }
+            if (value == null) {
+                mHeaders.remove(key);
+            } else {
+                mHeaders.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * Gets the status code of the last response, a 304 (not modified) response
+     * is delivered as a finish callback with a null result
+     *
+     * @return valid HTTP status code, 0 if there was no response yet
+     */
+    public int getResponseCode() {
+
+        Log.v(TAG, "getResponseCode");
+        return mResponseCode;
+    }
+
+    /**
+     * Gets the first value of a response header
+     *
+     * @param key header name
+     *
+     * @return header value, null if not present or there was no response yet
+     */
+    public String getResponseHeader(String key) {
+
+        Log.v(TAG, "getResponseHeader: " + key);
+        String result = null;
+        if (mResponseHeaders != null && !TextUtils.isEmpty(key)) {
+            for (String headerKey : mResponseHeaders.keySet()) {
+                // Header names are case insensitive
+                if (key.equalsIgnoreCase(headerKey)) {
+                    List<String> values = mResponseHeaders.get(headerKey);
+                    if (values != null && values.size() > 0) {
+                        result = values.get(0);
+                    }
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sets the transport used by every request that doesn't set its own
+     *
+     * @param transport valid transport, null restores the HttpURLConnection one
+     */
+    public static void setDefaultTransport(PubnativeHttpTransport transport) {
+
+        Log.v(TAG, "setDefaultTransport");
+        if (transport == null) {
+            transport = new PubnativeUrlConnectionTransport();
+        }
+        sDefaultTransport = transport;
+    }
+
+    /**
+     * Sets the transport used by this request
+     *
+     * @param transport valid transport, null to use the default one
+     */
+    public void setTransport(PubnativeHttpTransport transport) {
+
+        Log.v(TAG, "setTransport");
+        mTransport = transport;
+    }
+
+    /**
+     * Cancels the request, aborting any blocked I/O. When called from the main thread no
+     * callback is delivered after this method returns
+     */
+    public void cancel() {
+
+        Log.v(TAG, "cancel");
+        mCanceled = true;
+        mListener = null;
+        PubnativeNetworkExecutor.cancel(mRetryFuture);
+        abortCall();
+    }
+
     /**
      * This method will execute a new request to the given URL
      *
@@ -119,6 +358,7 @@ public class PubnativeHttpRequest {
         Log.v(TAG, "execute: " + urlString);
         mListener = listener;
         mHandler = new Handler(Looper.getMainLooper());
+        mStartTimestamp = System.currentTimeMillis();
         if (mListener == null) {
             Log.w(TAG, "Warning: null listener specified, performing request without callbacks");
         }
@@ -128,14 +368,17 @@ public class PubnativeHttpRequest {
             invokeFail(new IllegalArgumentException("PubnativeHttpRequest - Error: null or empty url, dropping call"));
         } else if (PubnativeDeviceUtils.isNetworkAvailable(context)) {
             invokeStart();
-            new Thread(new Runnable() {
+            boolean queued = PubnativeNetworkExecutor.execute(mPriority, new Runnable() {
 
                 @Override
                 public void run() {
 
                     doRequest(urlString);
                 }
-            }).start();
+            });
+            if (!queued) {
+                invokeFail(PubnativeException.NETWORK_QUEUE_FULL);
+            }
         } else {
             invokeFail(PubnativeException.NETWORK_NO_INTERNET);
         }
@@ -145,63 +388,274 @@ public class PubnativeHttpRequest {
     // Private
     //==============================================================================================
 
-    protected void disableConnectionReuseIfNecessary() {
-        // HTTP connection reuse which was buggy pre-froyo
-        if (Integer.parseInt(Build.VERSION.SDK) < Build.VERSION_CODES.FROYO) {
-            System.setProperty("http.keepAlive", "false");
-        }
-    }
-
     protected void doRequest(String urlString) {
 
         Log.v(TAG, "doRequest: " + urlString);
-        HttpURLConnection connection = null;
+        if (mCanceled) {
+            return;
+        }
+        if (mStartTimestamp == 0) {
+            mStartTimestamp = System.currentTimeMillis();
+        }
+        mAttempt++;
+        String host = getHost(urlString);
+        if (!PubnativeCircuitBreaker.allowRequest(host)) {
+            invokeFail(PubnativeException.NETWORK_CIRCUIT_OPEN);
+            return;
+        }
+        PubnativeHttpTransport.Response response = null;
+        Future<?> deadline = null;
+        Exception failure = null;
+        int failureStatusCode = 0;
         try {
-            disableConnectionReuseIfNecessary();
-            // 1. Create connection
-            URL url = new URL(urlString);
-            connection = (HttpURLConnection) url.openConnection();
-            // 2. Set connection properties
-            connection.setDoInput(true);
-            connection.setConnectTimeout(mTimeoutInMillis);
-            if (TextUtils.isEmpty(mPOSTString)) {
-                connection.setRequestMethod("GET");
-            } else {
-                connection.setRequestMethod("POST");
-                connection.setUseCaches(false);
-                connection.setDoOutput(true);
-                connection.setRequestProperty("Content-Length", Integer.toString(mPOSTString.getBytes().length));
-                OutputStream connectionOutputStream = connection.getOutputStream();
-                OutputStreamWriter wr = new OutputStreamWriter(connectionOutputStream, "UTF-8");
-                wr.write(mPOSTString);
-                wr.flush();
-                wr.close();
+            deadline = scheduleDeadline();
+            // 1. Create call
+            PubnativeHttpTransport.Call call = getTransport().newCall(createTransportRequest(urlString));
+            mCall = call;
+            if (mCanceled || mDeadlineExceeded) {
+                // Aborted before the call was visible to cancel
+                throw new IOException("PubnativeHttpRequest - request aborted");
             }
-            // 3. Do request
-            connection.connect();
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                InputStream inputStream = connection.getInputStream();
-                try {
-                    invokeFinish(stringFromInputStream(inputStream));
-                } catch (PubnativeException ex) {
-                    invokeFail(ex);
+            // 2. Do request
+            response = call.execute();
+            int responseCode = response.getStatusCode();
+            mResponseCode = responseCode;
+            mResponseHeaders = response.getHeaders();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // Conditional request, the client copy is still valid and there is no body
+                PubnativeCircuitBreaker.onSuccess(host);
+                invokeFinish(null);
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                PubnativeCircuitBreaker.onSuccess(host);
+                InputStream responseStream = openResponseStream(response.getBody());
+                if (mStreamProcessor == null) {
+                    try {
+                        invokeFinish(stringFromInputStream(responseStream));
+                    } catch (PubnativeException ex) {
+                        invokeFail(ex);
+                    }
+                } else {
+                    processStream(responseStream);
                 }
             } else {
                 Map errorData = new HashMap();
                 errorData.put("statusCode", responseCode+"");
                 try {
-                    errorData.put("errorString", stringFromInputStream(connection.getErrorStream()));
-                } catch (PubnativeException ex) {
+                    errorData.put("errorString", stringFromInputStream(openResponseStream(response.getBody())));
+                } catch (Exception ex) {
+                    // An unreadable error body must not hide the status code the server sent
                     errorData.put("parsingException", ex.toString());
                 }
-                invokeFail(PubnativeException.extraException(PubnativeException.NETWORK_INVALID_STATUS_CODE, errorData));
+                failure = PubnativeException.extraException(PubnativeException.NETWORK_INVALID_STATUS_CODE, errorData);
+                failureStatusCode = responseCode;
             }
         } catch (Exception exception) {
-            invokeFail(exception);
+            failure = exception;
         } finally {
-            if (connection != null) {
-                connection.disconnect();
+            PubnativeNetworkExecutor.cancel(deadline);
+            mCall = null;
+            if (response != null) {
+                response.close();
+            }
+        }
+        if (failure != null) {
+            onAttemptFailed(urlString, host, failure, failureStatusCode);
+        }
+    }
+
+    protected void onAttemptFailed(String urlString, String host, Exception exception, int statusCode) {
+
+        Log.v(TAG, "onAttemptFailed: " + mAttempt);
+        if (mCanceled) {
+            PubnativeCircuitBreaker.onCanceled(host);
+        } else if (statusCode == 0 || statusCode >= 500 || statusCode == 429) {
+            PubnativeCircuitBreaker.onFailure(host);
+        } else {
+            // The host answered, it's the request that is wrong
+            PubnativeCircuitBreaker.onSuccess(host);
+        }
+        if (mCanceled
+            || mDeadlineExceeded
+            || !mRetryPolicy.shouldRetry(mAttempt, exception, statusCode)
+            || !scheduleRetry(urlString)) {
+            invokeFail(exception);
+        }
+    }
+
+    protected boolean scheduleRetry(final String urlString) {
+
+        Log.v(TAG, "scheduleRetry");
+        long delay = mRetryPolicy.getDelay(mAttempt);
+        if (mDeadlineInMillis > 0 && System.currentTimeMillis() + delay - mStartTimestamp >= mDeadlineInMillis) {
+            // The retry wouldn't finish in time anyway
+            return false;
+        }
+        mRetryFuture = PubnativeNetworkExecutor.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+
+                // The timer thread only queues the attempt, it's done in the network pool
+                boolean queued = PubnativeNetworkExecutor.execute(mPriority, new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        doRequest(urlString);
+                    }
+                });
+                if (!queued) {
+                    invokeFail(PubnativeException.NETWORK_QUEUE_FULL);
+                }
+            }
+        }, delay);
+        return mRetryFuture != null;
+    }
+
+    protected String getHost(String urlString) {
+
+        String result = null;
+        try {
+            // Host and port, different ports are different servers for the breaker
+            result = new URL(urlString).getAuthority();
+        } catch (MalformedURLException exception) {
+            Log.e(TAG, "getHost - Error:" + exception);
+        }
+        return result;
+    }
+
+    protected PubnativeHttpTransport getTransport() {
+
+        PubnativeHttpTransport result = mTransport;
+        if (result == null) {
+            result = sDefaultTransport;
+        }
+        return result;
+    }
+
+    protected PubnativeHttpTransport.Request createTransportRequest(String urlString) throws IOException {
+
+        Log.v(TAG, "createTransportRequest");
+        PubnativeHttpTransport.Request result = new PubnativeHttpTransport.Request();
+        result.url = urlString;
+        result.connectTimeout = mTimeoutInMillis;
+        result.readTimeout = mReadTimeoutInMillis;
+        result.headers = new HashMap<String, String>();
+        // Asking for gzip ourselves turns off the platform transparent decoding, so
+        // responses are decoded the same way on every API level and their bytes can be counted
+        result.headers.put("Accept-Encoding", ENCODING_GZIP);
+        if (mHeaders != null) {
+            result.headers.putAll(mHeaders);
+        }
+        if (!TextUtils.isEmpty(mPOSTString)) {
+            result.method = "POST";
+            byte[] body = mPOSTString.getBytes("UTF-8");
+            result.body = body;
+            if (mGzipPOST && body.length >= MIN_GZIP_BYTES) {
+                result.body = gzip(body);
+                result.headers.put("Content-Encoding", ENCODING_GZIP);
+            }
+            PubnativeTrafficStats.addSent(result.body.length, body.length);
+        }
+        return result;
+    }
+
+    protected Future<?> scheduleDeadline() {
+
+        Log.v(TAG, "scheduleDeadline");
+        Future<?> result = null;
+        if (mDeadlineInMillis > 0) {
+            long remaining = mDeadlineInMillis;
+            if (mStartTimestamp > 0) {
+                remaining -= System.currentTimeMillis() - mStartTimestamp;
+            }
+            if (remaining <= 0) {
+                mDeadlineExceeded = true;
+            } else {
+                result = PubnativeNetworkExecutor.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        Log.w(TAG, "deadline exceeded, aborting request");
+                        mDeadlineExceeded = true;
+                        abortCall();
+                    }
+                }, remaining);
+            }
+        }
+        return result;
+    }
+
+    protected void abortCall() {
+
+        Log.v(TAG, "abortCall");
+        final PubnativeHttpTransport.Call call = mCall;
+        if (call != null) {
+            // Aborting unblocks the request thread, it's done in the timer thread since
+            // it might write to the network (TLS close) and cancel is called from main
+            PubnativeNetworkExecutor.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    call.cancel();
+                }
+            }, 0);
+        }
+    }
+
+    protected byte[] gzip(byte[] body) throws IOException {
+
+        Log.v(TAG, "gzip");
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(body.length / 2);
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream);
+        gzipOutputStream.write(body);
+        gzipOutputStream.close();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    protected InputStream openResponseStream(InputStream wireStream) throws IOException {
+
+        Log.v(TAG, "openResponseStream");
+        InputStream result = null;
+        if (wireStream != null) {
+            result = new PubnativeTrafficStats.CountingInputStream(wireStream, PubnativeTrafficStats.sReceivedBytes);
+            // GZIPInputStream reads the gzip header right away and fails on an empty body
+            if (ENCODING_GZIP.equalsIgnoreCase(getResponseHeader("Content-Encoding")) && !hasEmptyBody()) {
+                result = new GZIPInputStream(result);
+            }
+            result = new PubnativeTrafficStats.CountingInputStream(result, PubnativeTrafficStats.sReceivedDecodedBytes);
+        }
+        return result;
+    }
+
+    protected void processStream(InputStream inputStream) {
+
+        Log.v(TAG, "processStream");
+        long contentLength = getContentLength();
+        if (mMaxResponseSize > 0 && contentLength > mMaxResponseSize) {
+            // Fail before the processor reads anything
+            invokeFail(responseTooLarge(contentLength));
+        } else {
+            LimitedInputStream limitedStream = new LimitedInputStream(inputStream, mMaxResponseSize);
+            try {
+                mStreamProcessor.onPubnativeHttpRequestStream(this, limitedStream);
+                if (limitedStream.isExceeded()) {
+                    // The processor swallowed the error
+                    invokeFail(responseTooLarge(limitedStream.getReadBytes()));
+                } else {
+                    invokeFinish(null);
+                }
+            } catch (Exception exception) {
+                Log.e(TAG, "processStream - Error:" + exception);
+                if (limitedStream.isExceeded()) {
+                    invokeFail(responseTooLarge(limitedStream.getReadBytes()));
+                } else {
+                    Map errorData = new HashMap();
+                    errorData.put("processingException", exception.toString());
+                    invokeFail(PubnativeException.extraException(PubnativeException.NETWORK_INVALID_RESPONSE, errorData));
+                }
             }
         }
     }
@@ -210,31 +664,215 @@ public class PubnativeHttpRequest {
 
         Log.v(TAG, "stringFromInputStream");
         String result = null;
+        ResponseBuffer buffer = readResponse(inputStream);
+        try {
+            result = buffer.toString(CHARSET_UTF8);
+        } catch (UnsupportedEncodingException e) {
+            // Every platform supports UTF-8
+            Log.e(TAG, "stringFromInputStream - Error:" + e);
+        }
+        return result;
+    }
 
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        int length;
+    /**
+     * Reads the whole response body into a byte array, for stream processors that parse bytes
+     * directly. The buffer is sized from Content-Length and the maximum response size applies.
+     *
+     * @param inputStream response body stream
+     *
+     * @return body bytes
+     *
+     * @throws PubnativeException if the body can't be read or it's bigger than the maximum size
+     */
+    public byte[] bytesFromInputStream(InputStream inputStream) throws PubnativeException {
+
+        Log.v(TAG, "bytesFromInputStream");
+        return readResponse(inputStream).getBytes();
+    }
+
+    protected ResponseBuffer readResponse(InputStream inputStream) throws PubnativeException {
+
+        Log.v(TAG, "readResponse");
+        long contentLength = getContentLength();
+        if (mMaxResponseSize > 0 && contentLength > mMaxResponseSize) {
+            // Fail before reading anything
+            throw responseTooLarge(contentLength);
+        }
+        ResponseBuffer result = new ResponseBuffer(getInitialBufferSize(contentLength));
         try {
-            byte[] buffer = new byte[1024];
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int length;
             while ((length = inputStream.read(buffer)) != -1) {
-                byteArrayOutputStream.write(buffer, 0, length);
+                if (mMaxResponseSize > 0 && result.size() + length > mMaxResponseSize) {
+                    throw responseTooLarge(result.size() + length);
+                }
+                result.write(buffer, 0, length);
             }
-            byteArrayOutputStream.flush();
-            result = byteArrayOutputStream.toString();
-            byteArrayOutputStream.close();
         } catch (IOException e) {
-            Log.e(TAG, "stringFromInputStream - Error:" + e);
-
+            Log.e(TAG, "readResponse - Error:" + e);
             Map errorData = new HashMap();
-            if(result == null) {
-                result = byteArrayOutputStream.toString();
+            try {
+                errorData.put("serverResponse", result.toString(CHARSET_UTF8));
+            } catch (UnsupportedEncodingException ex) {
+                // Do nothing
             }
-            errorData.put("serverResponse", result);
             errorData.put("IOException", e.getMessage());
             throw PubnativeException.extraException(PubnativeException.NETWORK_INVALID_RESPONSE, errorData);
         }
         return result;
     }
 
+    /**
+     * Size to allocate before reading a body. The announced length is only trusted up to
+     * MAX_INITIAL_BUFFER_SIZE, so a wrong or hostile header can't allocate a huge buffer when
+     * there is no maximum response size
+     *
+     * @param contentLength announced length, -1 if unknown
+     *
+     * @return initial buffer size in bytes
+     */
+    protected static int getInitialBufferSize(long contentLength) {
+
+        int result = MIN_BUFFER_SIZE;
+        if (contentLength > 0) {
+            result = (int) Math.min(contentLength, MAX_INITIAL_BUFFER_SIZE);
+        }
+        return result;
+    }
+
+    /**
+     * Length of the decoded body as announced by the server
+     *
+     * @return length in bytes, -1 if unknown or the body is compressed
+     */
+    protected long getContentLength() {
+
+        Log.v(TAG, "getContentLength");
+        long result = -1;
+        String contentLength = getResponseHeader("Content-Length");
+        // A compressed body would only give the size on the wire
+        if (!TextUtils.isEmpty(contentLength) && !ENCODING_GZIP.equalsIgnoreCase(getResponseHeader("Content-Encoding"))) {
+            try {
+                result = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "getContentLength - Error:" + e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the response says its body is empty, compressed or not
+     */
+    protected boolean hasEmptyBody() {
+
+        String contentLength = getResponseHeader("Content-Length");
+        return contentLength != null && "0".equals(contentLength.trim());
+    }
+
+    protected PubnativeException responseTooLarge(long size) {
+
+        Log.v(TAG, "responseTooLarge: " + size);
+        Map errorData = new HashMap();
+        errorData.put("responseSize", String.valueOf(size));
+        errorData.put("maxResponseSize", String.valueOf(mMaxResponseSize));
+        return PubnativeException.extraException(PubnativeException.NETWORK_RESPONSE_TOO_LARGE, errorData);
+    }
+
+    /**
+     * Output buffer that hands its array over without copying when it was sized exactly
+     */
+    protected static class ResponseBuffer extends ByteArrayOutputStream {
+
+        public ResponseBuffer(int size) {
+
+            super(size);
+        }
+
+        public byte[] getBytes() {
+
+            byte[] result;
+            if (count == buf.length) {
+                result = buf;
+            } else {
+                result = toByteArray();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Stream that fails once more than the maximum response size is read from it
+     */
+    protected static class LimitedInputStream extends FilterInputStream {
+
+        protected final long    mLimit;
+        protected       long    mReadBytes = 0;
+        protected       boolean mExceeded  = false;
+
+        public LimitedInputStream(InputStream inputStream, long limit) {
+
+            super(inputStream);
+            mLimit = limit;
+        }
+
+        public long getReadBytes() {
+
+            return mReadBytes;
+        }
+
+        public boolean isExceeded() {
+
+            return mExceeded;
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            int result = super.read();
+            if (result != -1) {
+                count(1);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+
+            int result = super.read(buffer, offset, length);
+            if (result > 0) {
+                count(result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long length) throws IOException {
+
+            long result = super.skip(length);
+            if (result > 0) {
+                count(result);
+            }
+            return result;
+        }
+
+        @Override
+        public boolean markSupported() {
+
+            // Reset would read the same bytes twice
+            return false;
+        }
+
+        protected void count(long length) throws IOException {
+
+            mReadBytes += length;
+            if (mLimit > 0 && mReadBytes > mLimit) {
+                mExceeded = true;
+                throw new IOException("response body is bigger than " + mLimit + " bytes");
+            }
+        }
+    }
+
     //==============================================================================================
     // Listener helpers
     //==============================================================================================
@@ -247,7 +885,7 @@ public class PubnativeHttpRequest {
             @Override
             public void run() {
 
-                if (mListener != null) {
+                if (mListener != null && !mCanceled) {
                     mListener.onPubnativeHttpRequestStart(PubnativeHttpRequest.this);
                 }
             }
@@ -262,7 +900,7 @@ public class PubnativeHttpRequest {
             @Override
             public void run() {
 
-                if (mListener != null) {
+                if (mListener != null && !mCanceled) {
                     mListener.onPubnativeHttpRequestFinish(PubnativeHttpRequest.this, result);
                 }
                 mListener = null;
@@ -270,16 +908,18 @@ public class PubnativeHttpRequest {
         });
     }
 
-    protected void invokeFail(final Exception exception) {
+    protected void invokeFail(Exception exception) {
 
         Log.v(TAG, "invokeFail: " + exception);
+        // Whatever broke after the deadline aborted the connection is reported as the deadline
+        final Exception failure = mDeadlineExceeded ? PubnativeException.NETWORK_DEADLINE_EXCEEDED : exception;
         mHandler.post(new Runnable() {
 
             @Override
             public void run() {
 
-                if (mListener != null) {
-                    mListener.onPubnativeHttpRequestFail(PubnativeHttpRequest.this, exception);
+                if (mListener != null && !mCanceled) {
+                    mListener.onPubnativeHttpRequestFail(PubnativeHttpRequest.this, failure);
                 }
                 mListener = null;
             }
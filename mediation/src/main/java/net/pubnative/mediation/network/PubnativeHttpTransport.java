@@ -0,0 +1,107 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HTTP stack used by PubnativeHttpRequest, so the SDK networking can run over a different
+ * client, share the app connection pool or be benchmarked against an in-process server
+ */
+public interface PubnativeHttpTransport {
+
+    /**
+     * Creates a call for the given request without doing any I/O
+     *
+     * @param request request to be executed
+     *
+     * @return call ready to be executed
+     */
+    Call newCall(Request request);
+
+    /**
+     * A single request/response exchange
+     */
+    interface Call {
+
+        /**
+         * Sends the request and blocks until the response status and headers are received
+         *
+         * @return valid response, it must be closed after reading it
+         *
+         * @throws IOException if the exchange fails or the call was canceled
+         */
+        Response execute() throws IOException;
+
+        /**
+         * Aborts the call from any thread, unblocking any I/O in progress. Might do network
+         * work, so it shouldn't be called from the main thread
+         */
+        void cancel();
+    }
+
+    interface Response {
+
+        /**
+         * @return HTTP status code
+         */
+        int getStatusCode();
+
+        /**
+         * @return response headers, the map can't be modified
+         */
+        Map<String, List<String>> getHeaders();
+
+        /**
+         * Gets the response body as it comes from the wire, the error body for unsuccessful
+         * status codes
+         *
+         * @return body stream, null if there is no body
+         *
+         * @throws IOException if the body can't be opened
+         */
+        InputStream getBody() throws IOException;
+
+        /**
+         * Releases the response. Transports that keep connections alive reuse them here
+         */
+        void close();
+    }
+
+    /**
+     * Transport independent description of a request
+     */
+    class Request {
+
+        public String              url;
+        public String              method         = "GET";
+        public Map<String, String> headers        = null;
+        public byte[]              body           = null;
+        public int                 connectTimeout = 0;
+        public int                 readTimeout    = 0;
+    }
+}
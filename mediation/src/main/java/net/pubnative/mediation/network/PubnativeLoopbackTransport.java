@@ -0,0 +1,218 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.network;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory transport that answers every request in process without opening sockets, meant
+ * for load tests and benchmarks that need deterministic responses
+ */
+public class PubnativeLoopbackTransport implements PubnativeHttpTransport {
+
+    private static final String     TAG           = PubnativeLoopbackTransport.class.getSimpleName();
+    protected final      Responder  mResponder;
+    protected final      AtomicLong mRequestCount = new AtomicLong();
+
+    /**
+     * Produces the reply for each request, it's called from the network threads
+     */
+    public interface Responder {
+
+        /**
+         * @param request request being executed
+         *
+         * @return reply for the request, null fails the request with an IOException
+         */
+        Reply respond(Request request);
+    }
+
+    /**
+     * Response returned by the loopback
+     */
+    public static class Reply {
+
+        public int                       statusCode;
+        public Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        public byte[]                    body;
+
+        public Reply(int statusCode, byte[] body) {
+
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        public Reply(int statusCode, String body) {
+
+            this(statusCode, toBytes(body));
+        }
+
+        public Reply setHeader(String key, String value) {
+
+            List<String> values = new ArrayList<String>();
+            values.add(value);
+            headers.put(key, values);
+            return this;
+        }
+    }
+
+    //==============================================================================================
+    // PubnativeLoopbackTransport
+    //==============================================================================================
+
+    /**
+     * Creates a loopback that answers with the given responder
+     *
+     * @param responder valid responder
+     */
+    public PubnativeLoopbackTransport(Responder responder) {
+
+        mResponder = responder;
+    }
+
+    /**
+     * Creates a loopback that answers every request with the same reply
+     *
+     * @param statusCode HTTP status code
+     * @param body       response body
+     */
+    public PubnativeLoopbackTransport(int statusCode, String body) {
+
+        final byte[] bodyBytes = toBytes(body);
+        final int code = statusCode;
+        mResponder = new Responder() {
+
+            @Override
+            public Reply respond(Request request) {
+
+                return new Reply(code, bodyBytes);
+            }
+        };
+    }
+
+    /**
+     * Gets the amount of requests executed through this transport
+     *
+     * @return request count
+     */
+    public long getRequestCount() {
+
+        return mRequestCount.get();
+    }
+
+    @Override
+    public Call newCall(Request request) {
+
+        Log.v(TAG, "newCall: " + request.url);
+        return new LoopbackCall(request);
+    }
+
+    //==============================================================================================
+    // Private methods
+    //==============================================================================================
+
+    protected static byte[] toBytes(String body) {
+
+        byte[] result = null;
+        if (body != null) {
+            try {
+                result = body.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException exception) {
+                // UTF-8 is always supported
+                result = body.getBytes();
+            }
+        }
+        return result;
+    }
+
+    protected class LoopbackCall implements Call, Response {
+
+        protected final    Request mRequest;
+        protected volatile boolean mCanceled = false;
+        protected          Reply   mReply    = null;
+
+        protected LoopbackCall(Request request) {
+
+            mRequest = request;
+        }
+
+        @Override
+        public Response execute() throws IOException {
+
+            mRequestCount.incrementAndGet();
+            if (mCanceled) {
+                throw new IOException("PubnativeLoopbackTransport - call canceled");
+            }
+            mReply = mResponder.respond(mRequest);
+            if (mReply == null) {
+                throw new IOException("PubnativeLoopbackTransport - no reply for " + mRequest.url);
+            }
+            return this;
+        }
+
+        @Override
+        public void cancel() {
+
+            mCanceled = true;
+        }
+
+        @Override
+        public int getStatusCode() {
+
+            return mReply.statusCode;
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaders() {
+
+            return Collections.unmodifiableMap(mReply.headers);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+
+            InputStream result = null;
+            if (mReply.body != null) {
+                result = new ByteArrayInputStream(mReply.body);
+            }
+            return result;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+    }
+}
@@ -0,0 +1,412 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.network;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared, bounded pool where all the SDK network work runs, so bursts of beacons, config
+ * refreshes and image downloads don't create a new thread each. Work is taken by priority,
+ * and analytics work is deferred while critical work is in flight
+ */
+public class PubnativeNetworkExecutor {
+
+    private static final   String                      TAG                = PubnativeNetworkExecutor.class.getSimpleName();
+    protected static final String                      THREAD_NAME_PREFIX = "PubnativeIO #";
+    protected static final String                      TIMER_NAME_PREFIX  = "PubnativeTimer #";
+    protected static final int                         MAX_POOL_SIZE      = 4;
+    protected static final int                         CORE_POOL_SIZE     = MAX_POOL_SIZE; // The pool never grows past core with an unbounded queue
+    protected static final int                         MAX_QUEUE_SIZE     = 64;
+    protected static final long                        KEEP_ALIVE_SECONDS = 30;
+    protected static final long                        DEFER_DELAY        = 250;
+    protected static final long                        MAX_DEFER_TIME     = 5000;
+    protected static       ThreadPoolExecutor          sExecutor          = null;
+    protected static       ScheduledThreadPoolExecutor sTimer             = null;
+    protected static final AtomicLong                  sRejectedCount     = new AtomicLong();
+    protected static final AtomicLong                  sSequence          = new AtomicLong();
+    protected static final AtomicInteger               sCriticalInFlight  = new AtomicInteger();
+    protected static final AtomicLong[]                sExecutedCount     = newCounters();
+    protected static final AtomicLong[]                sTotalQueueWait    = newCounters();
+    protected static final AtomicLong[]                sMaxQueueWait      = newCounters();
+
+    /**
+     * Priority classes of the network work, taken in this order
+     */
+    public enum Priority {
+        // Config downloads and ad serving, the next ad depends on them
+        CRITICAL,
+        // Creative assets like images
+        ASSET,
+        // Insight beacons, deferred while there is critical work in flight
+        ANALYTICS
+    }
+
+    //==============================================================================================
+    // PubnativeNetworkExecutor
+    //==============================================================================================
+
+    private PubnativeNetworkExecutor() {
+        // Static access only
+    }
+
+    /**
+     * Queues the given work in the shared network pool as critical work
+     *
+     * @param runnable work to be executed in background
+     *
+     * @return true if it was queued, false if the queue is full and it was rejected
+     */
+    public static boolean execute(Runnable runnable) {
+
+        return execute(Priority.CRITICAL, runnable);
+    }
+
+    /**
+     * Queues the given work in the shared network pool, it runs after any queued work of
+     * higher priority
+     *
+     * @param priority priority class of the work
+     * @param runnable work to be executed in background
+     *
+     * @return true if it was queued, false if the queue is full and it was rejected
+     */
+    public static boolean execute(Priority priority, Runnable runnable) {
+
+        Log.v(TAG, "execute: " + priority);
+        return enqueue(new PrioritizedTask(priority, runnable));
+    }
+
+    /**
+     * Runs the given work after a delay in a single timer thread. Meant for short work like
+     * watchdogs, blocking work must go through execute
+     *
+     * @param runnable      work to be executed
+     * @param delayInMillis delay in milliseconds
+     *
+     * @return future that can be used to cancel the work, null if it couldn't be scheduled
+     */
+    public static Future<?> schedule(Runnable runnable, long delayInMillis) {
+
+        Log.v(TAG, "schedule: " + delayInMillis);
+        Future<?> result = null;
+        try {
+            result = getTimer().schedule(runnable, delayInMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException exception) {
+            Log.e(TAG, "schedule - Error: " + exception);
+        }
+        return result;
+    }
+
+    /**
+     * Cancels work returned by schedule, removing it from the timer queue
+     *
+     * @param future scheduled work, null is ignored
+     */
+    public static void cancel(Future<?> future) {
+
+        Log.v(TAG, "cancel");
+        if (future != null && future.cancel(false)) {
+            getTimer().purge();
+        }
+    }
+
+    /**
+     * Gets the amount of threads currently in the pool
+     *
+     * @return pool size
+     */
+    public static int getPoolSize() {
+
+        return getExecutor().getPoolSize();
+    }
+
+    /**
+     * Gets the amount of threads currently running work
+     *
+     * @return active thread count
+     */
+    public static int getActiveCount() {
+
+        return getExecutor().getActiveCount();
+    }
+
+    /**
+     * Gets the amount of work waiting for a free thread
+     *
+     * @return queue depth
+     */
+    public static int getQueueSize() {
+
+        return getExecutor().getQueue().size();
+    }
+
+    /**
+     * Gets the amount of work that was rejected because the queue was full
+     *
+     * @return rejection count since the process started
+     */
+    public static long getRejectedCount() {
+
+        return sRejectedCount.get();
+    }
+
+    /**
+     * Gets the amount of work that already finished
+     *
+     * @return completed count since the process started
+     */
+    public static long getCompletedCount() {
+
+        return getExecutor().getCompletedTaskCount();
+    }
+
+    /**
+     * Gets the amount of work of a priority class that started running
+     *
+     * @param priority priority class
+     *
+     * @return executed count since the process started
+     */
+    public static long getExecutedCount(Priority priority) {
+
+        return sExecutedCount[priority.ordinal()].get();
+    }
+
+    /**
+     * Gets the average time work of a priority class waited since it was queued until it
+     * started running, including the time it was deferred
+     *
+     * @param priority priority class
+     *
+     * @return average wait in milliseconds, 0 if nothing ran yet
+     */
+    public static long getAverageQueueWait(Priority priority) {
+
+        long executed = getExecutedCount(priority);
+        return executed == 0 ? 0 : sTotalQueueWait[priority.ordinal()].get() / executed;
+    }
+
+    /**
+     * Gets the longest time work of a priority class waited until it started running
+     *
+     * @param priority priority class
+     *
+     * @return max wait in milliseconds
+     */
+    public static long getMaxQueueWait(Priority priority) {
+
+        return sMaxQueueWait[priority.ordinal()].get();
+    }
+
+    //==============================================================================================
+    // Private methods
+    //==============================================================================================
+
+    protected synchronized static ThreadPoolExecutor getExecutor() {
+
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(CORE_POOL_SIZE,
+                                               MAX_POOL_SIZE,
+                                               KEEP_ALIVE_SECONDS,
+                                               TimeUnit.SECONDS,
+                                               new PriorityBlockingQueue<Runnable>(MAX_QUEUE_SIZE),
+                                               new NetworkThreadFactory(THREAD_NAME_PREFIX),
+                                               new RejectedExecutionHandler() {
+
+                                                   @Override
+                                                   public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+
+                                                       sRejectedCount.incrementAndGet();
+                                                       throw new RejectedExecutionException("PubnativeNetworkExecutor - queue is full");
+                                                   }
+                                               });
+            // Idle apps don't keep any SDK thread alive
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    protected synchronized static ScheduledThreadPoolExecutor getTimer() {
+
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, new NetworkThreadFactory(TIMER_NAME_PREFIX));
+            sTimer.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            sTimer.allowCoreThreadTimeOut(true);
+        }
+        return sTimer;
+    }
+
+    /**
+     * Queues the task in the pool unless the queue is full. Every task, new or deferred, goes
+     * through here so the queue limit always holds
+     */
+    protected static boolean enqueue(PrioritizedTask task) {
+
+        boolean result = false;
+        try {
+            ThreadPoolExecutor executor = getExecutor();
+            synchronized (executor) {
+                // The priority queue is unbounded, the limit is checked here
+                if (executor.getQueue().size() >= MAX_QUEUE_SIZE) {
+                    executor.getRejectedExecutionHandler().rejectedExecution(task, executor);
+                }
+                if (task.mPriority == Priority.CRITICAL) {
+                    sCriticalInFlight.incrementAndGet();
+                }
+                executor.execute(task);
+            }
+            result = true;
+        } catch (RejectedExecutionException exception) {
+            Log.e(TAG, "enqueue - Error: network queue is full, dropping " + task.mPriority + " work");
+        }
+        return result;
+    }
+
+    protected static AtomicLong[] newCounters() {
+
+        AtomicLong[] result = new AtomicLong[Priority.values().length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = new AtomicLong();
+        }
+        return result;
+    }
+
+    protected static void recordQueueWait(Priority priority, long wait) {
+
+        int index = priority.ordinal();
+        sExecutedCount[index].incrementAndGet();
+        sTotalQueueWait[index].addAndGet(wait);
+        long max = sMaxQueueWait[index].get();
+        while (wait > max && !sMaxQueueWait[index].compareAndSet(max, wait)) {
+            max = sMaxQueueWait[index].get();
+        }
+    }
+
+    /**
+     * Work ordered by priority class first and by queue order inside each class
+     */
+    protected static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+
+        protected final Priority mPriority;
+        protected final Runnable mRunnable;
+        protected final long     mQueuedAt;
+        protected       long     mSequence;
+
+        protected PrioritizedTask(Priority priority, Runnable runnable) {
+
+            mPriority = priority;
+            mRunnable = runnable;
+            mQueuedAt = System.currentTimeMillis();
+            mSequence = sSequence.incrementAndGet();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask another) {
+
+            int result = mPriority.compareTo(another.mPriority);
+            if (result == 0) {
+                result = mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+            }
+            return result;
+        }
+
+        @Override
+        public void run() {
+
+            long wait = System.currentTimeMillis() - mQueuedAt;
+            if (mPriority == Priority.ANALYTICS && sCriticalInFlight.get() > 0 && wait < MAX_DEFER_TIME && defer()) {
+                return;
+            }
+            recordQueueWait(mPriority, wait);
+            if (mPriority == Priority.ANALYTICS) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE);
+            }
+            try {
+                mRunnable.run();
+            } finally {
+                if (mPriority == Priority.CRITICAL) {
+                    sCriticalInFlight.decrementAndGet();
+                } else if (mPriority == Priority.ANALYTICS) {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                }
+            }
+        }
+
+        /**
+         * Queues this task again after a while, freeing the thread for the critical work
+         */
+        protected boolean defer() {
+
+            Log.v(TAG, "defer");
+            // Deferred work goes behind what was queued meanwhile in its class
+            mSequence = sSequence.incrementAndGet();
+            return schedule(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    // Dropped like any other work if the queue filled up meanwhile
+                    enqueue(PrioritizedTask.this);
+                }
+            }, DEFER_DELAY) != null;
+        }
+    }
+
+    protected static class NetworkThreadFactory implements ThreadFactory {
+
+        protected final AtomicInteger mCount = new AtomicInteger();
+        protected final String        mNamePrefix;
+
+        protected NetworkThreadFactory(String namePrefix) {
+
+            mNamePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+
+            return new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, mNamePrefix + mCount.incrementAndGet());
+        }
+    }
+}
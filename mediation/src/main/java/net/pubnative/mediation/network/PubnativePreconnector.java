@@ -0,0 +1,198 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.network;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.pubnative.mediation.utils.PubnativeDeviceUtils;
+
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves and connects to the hosts the SDK is going to talk to before it needs them, so the
+ * first config download and beacons don't pay for DNS and TCP/TLS setup. The connections are
+ * left in the transport keep-alive pool for the next requests
+ */
+public class PubnativePreconnector {
+
+    private static final   String            TAG             = PubnativePreconnector.class.getSimpleName();
+    protected static final long              WARM_UP_TTL     = 5 * 60 * 1000; // Idle connections don't live longer
+    protected static final int               WARM_UP_TIMEOUT = 4000;
+    protected static       boolean           sEnabled        = true;
+    protected static       Map<String, Long> sWarmedOrigins  = new HashMap<String, Long>();
+
+    //==============================================================================================
+    // PubnativePreconnector
+    //==============================================================================================
+
+    private PubnativePreconnector() {
+        // Static access only
+    }
+
+    /**
+     * Enables or disables pre-connecting. Enabled by default
+     *
+     * @param enabled true to warm up hosts
+     */
+    public static void setEnabled(boolean enabled) {
+
+        Log.v(TAG, "setEnabled: " + enabled);
+        sEnabled = enabled;
+    }
+
+    /**
+     * Warms up in background the distinct hosts of the given URLs with the default transport.
+     * Hosts warmed up recently or with an open circuit are skipped
+     *
+     * @param context valid context
+     * @param urls    URLs that are going to be requested, invalid or empty ones are ignored
+     *
+     * @return amount of hosts queued for warm up
+     */
+    public static int preconnect(Context context, Collection<String> urls) {
+
+        return preconnect(context, urls, null);
+    }
+
+    /**
+     * Warms up in background the distinct hosts of the given URLs. The connections are left in
+     * the pool of the given transport, so it has to be the one the requests will use
+     *
+     * @param context   valid context
+     * @param urls      URLs that are going to be requested, invalid or empty ones are ignored
+     * @param transport transport that will send the requests, null for the default one
+     *
+     * @return amount of hosts queued for warm up
+     */
+    public static int preconnect(Context context, Collection<String> urls, PubnativeHttpTransport transport) {
+
+        Log.v(TAG, "preconnect");
+        int result = 0;
+        if (sEnabled && context != null && urls != null && PubnativeDeviceUtils.isNetworkAvailable(context)) {
+            final PubnativeHttpTransport warmUpTransport = transport == null ? PubnativeHttpRequest.sDefaultTransport : transport;
+            for (final String origin : getOrigins(urls)) {
+                // Each transport has its own connection pool
+                final String warmUpKey = getWarmUpKey(origin, warmUpTransport);
+                if (markWarmed(warmUpKey)) {
+                    boolean queued = PubnativeNetworkExecutor.execute(PubnativeNetworkExecutor.Priority.ASSET, new Runnable() {
+
+                        @Override
+                        public void run() {
+
+                            warmUp(origin, warmUpKey, warmUpTransport);
+                        }
+                    });
+                    if (queued) {
+                        result++;
+                    } else {
+                        forget(warmUpKey);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    //==============================================================================================
+    // Private methods
+    //==============================================================================================
+
+    protected static Set<String> getOrigins(Collection<String> urls) {
+
+        Set<String> result = new LinkedHashSet<String>();
+        for (String urlString : urls) {
+            if (!TextUtils.isEmpty(urlString)) {
+                try {
+                    URL url = new URL(urlString);
+                    if (url.getProtocol().startsWith("http") && !TextUtils.isEmpty(url.getHost())) {
+                        result.add(url.getProtocol() + "://" + url.getAuthority());
+                    }
+                } catch (MalformedURLException exception) {
+                    Log.w(TAG, "getOrigins - invalid url: " + urlString);
+                }
+            }
+        }
+        return result;
+    }
+
+    protected static String getWarmUpKey(String origin, PubnativeHttpTransport transport) {
+
+        return origin + "#" + System.identityHashCode(transport);
+    }
+
+    protected synchronized static boolean markWarmed(String warmUpKey) {
+
+        boolean result = false;
+        long now = System.currentTimeMillis();
+        Long warmedAt = sWarmedOrigins.get(warmUpKey);
+        if (warmedAt == null || now - warmedAt >= WARM_UP_TTL) {
+            sWarmedOrigins.put(warmUpKey, now);
+            result = true;
+        }
+        return result;
+    }
+
+    protected synchronized static void forget(String warmUpKey) {
+
+        sWarmedOrigins.remove(warmUpKey);
+    }
+
+    protected synchronized static void reset() {
+
+        sWarmedOrigins.clear();
+    }
+
+    protected static void warmUp(String origin, String warmUpKey, PubnativeHttpTransport transport) {
+
+        Log.v(TAG, "warmUp: " + origin);
+        try {
+            URL url = new URL(origin + "/");
+            if (PubnativeCircuitBreaker.getState(url.getAuthority()) != PubnativeCircuitBreaker.State.CLOSED) {
+                // Leave the struggling host alone
+                forget(warmUpKey);
+                return;
+            }
+            InetAddress.getAllByName(url.getHost());
+            PubnativeHttpTransport.Request request = new PubnativeHttpTransport.Request();
+            request.url = url.toString();
+            request.method = "HEAD";
+            request.connectTimeout = WARM_UP_TIMEOUT;
+            request.readTimeout = WARM_UP_TIMEOUT;
+            // Closing the response hands the connection to the keep-alive pool
+            transport.newCall(request).execute().close();
+        } catch (Exception exception) {
+            Log.w(TAG, "warmUp - Error: " + exception);
+            forget(warmUpKey);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.network;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Decides if and when a failed request is attempted again, using exponential backoff with
+ * jitter so devices don't retry in sync against a backend that is already struggling
+ */
+public class PubnativeRetryPolicy {
+
+    protected static final Random               sRandom = new Random();
+    // Fails at the first error
+    public static final    PubnativeRetryPolicy NONE    = new PubnativeRetryPolicy(1, 0, 0);
+    // Shared by the SDK requests, 3 attempts waiting around 1s and 2s between them
+    public static final    PubnativeRetryPolicy DEFAULT = new PubnativeRetryPolicy(3, 1000, 30000);
+    protected final        int                  mMaxAttempts;
+    protected final        long                 mBaseDelay;
+    protected final        long                 mMaxDelay;
+
+    /**
+     * Creates a new policy
+     *
+     * @param maxAttempts max amount of attempts including the first one, at least 1
+     * @param baseDelay   delay in milliseconds before the second attempt, doubled on every retry
+     * @param maxDelay    max delay in milliseconds between attempts
+     */
+    public PubnativeRetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+
+        mMaxAttempts = Math.max(1, maxAttempts);
+        mBaseDelay = Math.max(0, baseDelay);
+        mMaxDelay = Math.max(mBaseDelay, maxDelay);
+    }
+
+    public int getMaxAttempts() {
+
+        return mMaxAttempts;
+    }
+
+    /**
+     * Checks if a request should be attempted again after the given failure. Only connection
+     * errors and server side status codes (5xx and 429) are retried, the rest would fail again
+     *
+     * @param attempt    attempt that just failed, starting at 1
+     * @param exception  exception of the failed attempt, null if it failed by status code
+     * @param statusCode status code of the failed attempt, 0 if there was no response
+     *
+     * @return true if it should be retried
+     */
+    public boolean shouldRetry(int attempt, Exception exception, int statusCode) {
+
+        boolean result = false;
+        if (attempt < mMaxAttempts) {
+            if (statusCode > 0) {
+                result = statusCode >= 500 || statusCode == 429;
+            } else {
+                result = exception instanceof IOException;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the delay before the next attempt, half of it is fixed and half of it random
+     *
+     * @param attempt attempt that just failed, starting at 1
+     *
+     * @return delay in milliseconds
+     */
+    public long getDelay(int attempt) {
+
+        return getDelay(attempt, sRandom);
+    }
+
+    protected long getDelay(int attempt, Random random) {
+
+        long delay = mBaseDelay;
+        for (int i = 1; i < attempt && delay < mMaxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, mMaxDelay);
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+}
@@ -0,0 +1,172 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.network;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Body byte counters of all the SDK requests, both as they go through the wire and as they are
+ * before compression, so the bandwidth saved by gzip can be measured
+ */
+public class PubnativeTrafficStats {
+
+    protected static final AtomicLong sSentBytes             = new AtomicLong();
+    protected static final AtomicLong sSentUncompressedBytes = new AtomicLong();
+    protected static final AtomicLong sReceivedBytes         = new AtomicLong();
+    protected static final AtomicLong sReceivedDecodedBytes  = new AtomicLong();
+
+    //==============================================================================================
+    // PubnativeTrafficStats
+    //==============================================================================================
+
+    private PubnativeTrafficStats() {
+        // Static access only
+    }
+
+    /**
+     * Gets the request body bytes written to the wire
+     *
+     * @return sent bytes since the process started
+     */
+    public static long getSentBytes() {
+
+        return sSentBytes.get();
+    }
+
+    /**
+     * Gets the request body bytes before compression
+     *
+     * @return uncompressed sent bytes since the process started
+     */
+    public static long getSentUncompressedBytes() {
+
+        return sSentUncompressedBytes.get();
+    }
+
+    /**
+     * Gets the response body bytes read from the wire
+     *
+     * @return received bytes since the process started
+     */
+    public static long getReceivedBytes() {
+
+        return sReceivedBytes.get();
+    }
+
+    /**
+     * Gets the response body bytes after decompression
+     *
+     * @return decoded received bytes since the process started
+     */
+    public static long getReceivedDecodedBytes() {
+
+        return sReceivedDecodedBytes.get();
+    }
+
+    /**
+     * Gets the bytes that didn't go through the wire thanks to compression
+     *
+     * @return saved bytes in both directions since the process started
+     */
+    public static long getSavedBytes() {
+
+        return (getSentUncompressedBytes() - getSentBytes())
+               + (getReceivedDecodedBytes() - getReceivedBytes());
+    }
+
+    /**
+     * Sets all the counters back to 0
+     */
+    public static void reset() {
+
+        sSentBytes.set(0);
+        sSentUncompressedBytes.set(0);
+        sReceivedBytes.set(0);
+        sReceivedDecodedBytes.set(0);
+    }
+
+    //==============================================================================================
+    // Private methods
+    //==============================================================================================
+
+    protected static void addSent(long wireBytes, long uncompressedBytes) {
+
+        sSentBytes.addAndGet(wireBytes);
+        sSentUncompressedBytes.addAndGet(uncompressedBytes);
+    }
+
+    /**
+     * Stream that adds every byte read from it to the given counter
+     */
+    protected static class CountingInputStream extends FilterInputStream {
+
+        protected final AtomicLong mCounter;
+
+        protected CountingInputStream(InputStream inputStream, AtomicLong counter) {
+
+            super(inputStream);
+            mCounter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            int result = super.read();
+            if (result != -1) {
+                mCounter.incrementAndGet();
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+
+            int result = super.read(buffer, offset, count);
+            if (result > 0) {
+                mCounter.addAndGet(result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+
+            long result = super.skip(count);
+            if (result > 0) {
+                mCounter.addAndGet(result);
+            }
+            return result;
+        }
+
+        @Override
+        public boolean markSupported() {
+
+            // Counting twice the same bytes would break the stats
+            return false;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.network;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Default transport over the platform HttpURLConnection
+ */
+public class PubnativeUrlConnectionTransport implements PubnativeHttpTransport {
+
+    private static final   String  TAG              = PubnativeUrlConnectionTransport.class.getSimpleName();
+    protected static final int     MAX_DRAIN_BYTES  = 16 * 1024;
+    protected static       boolean sConnectionReuse = true;
+
+    //==============================================================================================
+    // PubnativeUrlConnectionTransport
+    //==============================================================================================
+
+    /**
+     * Enables or disables reusing connections between requests. When enabled, responses are
+     * fully read and closed so the socket goes back to the keep-alive pool instead of being
+     * disconnected, saving the TCP and TLS handshakes for the next request to the same host.
+     * Enabled by default.
+     *
+     * @param enabled true to reuse connections, false to disconnect after each request
+     */
+    public static void setConnectionReuse(boolean enabled) {
+
+        Log.v(TAG, "setConnectionReuse: " + enabled);
+        sConnectionReuse = enabled;
+    }
+
+    /**
+     * Sets the keep-alive pool limits of the platform HttpURLConnection. These are read when
+     * the first connection is created, so they need to be set before the first request
+     *
+     * @param maxIdleConnections  max idle connections kept per host
+     * @param keepAliveDuration   time in milliseconds an idle connection is kept
+     */
+    public static void setConnectionPoolLimits(int maxIdleConnections, long keepAliveDuration) {
+
+        Log.v(TAG, "setConnectionPoolLimits: " + maxIdleConnections + ", " + keepAliveDuration);
+        System.setProperty("http.keepAlive", maxIdleConnections > 0 ? "true" : "false");
+        System.setProperty("http.maxConnections", String.valueOf(maxIdleConnections));
+        System.setProperty("http.keepAliveDuration", String.valueOf(keepAliveDuration));
+    }
+
+    @Override
+    public Call newCall(Request request) {
+
+        Log.v(TAG, "newCall: " + request.url);
+        return new UrlConnectionCall(request);
+    }
+
+    //==============================================================================================
+    // Private methods
+    //==============================================================================================
+
+    protected static void disableConnectionReuseIfNecessary() {
+        // HTTP connection reuse which was buggy pre-froyo
+        if (Integer.parseInt(Build.VERSION.SDK) < Build.VERSION_CODES.FROYO) {
+            System.setProperty("http.keepAlive", "false");
+        }
+    }
+
+    protected static boolean drainAndClose(InputStream inputStream) {
+
+        Log.v(TAG, "drainAndClose");
+        boolean result = true;
+        if (inputStream != null) {
+            try {
+                byte[] buffer = new byte[1024];
+                int drained = 0;
+                int length;
+                while (drained <= MAX_DRAIN_BYTES && (length = inputStream.read(buffer)) != -1) {
+                    drained += length;
+                }
+                // Reading big leftovers costs more than a new handshake
+                result = drained <= MAX_DRAIN_BYTES;
+            } catch (IOException exception) {
+                result = false;
+            } finally {
+                try {
+                    inputStream.close();
+                } catch (IOException exception) {
+                    Log.e(TAG, "drainAndClose - Error:" + exception);
+                }
+            }
+        }
+        return result;
+    }
+
+    protected static class UrlConnectionCall implements Call, Response {
+
+        protected final    Request           mRequest;
+        protected volatile HttpURLConnection mConnection = null;
+        protected volatile boolean           mCanceled   = false;
+        protected          int               mStatusCode = 0;
+        protected          InputStream       mBody       = null;
+
+        protected UrlConnectionCall(Request request) {
+
+            mRequest = request;
+        }
+
+        @Override
+        public Response execute() throws IOException {
+
+            Log.v(TAG, "execute");
+            disableConnectionReuseIfNecessary();
+            HttpURLConnection connection = (HttpURLConnection) new URL(mRequest.url).openConnection();
+            mConnection = connection;
+            if (mCanceled) {
+                // Canceled before the connection was visible to cancel
+                connection.disconnect();
+                throw new IOException("PubnativeUrlConnectionTransport - call canceled");
+            }
+            try {
+                connection.setDoInput(true);
+                connection.setConnectTimeout(mRequest.connectTimeout);
+                connection.setReadTimeout(mRequest.readTimeout);
+                if (mRequest.headers != null) {
+                    for (String key : mRequest.headers.keySet()) {
+                        connection.setRequestProperty(key, mRequest.headers.get(key));
+                    }
+                }
+                connection.setRequestMethod(mRequest.method);
+                if (mRequest.body != null) {
+                    connection.setUseCaches(false);
+                    connection.setDoOutput(true);
+                    connection.setRequestProperty("Content-Length", Integer.toString(mRequest.body.length));
+                    OutputStream connectionOutputStream = connection.getOutputStream();
+                    connectionOutputStream.write(mRequest.body);
+                    connectionOutputStream.flush();
+                    connectionOutputStream.close();
+                }
+                connection.connect();
+                mStatusCode = connection.getResponseCode();
+            } catch (IOException exception) {
+                connection.disconnect();
+                throw exception;
+            }
+            return this;
+        }
+
+        @Override
+        public void cancel() {
+
+            Log.v(TAG, "cancel");
+            mCanceled = true;
+            HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                // Closing the socket unblocks the thread doing the request
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public int getStatusCode() {
+
+            return mStatusCode;
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaders() {
+
+            return mConnection.getHeaderFields();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+
+            if (mBody == null) {
+                if (mStatusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    mBody = mConnection.getErrorStream();
+                } else {
+                    mBody = mConnection.getInputStream();
+                }
+            }
+            return mBody;
+        }
+
+        @Override
+        public void close() {
+
+            Log.v(TAG, "close");
+            boolean reused = false;
+            if (sConnectionReuse && !mCanceled) {
+                // A connection only goes back to the keep-alive pool when its response was read to the end
+                try {
+                    reused = drainAndClose(getBody());
+                } catch (IOException exception) {
+                    Log.e(TAG, "close - Error:" + exception);
+                }
+            }
+            if (!reused) {
+                mConnection.disconnect();
+            }
+        }
+    }
+}
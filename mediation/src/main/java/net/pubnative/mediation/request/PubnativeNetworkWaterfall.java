@@ -31,6 +31,7 @@ import net.pubnative.AdvertisingIdClient;
 import net.pubnative.mediation.adapter.PubnativeNetworkHub;
 import net.pubnative.mediation.adapter.PubnativeNetworkHubFactory;
 import net.pubnative.mediation.config.PubnativePlacement;
+import net.pubnative.mediation.config.PubnativePlacementPlan;
 import net.pubnative.mediation.config.model.PubnativeConfigModel;
 import net.pubnative.mediation.config.model.PubnativeNetworkModel;
 import net.pubnative.mediation.exceptions.PubnativeException;
@@ -133,7 +134,7 @@ public abstract class PubnativeNetworkWaterfall {
         mInsight.addExtra(TRACKING_PARAMETER_APP_TOKEN, mPlacement.getAppToken());
         mInsight.addExtra(TRACKING_PARAMETER_REQUEST_ID, mPlacement.getTrackingUUID());
         mInsight.addExtras(mPlacement.getConfig().request_params);
-        AdvertisingIdClient.getAdvertisingId(mContext, new AdvertisingIdClient.Listener() {
+        PubnativeDeviceUtils.getAdvertisingId(mContext, new AdvertisingIdClient.Listener() {
 
             @Override
             public void onAdvertisingIdClientFinish(AdvertisingIdClient.AdInfo adInfo) {
@@ -156,14 +157,14 @@ public abstract class PubnativeNetworkWaterfall {
 
         Log.v(TAG, "getNextNetwork");
         mPlacement.next();
-        PubnativeNetworkModel network = mPlacement.currentNetwork();
-        if (network == null) {
+        PubnativePlacementPlan.Step step = mPlacement.currentStep();
+        if (step == null || step.network == null) {
             mInsight.sendRequestInsight();
             onWaterfallError(PubnativeException.PLACEMENT_NO_FILL);
         } else {
-            PubnativeNetworkHub hub = PubnativeNetworkHubFactory.createHub(network);
+            PubnativeNetworkHub hub = PubnativeNetworkHubFactory.createHub(step.hubConstructor, step.network);
             if (hub == null) {
-                mInsight.trackUnreachableNetwork(mPlacement.currentPriority(), 0, PubnativeException.ADAPTER_NOT_FOUND);
+                mInsight.trackUnreachableNetwork(step.priority, 0, PubnativeException.ADAPTER_NOT_FOUND);
                 getNextNetwork();
             } else {
                 Map<String, String> extras = new HashMap<String, String>();
@@ -178,7 +179,7 @@ public abstract class PubnativeNetworkWaterfall {
                     extras.putAll(mRequestParameters);
                 }
 
-                onWaterfallNextNetwork(hub, network, extras, mPlacement.currentPriority().cache_links);
+                onWaterfallNextNetwork(hub, step.network, extras, step.cacheLinks);
             }
         }
     }
@@ -31,6 +31,9 @@ import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 
+import net.pubnative.mediation.exceptions.PubnativeException;
+import net.pubnative.mediation.network.PubnativeNetworkExecutor;
+
 import java.lang.ref.WeakReference;
 import java.net.URL;
 
@@ -89,7 +92,7 @@ public class ImageDownloader {
     private void downloadImage(final String urlString) {
 
         Log.v(TAG, "downloadImage");
-        new Thread(new Runnable() {
+        boolean queued = PubnativeNetworkExecutor.execute(PubnativeNetworkExecutor.Priority.ASSET, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -123,7 +126,10 @@ public class ImageDownloader {
                     invokeFail(urlString, new Exception("Out of memory during image downloading"));
                 }
             }
-        }).start();
+        });
+        if (!queued) {
+            invokeFail(urlString, PubnativeException.NETWORK_QUEUE_FULL);
+        }
     }
 
     //==============================================================================================
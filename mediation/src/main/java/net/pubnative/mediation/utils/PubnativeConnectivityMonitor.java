@@ -0,0 +1,261 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.utils;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the network state in memory, updated from the connectivity broadcasts, so checking it
+ * before every request doesn't go through the ConnectivityManager binder
+ */
+public class PubnativeConnectivityMonitor {
+
+    private static final      String            TAG          = PubnativeConnectivityMonitor.class.getSimpleName();
+    public static final       int               TYPE_NONE    = -1; // No connected network
+    protected static volatile Context           sContext     = null;
+    protected static          BroadcastReceiver sReceiver    = null;
+    protected static volatile boolean           sMonitoring  = false;
+    protected static volatile Handler           sHandler     = null;
+    protected static volatile boolean           sAvailable   = false;
+    protected static volatile int               sNetworkType = TYPE_NONE;
+    protected static final    List<Listener>    sListeners   = new ArrayList<Listener>();
+
+    //==============================================================================================
+    // Listener
+    //==============================================================================================
+
+    /**
+     * Interface for callbacks when the network comes back
+     */
+    public interface Listener {
+
+        /**
+         * Invoked in the main thread when a network gets available after being unavailable
+         */
+        void onPubnativeNetworkAvailable();
+    }
+
+    //==============================================================================================
+    // PubnativeConnectivityMonitor
+    //==============================================================================================
+
+    private PubnativeConnectivityMonitor() {
+        // Static access only
+    }
+
+    /**
+     * Checks if there is a network available and connected or connecting to internet
+     *
+     * @param context valid context
+     *
+     * @return true if it's available
+     */
+    public static boolean isNetworkAvailable(Context context) {
+
+        Log.v(TAG, "isNetworkAvailable");
+        ensureMonitoring(context);
+        return sAvailable;
+    }
+
+    /**
+     * Gets the type of the connected network
+     *
+     * @param context valid context
+     *
+     * @return ConnectivityManager.TYPE_* of the connected network, TYPE_NONE if not connected
+     */
+    public static int getConnectedNetworkType(Context context) {
+
+        Log.v(TAG, "getConnectedNetworkType");
+        ensureMonitoring(context);
+        return sNetworkType;
+    }
+
+    /**
+     * Adds a listener that is called every time the network gets available. The monitor is
+     * started if it wasn't
+     *
+     * @param context  valid context
+     * @param listener valid listener
+     */
+    public static void addListener(Context context, Listener listener) {
+
+        Log.v(TAG, "addListener");
+        synchronized (sListeners) {
+            if (!sListeners.contains(listener)) {
+                sListeners.add(listener);
+            }
+        }
+        ensureMonitoring(context);
+    }
+
+    /**
+     * Removes a listener added with addListener
+     *
+     * @param listener listener to remove
+     */
+    public static void removeListener(Listener listener) {
+
+        Log.v(TAG, "removeListener");
+        synchronized (sListeners) {
+            sListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Stops listening to connectivity changes, the next check starts it again
+     */
+    public synchronized static void stop() {
+
+        Log.v(TAG, "stop");
+        if (sReceiver != null) {
+            try {
+                sContext.unregisterReceiver(sReceiver);
+            } catch (Exception exception) {
+                Log.e(TAG, "stop - Error:" + exception);
+            }
+        }
+        sReceiver = null;
+        sContext = null;
+        sMonitoring = false;
+    }
+
+    //==============================================================================================
+    // Private methods
+    //==============================================================================================
+
+    protected static void ensureMonitoring(Context context) {
+
+        Context appContext = context.getApplicationContext();
+        if (sContext != appContext) {
+            startMonitoring(appContext);
+        } else if (!sMonitoring) {
+            // Without broadcasts every check reads the state again, as it was done before
+            update(appContext);
+        }
+    }
+
+    protected synchronized static void startMonitoring(Context appContext) {
+
+        Log.v(TAG, "startMonitoring");
+        // Another thread could have started it while this one waited for the lock
+        if (sContext != appContext) {
+            stop();
+            // Read the state once so the first check doesn't wait for the broadcast
+            update(appContext);
+            BroadcastReceiver receiver = new BroadcastReceiver() {
+
+                @Override
+                public void onReceive(Context context, Intent intent) {
+
+                    Log.v(TAG, "onReceive: " + intent.getAction());
+                    update(context);
+                }
+            };
+            try {
+                appContext.registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+                sReceiver = receiver;
+                sMonitoring = true;
+            } catch (Exception exception) {
+                // Not tried again for this context, checks just read the state from now on
+                Log.e(TAG, "startMonitoring - Error: couldn't listen to connectivity changes " + exception);
+            }
+            // Set last, a check that sees this context also sees if the receiver was registered
+            sContext = appContext;
+        }
+    }
+
+    protected static void update(Context context) {
+
+        Log.v(TAG, "update");
+        boolean available = false;
+        int networkType = TYPE_NONE;
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            Log.e(TAG, "ERROR: Couldn't retrieve valid ConnectivityManager, please ensure that you added `ACCESS_NETWORK_STATE` permission to your Manifest file");
+        } else {
+            NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+            if (info == null) {
+                Log.e(TAG, "ERROR: Couldn't retrieve valid NetworkInfo, please ensure that you added `ACCESS_NETWORK_STATE` permission to your Manifest file");
+            } else {
+                available = info.isConnectedOrConnecting();
+                if (info.isConnected()) {
+                    networkType = info.getType();
+                }
+            }
+        }
+        boolean reconnected = available && !sAvailable;
+        sAvailable = available;
+        sNetworkType = networkType;
+        if (reconnected) {
+            invokeNetworkAvailable();
+        }
+    }
+
+    protected static void invokeNetworkAvailable() {
+
+        Log.v(TAG, "invokeNetworkAvailable");
+        final List<Listener> listeners;
+        synchronized (sListeners) {
+            listeners = new ArrayList<Listener>(sListeners);
+        }
+        // Updates can run in any thread and under the monitor lock, listeners never do
+        getHandler().post(new Runnable() {
+
+            @Override
+            public void run() {
+
+                for (Listener listener : listeners) {
+                    listener.onPubnativeNetworkAvailable();
+                }
+            }
+        });
+    }
+
+    protected static Handler getHandler() {
+
+        Handler result = sHandler;
+        // Not the class lock, it's held while the monitor starts
+        if (result == null) {
+            synchronized (sListeners) {
+                if (sHandler == null) {
+                    sHandler = new Handler(Looper.getMainLooper());
+                }
+                result = sHandler;
+            }
+        }
+        return result;
+    }
+}
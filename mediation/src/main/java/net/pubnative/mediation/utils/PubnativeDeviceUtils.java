@@ -26,13 +26,19 @@ package net.pubnative.mediation.utils;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.res.Configuration;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.util.Log;
 
+import net.pubnative.AdvertisingIdClient;
+
+import java.util.concurrent.TimeUnit;
+
 public class PubnativeDeviceUtils {
 
-    private static String TAG = PubnativeDeviceUtils.class.getSimpleName();
+    private static         String                     TAG                    = PubnativeDeviceUtils.class.getSimpleName();
+    protected static final long                       ADVERTISING_ID_MAX_AGE = TimeUnit.HOURS.toMillis(1);
+    protected static       PackageInfo                sPackageInfo           = null;
+    protected static       AdvertisingIdClient.AdInfo sAdInfo                = null;
+    protected static       long                       sAdInfoTimestamp       = 0;
 
     /**
      * Gets you the PackageInfo object based on the Context object passed in.
@@ -44,17 +50,68 @@ public class PubnativeDeviceUtils {
     public static PackageInfo getPackageInfo(Context context) {
 
         Log.v(TAG, "getPackageInfo");
-        PackageInfo result = null;
-        try {
-            result = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
-        } catch (Exception e) {
-            Log.e(TAG, "getPackageInfo - Error:" + e);
+        // Our own package info doesn't change while the process is alive
+        PackageInfo result = sPackageInfo;
+        if (result == null) {
+            try {
+                result = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+                sPackageInfo = result;
+            } catch (Exception e) {
+                Log.e(TAG, "getPackageInfo - Error:" + e);
+            }
         }
         return result;
     }
 
     /**
-     * Checks if the current network is available and connected to internet
+     * Gets the advertising id, served from memory when it was retrieved less than an hour ago
+     *
+     * @param context  valid context
+     * @param listener valid listener for the result
+     */
+    public static void getAdvertisingId(Context context, final AdvertisingIdClient.Listener listener) {
+
+        Log.v(TAG, "getAdvertisingId");
+        AdvertisingIdClient.AdInfo adInfo = getCachedAdInfo();
+        if (adInfo != null) {
+            listener.onAdvertisingIdClientFinish(adInfo);
+        } else {
+            AdvertisingIdClient.getAdvertisingId(context, new AdvertisingIdClient.Listener() {
+
+                @Override
+                public void onAdvertisingIdClientFinish(AdvertisingIdClient.AdInfo adInfo) {
+
+                    setCachedAdInfo(adInfo);
+                    listener.onAdvertisingIdClientFinish(adInfo);
+                }
+
+                @Override
+                public void onAdvertisingIdClientFail(Exception exception) {
+
+                    listener.onAdvertisingIdClientFail(exception);
+                }
+            });
+        }
+    }
+
+    protected synchronized static AdvertisingIdClient.AdInfo getCachedAdInfo() {
+
+        AdvertisingIdClient.AdInfo result = null;
+        if (sAdInfo != null && System.currentTimeMillis() - sAdInfoTimestamp < ADVERTISING_ID_MAX_AGE) {
+            result = sAdInfo;
+        }
+        return result;
+    }
+
+    protected synchronized static void setCachedAdInfo(AdvertisingIdClient.AdInfo adInfo) {
+
+        sAdInfo = adInfo;
+        sAdInfoTimestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Checks if the current network is available and connected to internet, the state is kept
+     * in memory by PubnativeConnectivityMonitor
      *
      * @param context valid context
      *
@@ -63,22 +120,7 @@ public class PubnativeDeviceUtils {
     public static boolean isNetworkAvailable(Context context) {
 
         Log.v(TAG, "isNetworkAvailable");
-        boolean result;
-        Context appContext = context.getApplicationContext();
-        final ConnectivityManager connectivityManager = ((ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE));
-        if (connectivityManager == null) {
-            Log.e(TAG, "ERROR: Couldn't retrieve valid ConnectivityManager, please ensure that you added `ACCESS_NETWORK_STATE` permission to your Manifest file");
-            result = false;
-        } else {
-            NetworkInfo info = connectivityManager.getActiveNetworkInfo();
-            if (info == null) {
-                Log.e(TAG, "ERROR: Couldn't retrieve valid NetworkInfo, please ensure that you added `ACCESS_NETWORK_STATE` permission to your Manifest file");
-                result = false;
-            } else {
-                result = info.isConnectedOrConnecting();
-            }
-        }
-        return result;
+        return PubnativeConnectivityMonitor.isNetworkAvailable(context);
     }
 
     /**
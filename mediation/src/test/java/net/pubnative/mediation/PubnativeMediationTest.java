@@ -0,0 +1,107 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation;
+
+import android.content.Context;
+
+import net.pubnative.mediation.config.PubnativeConfigManager;
+import net.pubnative.mediation.config.PubnativeConfigTestUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class,
+        sdk = 21)
+public class PubnativeMediationTest {
+
+    protected static final String TEST_APP_TOKEN_VALUE = "appTokenValue";
+
+    @Before
+    public void setUp() {
+
+        PubnativeMediation.sReady = false;
+        PubnativeMediation.sPendingPhases = 0;
+        PubnativeMediation.sPhaseTimings.clear();
+        PubnativeMediation.sListeners.clear();
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        PubnativeConfigManager.clean(context);
+        // Stored config avoids hitting the real config endpoint
+        PubnativeConfigTestUtils.storeTestConfig(context, TEST_APP_TOKEN_VALUE, "valid_config.json");
+    }
+
+    @Test
+    public void initialize_withValidParameters_callbacksReadyWithAllPhaseTimings() throws Exception {
+
+        PubnativeMediation.Listener listener = mock(PubnativeMediation.Listener.class);
+        PubnativeMediation.initialize(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE, listener);
+        waitForReady();
+        verify(listener, times(1)).onPubnativeMediationReady();
+        assertThat(PubnativeMediation.getPhaseTimings().keySet()).containsOnly(PubnativeMediation.PHASE_PREFERENCES,
+                                                                                  PubnativeMediation.PHASE_CONFIG,
+                                                                                  PubnativeMediation.PHASE_ADVERTISING_ID,
+                                                                                  PubnativeMediation.PHASE_DEVICE_INFO);
+    }
+
+    @Test
+    public void initialize_afterReady_callbacksRightAway() throws Exception {
+
+        PubnativeMediation.initialize(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE, null);
+        waitForReady();
+        PubnativeMediation.Listener listener = mock(PubnativeMediation.Listener.class);
+        PubnativeMediation.initialize(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE, listener);
+        ShadowLooper.runUiThreadTasks();
+        verify(listener, times(1)).onPubnativeMediationReady();
+    }
+
+    @Test
+    public void initialize_withNullContext_doesNotStart() {
+
+        PubnativeMediation.Listener listener = mock(PubnativeMediation.Listener.class);
+        PubnativeMediation.initialize(null, TEST_APP_TOKEN_VALUE, listener);
+        assertThat(PubnativeMediation.sPendingPhases).isEqualTo(0);
+        assertThat(PubnativeMediation.isReady()).isFalse();
+    }
+
+    protected void waitForReady() throws InterruptedException {
+
+        // Phases run in background threads and the callback is posted to the main looper
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!PubnativeMediation.isReady() && System.currentTimeMillis() < deadline) {
+            ShadowLooper.runUiThreadTasks();
+            Thread.sleep(20);
+        }
+        ShadowLooper.runUiThreadTasks();
+    }
+}
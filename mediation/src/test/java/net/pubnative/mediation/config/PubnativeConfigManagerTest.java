@@ -23,18 +23,39 @@
 
 package net.pubnative.mediation.config;
 
+import android.content.Context;
+
+import com.google.gson.Gson;
+
 import net.pubnative.mediation.BuildConfig;
+import net.pubnative.mediation.config.model.PubnativeConfigAPIResponseModel;
 import net.pubnative.mediation.config.model.PubnativeConfigModel;
+import net.pubnative.mediation.config.model.PubnativeConfigRequestModel;
+import net.pubnative.mediation.network.PubnativePreconnector;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = BuildConfig.class,
@@ -47,6 +68,11 @@ public class PubnativeConfigManagerTest {
     public void setUp() {
         // Clean the manager on every test
         PubnativeConfigManager.clean(RuntimeEnvironment.application.getApplicationContext());
+        PubnativeConfigManager.setStaleWhileRevalidate(false);
+        PubnativeConfigManager.setMaxStaleness(PubnativeConfigManager.DEFAULT_MAX_STALENESS);
+        PubnativeConfigManager.setMaxStoredConfigs(PubnativeConfigManager.DEFAULT_MAX_STORED_CONFIGS);
+        // Warm up requests would take the responses queued in the mock servers
+        PubnativePreconnector.setEnabled(false);
     }
 
     @Test
@@ -54,10 +80,10 @@ public class PubnativeConfigManagerTest {
 
         PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("empty_config.json");
         PubnativeConfigManager.updateConfig(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE, model);
-        assertThat(PubnativeConfigManager.getStoredConfigString(RuntimeEnvironment.application.getApplicationContext())).isNull();
-        assertThat(PubnativeConfigManager.getStoredTimestamp(RuntimeEnvironment.application.getApplicationContext())).isNull();
-        assertThat(PubnativeConfigManager.getStoredAppToken(RuntimeEnvironment.application.getApplicationContext())).isNull();
-        assertThat(PubnativeConfigManager.getStoredRefresh(RuntimeEnvironment.application.getApplicationContext())).isNull();
+        assertThat(PubnativeConfigManager.getStoredConfigFromFile(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
+        assertThat(PubnativeConfigManager.getStoredTimestamp(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
+        assertThat(PubnativeConfigManager.getStoredAppTokens(RuntimeEnvironment.application.getApplicationContext())).isEmpty();
+        assertThat(PubnativeConfigManager.getStoredRefresh(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
     }
 
     @Test
@@ -65,50 +91,50 @@ public class PubnativeConfigManagerTest {
 
         PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
         PubnativeConfigManager.updateConfig(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE, model);
-        assertThat(PubnativeConfigManager.getStoredConfigString(RuntimeEnvironment.application.getApplicationContext())).isNotNull();
-        assertThat(PubnativeConfigManager.getStoredAppToken(RuntimeEnvironment.application.getApplicationContext())).isEqualTo(TEST_APP_TOKEN_VALUE);
-        assertThat(PubnativeConfigManager.getStoredTimestamp(RuntimeEnvironment.application.getApplicationContext())).isNotNull();
-        assertThat(PubnativeConfigManager.getStoredRefresh(RuntimeEnvironment.application.getApplicationContext())).isNotNull();
+        assertThat(PubnativeConfigManager.getStoredConfigFromFile(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNotNull();
+        assertThat(PubnativeConfigManager.getStoredAppTokens(RuntimeEnvironment.application.getApplicationContext())).containsExactly(TEST_APP_TOKEN_VALUE);
+        assertThat(PubnativeConfigManager.getStoredTimestamp(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNotNull();
+        assertThat(PubnativeConfigManager.getStoredRefresh(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNotNull();
     }
 
     @Test
     public void updateConfig_withNullContext_doNotSetsConfig() {
 
         PubnativeConfigManager.updateConfig(null, TEST_APP_TOKEN_VALUE, mock(PubnativeConfigModel.class));
-        assertThat(PubnativeConfigManager.getStoredConfigString(RuntimeEnvironment.application.getApplicationContext())).isNull();
-        assertThat(PubnativeConfigManager.getStoredTimestamp(RuntimeEnvironment.application.getApplicationContext())).isNull();
-        assertThat(PubnativeConfigManager.getStoredAppToken(RuntimeEnvironment.application.getApplicationContext())).isNull();
-        assertThat(PubnativeConfigManager.getStoredRefresh(RuntimeEnvironment.application.getApplicationContext())).isNull();
+        assertThat(PubnativeConfigManager.getStoredConfigFromFile(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
+        assertThat(PubnativeConfigManager.getStoredTimestamp(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
+        assertThat(PubnativeConfigManager.getStoredAppTokens(RuntimeEnvironment.application.getApplicationContext())).isEmpty();
+        assertThat(PubnativeConfigManager.getStoredRefresh(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
     }
 
     @Test
     public void updateConfig_withNullAppToken_doNotSetsConfig() {
 
         PubnativeConfigManager.updateConfig(RuntimeEnvironment.application.getApplicationContext(), null, mock(PubnativeConfigModel.class));
-        assertThat(PubnativeConfigManager.getStoredConfigString(RuntimeEnvironment.application.getApplicationContext())).isNull();
-        assertThat(PubnativeConfigManager.getStoredTimestamp(RuntimeEnvironment.application.getApplicationContext())).isNull();
-        assertThat(PubnativeConfigManager.getStoredAppToken(RuntimeEnvironment.application.getApplicationContext())).isNull();
-        assertThat(PubnativeConfigManager.getStoredRefresh(RuntimeEnvironment.application.getApplicationContext())).isNull();
+        assertThat(PubnativeConfigManager.getStoredConfigFromFile(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
+        assertThat(PubnativeConfigManager.getStoredTimestamp(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
+        assertThat(PubnativeConfigManager.getStoredAppTokens(RuntimeEnvironment.application.getApplicationContext())).isEmpty();
+        assertThat(PubnativeConfigManager.getStoredRefresh(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
     }
 
     @Test
     public void updateConfig_withEmptyAppToken_doNotSetsConfig() {
 
         PubnativeConfigManager.updateConfig(RuntimeEnvironment.application.getApplicationContext(), "", mock(PubnativeConfigModel.class));
-        assertThat(PubnativeConfigManager.getStoredConfigString(RuntimeEnvironment.application.getApplicationContext())).isNull();
-        assertThat(PubnativeConfigManager.getStoredTimestamp(RuntimeEnvironment.application.getApplicationContext())).isNull();
-        assertThat(PubnativeConfigManager.getStoredAppToken(RuntimeEnvironment.application.getApplicationContext())).isNull();
-        assertThat(PubnativeConfigManager.getStoredRefresh(RuntimeEnvironment.application.getApplicationContext())).isNull();
+        assertThat(PubnativeConfigManager.getStoredConfigFromFile(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
+        assertThat(PubnativeConfigManager.getStoredTimestamp(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
+        assertThat(PubnativeConfigManager.getStoredAppTokens(RuntimeEnvironment.application.getApplicationContext())).isEmpty();
+        assertThat(PubnativeConfigManager.getStoredRefresh(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
     }
 
     @Test
     public void updateConfig_withNullConfig_doNotSetsConfig() {
 
         PubnativeConfigManager.updateConfig(RuntimeEnvironment.application.getApplicationContext(), "", null);
-        assertThat(PubnativeConfigManager.getStoredConfigString(RuntimeEnvironment.application.getApplicationContext())).isNull();
-        assertThat(PubnativeConfigManager.getStoredTimestamp(RuntimeEnvironment.application.getApplicationContext())).isNull();
-        assertThat(PubnativeConfigManager.getStoredAppToken(RuntimeEnvironment.application.getApplicationContext())).isNull();
-        assertThat(PubnativeConfigManager.getStoredRefresh(RuntimeEnvironment.application.getApplicationContext())).isNull();
+        assertThat(PubnativeConfigManager.getStoredConfigFromFile(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
+        assertThat(PubnativeConfigManager.getStoredTimestamp(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
+        assertThat(PubnativeConfigManager.getStoredAppTokens(RuntimeEnvironment.application.getApplicationContext())).isEmpty();
+        assertThat(PubnativeConfigManager.getStoredRefresh(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
     }
 
     @Test
@@ -116,7 +142,7 @@ public class PubnativeConfigManagerTest {
 
         PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
         PubnativeConfigManager.updateConfig(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE, model);
-        PubnativeConfigModel result = PubnativeConfigManager.getStoredConfig(RuntimeEnvironment.application.getApplicationContext());
+        PubnativeConfigModel result = PubnativeConfigManager.getStoredConfig(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE);
         assertThat(result).isNotNull();
     }
 
@@ -124,7 +150,393 @@ public class PubnativeConfigManagerTest {
     public void getStoredConfig_withNullConfig_isNull() {
 
         PubnativeConfigManager.updateConfig(RuntimeEnvironment.application.getApplicationContext(), "", null);
-        PubnativeConfigModel result = PubnativeConfigManager.getStoredConfig(RuntimeEnvironment.application.getApplicationContext());
+        PubnativeConfigModel result = PubnativeConfigManager.getStoredConfig(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE);
         assertThat(result).isNull();
     }
+
+    @Test
+    public void getStoredConfig_calledTwice_servesSameSnapshot() {
+
+        PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+        PubnativeConfigManager.updateConfig(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE, model);
+        PubnativeConfigModel first = PubnativeConfigManager.getStoredConfig(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE);
+        PubnativeConfigModel second = PubnativeConfigManager.getStoredConfig(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE);
+        assertThat(first).isSameAs(second);
+    }
+
+    @Test
+    public void getStoredConfig_afterSnapshotIsDropped_reloadsFromStorage() {
+
+        PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+        PubnativeConfigManager.updateConfig(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE, model);
+        PubnativeConfigManager.sSnapshots = Collections.emptyMap();
+        PubnativeConfigModel result = PubnativeConfigManager.getStoredConfig(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE);
+        assertThat(result).isNotNull();
+        assertThat(PubnativeConfigManager.sSnapshots.get(TEST_APP_TOKEN_VALUE)).isNotNull();
+    }
+
+    @Test
+    public void updateConfig_withValidConfig_changesSnapshotVersion() {
+
+        long version = PubnativeConfigManager.getStoredConfigVersion();
+        PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+        PubnativeConfigManager.updateConfig(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE, model);
+        assertThat(PubnativeConfigManager.getStoredConfigVersion()).isNotEqualTo(version);
+    }
+
+    @Test
+    public void clean_withStoredConfig_invalidatesSnapshot() {
+
+        PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+        PubnativeConfigManager.updateConfig(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE, model);
+        PubnativeConfigManager.clean(RuntimeEnvironment.application.getApplicationContext());
+        assertThat(PubnativeConfigManager.sSnapshots.isEmpty()).isTrue();
+        assertThat(PubnativeConfigManager.getStoredConfig(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE)).isNull();
+    }
+
+    @Test
+    public void completeFlight_withSeveralListenersForSameAppToken_callbacksAllOnce() {
+
+        PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+        PubnativeConfigRequestModel first = getTestRequest(TEST_APP_TOKEN_VALUE);
+        PubnativeConfigRequestModel second = getTestRequest(TEST_APP_TOKEN_VALUE);
+        assertThat(PubnativeConfigManager.joinFlight(first)).isTrue();
+        assertThat(PubnativeConfigManager.joinFlight(second)).isFalse();
+        PubnativeConfigManager.completeFlight(TEST_APP_TOKEN_VALUE, model);
+        verify(first.listener, times(1)).onConfigLoaded(eq(model));
+        verify(second.listener, times(1)).onConfigLoaded(eq(model));
+        // The flight is over, so a new request starts a new one
+        assertThat(PubnativeConfigManager.joinFlight(getTestRequest(TEST_APP_TOKEN_VALUE))).isTrue();
+        PubnativeConfigManager.completeFlight(TEST_APP_TOKEN_VALUE, null);
+    }
+
+    @Test
+    public void getConfig_withStoredConfig_callbacksWithoutHoldingTheLock() {
+
+        final Context context = RuntimeEnvironment.application.getApplicationContext();
+        PubnativeConfigManager.updateConfig(context, TEST_APP_TOKEN_VALUE, PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        final PubnativeConfigManager.Listener otherListener = mock(PubnativeConfigManager.Listener.class);
+        final boolean[] otherThreadDone = new boolean[1];
+        PubnativeConfigManager.getConfig(context, TEST_APP_TOKEN_VALUE, null, new PubnativeConfigManager.Listener() {
+
+            @Override
+            public void onConfigLoaded(PubnativeConfigModel configModel) {
+
+                // Waiting for another thread that needs the manager would deadlock if the lock was held
+                Thread thread = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        PubnativeConfigManager.getConfig(context, TEST_APP_TOKEN_VALUE, null, otherListener);
+                    }
+                });
+                thread.start();
+                try {
+                    thread.join(2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                otherThreadDone[0] = !thread.isAlive();
+            }
+        });
+        assertThat(otherThreadDone[0]).isTrue();
+        verify(otherListener).onConfigLoaded(eq(PubnativeConfigManager.getStoredConfig(context, TEST_APP_TOKEN_VALUE)));
+    }
+
+    @Test
+    public void joinFlight_withDifferentAppTokens_startsOneFlightEach() {
+
+        assertThat(PubnativeConfigManager.joinFlight(getTestRequest("first"))).isTrue();
+        assertThat(PubnativeConfigManager.joinFlight(getTestRequest("second"))).isTrue();
+        PubnativeConfigManager.completeFlight("first", null);
+        PubnativeConfigManager.completeFlight("second", null);
+    }
+
+    protected PubnativeConfigRequestModel getTestRequest(String appToken) {
+
+        PubnativeConfigRequestModel result = new PubnativeConfigRequestModel();
+        result.context = RuntimeEnvironment.application.getApplicationContext();
+        result.appToken = appToken;
+        result.listener = mock(PubnativeConfigManager.Listener.class);
+        return result;
+    }
+
+    @Test
+    public void canServeStaleConfig_whenDisabled_returnsFalse() {
+
+        storeConfigWithAge(TimeUnit.MINUTES.toMillis(15));
+        assertThat(PubnativeConfigManager.canServeStaleConfig(getTestRequest(TEST_APP_TOKEN_VALUE))).isFalse();
+    }
+
+    @Test
+    public void canServeStaleConfig_withExpiredConfigWithinMaxStaleness_returnsTrue() {
+
+        PubnativeConfigManager.setStaleWhileRevalidate(true);
+        PubnativeConfigManager.setMaxStaleness(60);
+        storeConfigWithAge(TimeUnit.MINUTES.toMillis(15));
+        assertThat(PubnativeConfigManager.canServeStaleConfig(getTestRequest(TEST_APP_TOKEN_VALUE))).isTrue();
+    }
+
+    @Test
+    public void canServeStaleConfig_withExpiredConfigOverMaxStaleness_returnsFalse() {
+
+        PubnativeConfigManager.setStaleWhileRevalidate(true);
+        PubnativeConfigManager.setMaxStaleness(60);
+        storeConfigWithAge(TimeUnit.MINUTES.toMillis(120));
+        assertThat(PubnativeConfigManager.canServeStaleConfig(getTestRequest(TEST_APP_TOKEN_VALUE))).isFalse();
+    }
+
+    @Test
+    public void canServeStaleConfig_withDifferentAppToken_returnsFalse() {
+
+        PubnativeConfigManager.setStaleWhileRevalidate(true);
+        storeConfigWithAge(TimeUnit.MINUTES.toMillis(15));
+        assertThat(PubnativeConfigManager.canServeStaleConfig(getTestRequest("otherAppToken"))).isFalse();
+    }
+
+    protected void storeConfigWithAge(long ageInMillis) {
+
+        // valid_config.json has a refresh of 10 minutes
+        PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+        PubnativeConfigManager.updateConfig(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE, model);
+        PubnativeConfigManager.setStoredTimestamp(RuntimeEnvironment.application.getApplicationContext(), TEST_APP_TOKEN_VALUE, System.currentTimeMillis() - ageInMillis);
+    }
+
+    @Test
+    public void downloadConfig_withNotModifiedResponse_keepsSnapshotAndBumpsTimestamp() throws Exception {
+
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setResponseCode(304));
+        server.start();
+        try {
+            Context context = RuntimeEnvironment.application.getApplicationContext();
+            PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+            model.globals.put(PubnativeConfigModel.GLOBAL.CONFIG_URL, server.url("/config").toString());
+            PubnativeConfigManager.updateConfig(context, TEST_APP_TOKEN_VALUE, model);
+            PubnativeConfigManager.setStoredValidators(context, TEST_APP_TOKEN_VALUE, "\"v1\"", null);
+            PubnativeConfigManager.setStoredTimestamp(context, TEST_APP_TOKEN_VALUE, 1L);
+            PubnativeConfigModel storedConfig = PubnativeConfigManager.getStoredConfig(context, TEST_APP_TOKEN_VALUE);
+            long storedVersion = PubnativeConfigManager.getStoredConfigVersion();
+
+            PubnativeConfigRequestModel request = getTestRequest(TEST_APP_TOKEN_VALUE);
+            PubnativeConfigManager.joinFlight(request);
+            PubnativeConfigManager.downloadConfig(request, true);
+            waitForConfigLoaded(request.listener);
+
+            RecordedRequest recordedRequest = server.takeRequest();
+            assertThat(recordedRequest.getHeader("If-None-Match")).isEqualTo("\"v1\"");
+            // Nothing was parsed, the very same snapshot is still served
+            verify(request.listener).onConfigLoaded(eq(storedConfig));
+            assertThat(PubnativeConfigManager.getStoredConfig(context, TEST_APP_TOKEN_VALUE)).isSameAs(storedConfig);
+            assertThat(PubnativeConfigManager.getStoredConfigVersion()).isEqualTo(storedVersion);
+            assertThat(PubnativeConfigManager.getStoredTimestamp(context, TEST_APP_TOKEN_VALUE)).isGreaterThan(1L);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void downloadConfig_withNewConfig_storesValidators() throws Exception {
+
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setResponseCode(200)
+                                         .setHeader("ETag", "\"v2\"")
+                                         .setBody("{\"status\":\"ok\",\"config\":" + new Gson().toJson(PubnativeConfigTestUtils.getTestConfig("valid_config.json")) + "}"));
+        server.start();
+        try {
+            Context context = RuntimeEnvironment.application.getApplicationContext();
+            PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+            model.globals.put(PubnativeConfigModel.GLOBAL.CONFIG_URL, server.url("/config").toString());
+            PubnativeConfigManager.updateConfig(context, TEST_APP_TOKEN_VALUE, model);
+            long storedVersion = PubnativeConfigManager.getStoredConfigVersion();
+
+            PubnativeConfigRequestModel request = getTestRequest(TEST_APP_TOKEN_VALUE);
+            PubnativeConfigManager.joinFlight(request);
+            PubnativeConfigManager.downloadConfig(request, true);
+            waitForConfigLoaded(request.listener);
+
+            assertThat(PubnativeConfigManager.getStoredETag(context, TEST_APP_TOKEN_VALUE)).isEqualTo("\"v2\"");
+            assertThat(PubnativeConfigManager.getStoredConfigVersion()).isNotEqualTo(storedVersion);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void refreshConfig_whileRevalidating_joinsTheRunningDownload() throws Exception {
+
+        MockWebServer server = new MockWebServer();
+        String body = "{\"status\":\"ok\",\"config\":" + new Gson().toJson(PubnativeConfigTestUtils.getTestConfig("valid_config.json")) + "}";
+        server.enqueue(new MockResponse().setResponseCode(200).setBody(body));
+        server.enqueue(new MockResponse().setResponseCode(200).setBody(body));
+        server.start();
+        try {
+            Context context = RuntimeEnvironment.application.getApplicationContext();
+            PubnativeConfigManager.setStaleWhileRevalidate(true);
+            PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+            model.globals.put(PubnativeConfigModel.GLOBAL.CONFIG_URL, server.url("/config").toString());
+            PubnativeConfigManager.updateConfig(context, TEST_APP_TOKEN_VALUE, model);
+            PubnativeConfigManager.setStoredTimestamp(context, TEST_APP_TOKEN_VALUE, System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(15));
+
+            PubnativeConfigManager.Listener staleListener = mock(PubnativeConfigManager.Listener.class);
+            PubnativeConfigManager.getConfig(context, TEST_APP_TOKEN_VALUE, null, staleListener);
+            verify(staleListener).onConfigLoaded(eq(model));
+            PubnativeConfigManager.Listener refreshListener = mock(PubnativeConfigManager.Listener.class);
+            PubnativeConfigManager.refreshConfig(context, TEST_APP_TOKEN_VALUE, null, refreshListener);
+            waitForConfigLoaded(refreshListener);
+
+            assertThat(server.getRequestCount()).isEqualTo(1);
+            assertThat(PubnativeConfigManager.sRevalidating).isEmpty();
+            assertThat(PubnativeConfigManager.sRevalidationFlights).isEmpty();
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    protected void waitForConfigLoaded(PubnativeConfigManager.Listener listener) throws InterruptedException {
+
+        // Request runs on a background thread and posts the callback to the main looper
+        ArgumentCaptor<PubnativeConfigModel> captor = ArgumentCaptor.forClass(PubnativeConfigModel.class);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+            try {
+                verify(listener).onConfigLoaded(captor.capture());
+                return;
+            } catch (Throwable wanted) {
+                Thread.sleep(20);
+            }
+        }
+        verify(listener).onConfigLoaded(captor.capture());
+    }
+
+    @Test
+    public void readConfigResponse_withValidStream_parsesResponse() throws Exception {
+
+        String response = "{\"status\":\"ok\",\"config\":" + new Gson().toJson(PubnativeConfigTestUtils.getTestConfig("valid_config.json")) + "}";
+        PubnativeConfigAPIResponseModel result = PubnativeConfigManager.readConfigResponse(new ByteArrayInputStream(response.getBytes("UTF-8")));
+        assertThat(result.status).isEqualTo(PubnativeConfigAPIResponseModel.Status.OK);
+        assertThat(result.config.isEmpty()).isFalse();
+    }
+
+    @Test
+    public void updateConfig_withSnapshotFile_movesFileInPlace() throws Exception {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+        File snapshotFile = PubnativeConfigManager.createDownloadFile(context);
+        assertThat(PubnativeConfigStore.write(snapshotFile, model)).isTrue();
+        PubnativeConfigManager.updateConfig(context, TEST_APP_TOKEN_VALUE, model, snapshotFile);
+        assertThat(snapshotFile.exists()).isFalse();
+        assertThat(PubnativeConfigManager.getStoredConfigFromFile(context, TEST_APP_TOKEN_VALUE)).isNotNull();
+    }
+
+    @Test
+    public void getStoredConfig_withLegacyPreferenceConfig_migratesIt() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        String legacyConfig = new Gson().toJson(PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        PubnativeConfigManager.setStringSharedPreference(context, PubnativeConfigManager.CONFIG_STRING_KEY, legacyConfig);
+        PubnativeConfigManager.setStringSharedPreference(context, PubnativeConfigManager.APP_TOKEN_STRING_KEY, TEST_APP_TOKEN_VALUE);
+        assertThat(PubnativeConfigManager.getStoredConfig(context, TEST_APP_TOKEN_VALUE)).isNotNull();
+        assertThat(PubnativeConfigManager.getStringSharedPreference(context, PubnativeConfigManager.CONFIG_STRING_KEY)).isNull();
+    }
+
+    @Test
+    public void updateConfig_withTwoAppTokens_keepsBothConfigs() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        PubnativeConfigManager.updateConfig(context, "first", PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        PubnativeConfigManager.updateConfig(context, "second", PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        assertThat(PubnativeConfigManager.getStoredConfig(context, "first")).isNotNull();
+        assertThat(PubnativeConfigManager.getStoredConfig(context, "second")).isNotNull();
+        assertThat(PubnativeConfigManager.configNeedsUpdate(getTestRequest("first"))).isFalse();
+        assertThat(PubnativeConfigManager.configNeedsUpdate(getTestRequest("second"))).isFalse();
+    }
+
+    @Test
+    public void updateConfig_overMaxStoredConfigs_evictsLeastRecentlyUsed() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        PubnativeConfigManager.setMaxStoredConfigs(2);
+        PubnativeConfigManager.updateConfig(context, "first", PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        PubnativeConfigManager.updateConfig(context, "second", PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        // Using the first one makes the second the least recently used
+        PubnativeConfigManager.touchStoredAppToken(context, "first");
+        PubnativeConfigManager.updateConfig(context, "third", PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        assertThat(PubnativeConfigManager.getStoredAppTokens(context)).containsExactly("first", "third");
+        assertThat(PubnativeConfigManager.getStoredConfig(context, "second")).isNull();
+        assertThat(PubnativeConfigManager.getStoredTimestamp(context, "second")).isNull();
+        assertThat(PubnativeConfigManager.getStoredConfigFile(context, "second").exists()).isFalse();
+        assertThat(PubnativeConfigManager.getStoredConfig(context, "first")).isNotNull();
+    }
+
+    @Test
+    public void touchStoredAppToken_keepsOrderInMemoryAndInIndex() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        PubnativeConfigManager.updateConfig(context, "first", PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        PubnativeConfigManager.updateConfig(context, "second", PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        PubnativeConfigManager.touchStoredAppToken(context, "first");
+        assertThat(PubnativeConfigManager.getStoredAppTokens(context)).containsExactly("second", "first");
+        // Loading it again reads the same order back
+        PubnativeConfigManager.sIndex = null;
+        assertThat(PubnativeConfigManager.getStoredAppTokens(context)).containsExactly("second", "first");
+    }
+
+    @Test
+    public void updateConfig_withNotModifiedAndValidators_storesNothingInPreferences() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        PubnativeConfigManager.updateConfig(context, TEST_APP_TOKEN_VALUE, PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        PubnativeConfigManager.setStoredValidators(context, TEST_APP_TOKEN_VALUE, "\"v1\"", "Wed, 21 Oct 2015 07:28:00 GMT");
+        PubnativeConfigManager.processConfigNotModified(getTestRequest(TEST_APP_TOKEN_VALUE));
+        assertThat(PubnativeConfigManager.getSharedPreferences(context).getAll()).isEmpty();
+        // Everything is read back from the index file
+        PubnativeConfigManager.sIndex = null;
+        assertThat(PubnativeConfigManager.getStoredAppTokens(context)).containsExactly(TEST_APP_TOKEN_VALUE);
+        assertThat(PubnativeConfigManager.getStoredETag(context, TEST_APP_TOKEN_VALUE)).isEqualTo("\"v1\"");
+        assertThat(PubnativeConfigManager.getStoredLastModified(context, TEST_APP_TOKEN_VALUE)).isEqualTo("Wed, 21 Oct 2015 07:28:00 GMT");
+        assertThat(PubnativeConfigManager.getStoredRefresh(context, TEST_APP_TOKEN_VALUE)).isNotNull();
+    }
+
+    @Test
+    public void preload_withStoredConfig_loadsIndexAndSnapshot() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        PubnativeConfigManager.updateConfig(context, TEST_APP_TOKEN_VALUE, PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        PubnativeConfigManager.sIndex = null;
+        PubnativeConfigManager.sSnapshots = Collections.<String, PubnativeConfigSnapshot>emptyMap();
+        PubnativeConfigManager.preload(context);
+        assertThat(PubnativeConfigManager.sIndex).containsKey(TEST_APP_TOKEN_VALUE);
+        assertThat(PubnativeConfigManager.sSnapshots).containsKey(TEST_APP_TOKEN_VALUE);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void getStoredConfig_withoutAppToken_returnsMostRecentlyUsedConfig() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        assertThat(PubnativeConfigManager.getStoredConfig(context)).isNull();
+        PubnativeConfigManager.updateConfig(context, "first", PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        PubnativeConfigManager.updateConfig(context, "second", PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        PubnativeConfigManager.touchStoredAppToken(context, "first");
+        assertThat(PubnativeConfigManager.getStoredConfig(context)).isSameAs(PubnativeConfigManager.getStoredConfig(context, "first"));
+    }
+
+    @Test
+    public void getStoredConfig_withLegacySingleConfigFile_movesItToAppTokenStore() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        File legacyFile = PubnativeConfigManager.getConfigFile(context, PubnativeConfigManager.LEGACY_CONFIG_FILE_NAME);
+        PubnativeConfigStore.write(legacyFile, PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        PubnativeConfigManager.setStringSharedPreference(context, PubnativeConfigManager.APP_TOKEN_STRING_KEY, TEST_APP_TOKEN_VALUE);
+        PubnativeConfigManager.setLongSharedPreference(context, PubnativeConfigManager.TIMESTAMP_LONG_KEY, 1234L);
+        assertThat(PubnativeConfigManager.getStoredConfig(context, TEST_APP_TOKEN_VALUE)).isNotNull();
+        assertThat(PubnativeConfigManager.getStoredTimestamp(context, TEST_APP_TOKEN_VALUE)).isEqualTo(1234L);
+        assertThat(legacyFile.exists()).isFalse();
+        assertThat(PubnativeConfigManager.getStoredConfigFile(context, TEST_APP_TOKEN_VALUE).getName()).endsWith(PubnativeConfigManager.CONFIG_FILE_EXTENSION);
+        assertThat(PubnativeConfigManager.getStringSharedPreference(context, PubnativeConfigManager.APP_TOKEN_STRING_KEY)).isNull();
+    }
 }
@@ -0,0 +1,205 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.config;
+
+import android.content.Context;
+
+import com.google.gson.Gson;
+
+import net.pubnative.mediation.BuildConfig;
+import net.pubnative.mediation.config.model.PubnativeConfigModel;
+import net.pubnative.mediation.network.PubnativePreconnector;
+import net.pubnative.mediation.network.PubnativeRetryPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class,
+        sdk = 21)
+public class PubnativeConfigSchedulerTest {
+
+    protected static final String TEST_APP_TOKEN_VALUE = "appTokenValue";
+    protected Context                  mContext;
+    protected MockWebServer            mServer;
+    protected PubnativeConfigScheduler mScheduler;
+    protected long                     mNow;
+
+    @Before
+    public void setUp() throws Exception {
+
+        mContext = RuntimeEnvironment.application.getApplicationContext();
+        PubnativeConfigManager.clean(mContext);
+        // The scheduler backs off on its own, each refresh is a single attempt
+        PubnativeConfigManager.setRetryPolicy(PubnativeRetryPolicy.NONE);
+        // Warm up requests would take the responses queued in the mock server
+        PubnativePreconnector.setEnabled(false);
+        mServer = new MockWebServer();
+        mServer.start();
+        mNow = System.currentTimeMillis();
+        mScheduler = new PubnativeConfigScheduler(mContext, TEST_APP_TOKEN_VALUE, null);
+        mScheduler.setClock(new PubnativeConfigScheduler.Clock() {
+
+            @Override
+            public long currentTimeMillis() {
+
+                return mNow;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        mScheduler.stop();
+        mServer.shutdown();
+        PubnativeConfigManager.setRetryPolicy(PubnativeRetryPolicy.DEFAULT);
+        PubnativePreconnector.setEnabled(true);
+        PubnativeConfigManager.clean(mContext);
+    }
+
+    @Test
+    public void getNextRefreshDelay_withoutStoredConfig_prefetchesRightAway() {
+
+        assertThat(mScheduler.getNextRefreshDelay()).isEqualTo(0);
+    }
+
+    @Test
+    public void getNextRefreshDelay_withStoredConfig_firesShortlyBeforeExpiry() {
+
+        // valid_config.json has a refresh of 10 minutes
+        storeConfig(mNow);
+        long expected = TimeUnit.MINUTES.toMillis(10) - PubnativeConfigScheduler.MAX_REFRESH_LEAD;
+        assertThat(mScheduler.getNextRefreshDelay()).isEqualTo(expected);
+        mNow += TimeUnit.MINUTES.toMillis(5);
+        assertThat(mScheduler.getNextRefreshDelay()).isEqualTo(expected - TimeUnit.MINUTES.toMillis(5));
+        mNow += TimeUnit.MINUTES.toMillis(20);
+        assertThat(mScheduler.getNextRefreshDelay()).isEqualTo(0);
+    }
+
+    @Test
+    public void getNextRefreshDelay_afterFailures_backsOffExponentially() {
+
+        storeConfig(mNow);
+        mScheduler.mFailedAttempts = 1;
+        assertThat(mScheduler.getNextRefreshDelay()).isEqualTo(PubnativeConfigScheduler.MIN_BACKOFF);
+        mScheduler.mFailedAttempts = 3;
+        assertThat(mScheduler.getNextRefreshDelay()).isEqualTo(PubnativeConfigScheduler.MIN_BACKOFF * 4);
+        mScheduler.mFailedAttempts = 100;
+        assertThat(mScheduler.getNextRefreshDelay()).isEqualTo(PubnativeConfigScheduler.MAX_BACKOFF);
+    }
+
+    @Test
+    public void constructor_withActivityContext_keepsApplicationContext() {
+
+        Context activityContext = mock(Context.class);
+        when(activityContext.getApplicationContext()).thenReturn(mContext);
+        assertThat(new PubnativeConfigScheduler(activityContext, TEST_APP_TOKEN_VALUE, null).mContext).isSameAs(mContext);
+    }
+
+    @Test
+    public void getNextRefreshDelay_withConfigNotLoaded_doesNotLoadIt() {
+
+        storeConfig(mNow);
+        PubnativeConfigManager.sSnapshots = Collections.emptyMap();
+        assertThat(mScheduler.getNextRefreshDelay()).isGreaterThan(0L);
+        assertThat(PubnativeConfigManager.sSnapshots).isEmpty();
+    }
+
+    @Test
+    public void start_withExpiredConfig_refreshesFromEndpoint() throws Exception {
+
+        mServer.enqueue(new MockResponse().setResponseCode(200)
+                                          .setBody("{\"status\":\"ok\",\"config\":" + new Gson().toJson(PubnativeConfigTestUtils.getTestConfig("valid_config.json")) + "}"));
+        storeConfig(1L);
+        mScheduler.start();
+        waitForRefresh();
+        assertThat(mServer.getRequestCount()).isEqualTo(1);
+        assertThat(mScheduler.mFailedAttempts).isEqualTo(0);
+        assertThat(PubnativeConfigManager.getStoredTimestamp(mContext, TEST_APP_TOKEN_VALUE)).isGreaterThan(1L);
+    }
+
+    @Test
+    public void start_withFailingEndpoint_backsOff() throws Exception {
+
+        mServer.enqueue(new MockResponse().setResponseCode(500));
+        storeConfig(1L);
+        mScheduler.start();
+        waitForRefresh();
+        assertThat(mScheduler.mFailedAttempts).isEqualTo(1);
+        assertThat(mScheduler.getNextRefreshDelay()).isEqualTo(PubnativeConfigScheduler.MIN_BACKOFF);
+        assertThat(PubnativeConfigManager.getStoredTimestamp(mContext, TEST_APP_TOKEN_VALUE)).isEqualTo(1L);
+    }
+
+    @Test
+    public void start_whilePaused_waitsUntilResumed() throws Exception {
+
+        mServer.enqueue(new MockResponse().setResponseCode(304));
+        storeConfig(1L);
+        mScheduler.onPause();
+        mScheduler.start();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertThat(mServer.getRequestCount()).isEqualTo(0);
+        mScheduler.onResume();
+        waitForRefresh();
+        assertThat(mServer.getRequestCount()).isEqualTo(1);
+    }
+
+    protected void storeConfig(long timestamp) {
+
+        PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+        model.globals.put(PubnativeConfigModel.GLOBAL.CONFIG_URL, mServer.url("/config").toString());
+        PubnativeConfigManager.updateConfig(mContext, TEST_APP_TOKEN_VALUE, model);
+        PubnativeConfigManager.setStoredTimestamp(mContext, TEST_APP_TOKEN_VALUE, timestamp);
+    }
+
+    protected void waitForRefresh() throws InterruptedException {
+
+        // Download runs on a background thread and posts the callback to the main looper
+        long deadline = System.currentTimeMillis() + 5000;
+        do {
+            ShadowLooper.runUiThreadTasks();
+            if (mServer.getRequestCount() > 0 && !mScheduler.mRefreshing) {
+                return;
+            }
+            Thread.sleep(20);
+        } while (System.currentTimeMillis() < deadline);
+    }
+}
@@ -0,0 +1,139 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.config;
+
+import com.google.gson.Gson;
+
+import net.pubnative.mediation.BuildConfig;
+import net.pubnative.mediation.config.model.PubnativeConfigModel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class,
+        sdk = 21)
+public class PubnativeConfigStoreTest {
+
+    protected File mFile;
+
+    @Before
+    public void setUp() {
+
+        mFile = new File(RuntimeEnvironment.application.getFilesDir(), "config_store_test");
+        PubnativeConfigStore.delete(mFile);
+    }
+
+    @After
+    public void tearDown() {
+
+        PubnativeConfigStore.delete(mFile);
+    }
+
+    @Test
+    public void read_afterWrite_returnsEqualConfig() {
+
+        PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+        assertThat(PubnativeConfigStore.write(mFile, model)).isTrue();
+        PubnativeConfigModel result = PubnativeConfigStore.read(mFile);
+        assertThat(result).isNotNull();
+        assertThat(new Gson().toJson(result)).isEqualTo(new Gson().toJson(model));
+    }
+
+    @Test
+    public void write_withExistingFile_leavesNoTempFile() {
+
+        PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+        PubnativeConfigStore.write(mFile, model);
+        PubnativeConfigStore.write(mFile, model);
+        assertThat(new File(mFile.getPath() + PubnativeConfigStore.TEMP_SUFFIX).exists()).isFalse();
+        assertThat(PubnativeConfigStore.read(mFile)).isNotNull();
+    }
+
+    @Test
+    public void read_withMissingFile_returnsNull() {
+
+        assertThat(PubnativeConfigStore.read(mFile)).isNull();
+    }
+
+    @Test
+    public void read_withCorruptedPayload_returnsNull() throws Exception {
+
+        PubnativeConfigStore.write(mFile, PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(PubnativeConfigStore.HEADER_SIZE + 10);
+        file.write(0x7F);
+        file.close();
+        assertThat(PubnativeConfigStore.read(mFile)).isNull();
+    }
+
+    @Test
+    public void read_withTruncatedFile_returnsNull() throws Exception {
+
+        PubnativeConfigStore.write(mFile, PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() - 5);
+        file.close();
+        assertThat(PubnativeConfigStore.read(mFile)).isNull();
+    }
+
+    @Test
+    public void readIndex_afterWriteIndex_returnsSameEntriesInOrder() {
+
+        LinkedHashMap<String, PubnativeConfigStore.Metadata> index = new LinkedHashMap<String, PubnativeConfigStore.Metadata>();
+        PubnativeConfigStore.Metadata first = new PubnativeConfigStore.Metadata();
+        first.timestamp = 1234L;
+        first.refresh = 10L;
+        first.eTag = "\"v1\"";
+        index.put("second", new PubnativeConfigStore.Metadata());
+        index.put("first", first);
+        assertThat(PubnativeConfigStore.writeIndex(mFile, index)).isTrue();
+
+        LinkedHashMap<String, PubnativeConfigStore.Metadata> result = PubnativeConfigStore.readIndex(mFile);
+        assertThat(result.keySet()).containsExactly("second", "first");
+        assertThat(result.get("first").timestamp).isEqualTo(1234L);
+        assertThat(result.get("first").refresh).isEqualTo(10L);
+        assertThat(result.get("first").eTag).isEqualTo("\"v1\"");
+        assertThat(result.get("first").lastModified).isNull();
+        assertThat(result.get("second").timestamp).isNull();
+    }
+
+    @Test
+    public void readIndex_withConfigFile_returnsNull() {
+
+        PubnativeConfigStore.write(mFile, PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        assertThat(PubnativeConfigStore.readIndex(mFile)).isNull();
+    }
+}
@@ -23,6 +23,8 @@
 
 package net.pubnative.mediation.config;
 
+import android.content.Context;
+
 import com.google.gson.Gson;
 
 import net.pubnative.mediation.config.model.PubnativeConfigModel;
@@ -49,4 +51,16 @@ public class PubnativeConfigTestUtils {
         }
         return result;
     }
+
+    /**
+     * Stores a test config file stored under /src/test/resources as the config of the app token
+     *
+     * @param context  valid context
+     * @param appToken app token to store the config for
+     * @param filename name of the resource file
+     */
+    public static void storeTestConfig(Context context, String appToken, String filename) {
+
+        PubnativeConfigManager.updateConfig(context, appToken, getTestConfig(filename));
+    }
 }
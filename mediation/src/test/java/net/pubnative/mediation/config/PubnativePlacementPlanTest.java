@@ -0,0 +1,105 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.config;
+
+import net.pubnative.mediation.BuildConfig;
+import net.pubnative.mediation.adapter.PubnativeNetworkHubFactory;
+import net.pubnative.mediation.config.model.PubnativeConfigModel;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class,
+        sdk = 21)
+public class PubnativePlacementPlanTest {
+
+    @Test
+    public void compile_withValidConfig_resolvesStepsInPriorityOrder() {
+
+        PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+        PubnativePlacementPlan plan = PubnativePlacementPlan.compile(model, "1");
+        assertThat(plan).isNotNull();
+        assertThat(plan.size()).isEqualTo(2);
+        PubnativePlacementPlan.Step step = plan.getStep(1);
+        assertThat(step.priority).isSameAs(model.getPlacement("1").getPriorityRule(1));
+        assertThat(step.network).isSameAs(model.getNetwork("pubnative"));
+        assertThat(step.timeout).isEqualTo(model.getNetwork("pubnative").timeout);
+        assertThat(step.hubConstructor).isNotNull();
+        assertThat(PubnativeNetworkHubFactory.createHub(step.hubConstructor, step.network)).isNotNull();
+    }
+
+    @Test
+    public void compile_withUnknownAdapter_keepsStepWithoutConstructor() {
+
+        PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+        PubnativePlacementPlan.Step step = PubnativePlacementPlan.compile(model, "1").getStep(0);
+        assertThat(step.network).isNotNull();
+        assertThat(step.hubConstructor).isNull();
+    }
+
+    @Test
+    public void compile_withUnknownPlacement_returnsNull() {
+
+        PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+        assertThat(PubnativePlacementPlan.compile(model, "unknown")).isNull();
+    }
+
+    @Test
+    public void getStep_outOfRange_returnsNull() {
+
+        PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+        PubnativePlacementPlan plan = PubnativePlacementPlan.compile(model, "1");
+        assertThat(plan.getStep(-1)).isNull();
+        assertThat(plan.getStep(plan.size())).isNull();
+    }
+
+    @Test
+    public void getPlacementPlan_withLoadedConfig_reusesSnapshotPlan() {
+
+        PubnativeConfigManager.clean(RuntimeEnvironment.application);
+        PubnativeConfigManager.updateConfig(RuntimeEnvironment.application, "app_token", PubnativeConfigTestUtils.getTestConfig("valid_config.json"));
+        PubnativeConfigModel config = PubnativeConfigManager.getStoredConfig(RuntimeEnvironment.application, "app_token");
+        PubnativePlacementPlan plan = PubnativeConfigManager.getPlacementPlan(config, "1");
+        assertThat(plan).isNotNull();
+        assertThat(PubnativeConfigManager.getPlacementPlan(config, "1")).isSameAs(plan);
+        PubnativeConfigManager.clean(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void snapshot_compilesPlansForEveryPlacement() {
+
+        PubnativeConfigModel model = PubnativeConfigTestUtils.getTestConfig("valid_config.json");
+        Map<String, PubnativePlacementPlan> plans = new PubnativeConfigSnapshot(1, "app_token", model).plans;
+        assertThat(plans.size()).isEqualTo(model.placements.size());
+        assertThat(plans.containsKey("1")).isTrue();
+    }
+}
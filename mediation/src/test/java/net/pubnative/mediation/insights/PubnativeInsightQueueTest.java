@@ -0,0 +1,221 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.insights;
+
+import net.pubnative.mediation.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class,
+        sdk = 21)
+public class PubnativeInsightQueueTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    protected File                  mDirectory;
+    protected PubnativeInsightQueue mQueue;
+
+    @Before
+    public void setUp() throws Exception {
+
+        mDirectory = new File(mFolder.getRoot(), "queue");
+        mQueue = new PubnativeInsightQueue(mDirectory);
+    }
+
+    @After
+    public void tearDown() {
+
+        mQueue.close();
+    }
+
+    protected byte[] record(int index) {
+
+        return ("{\"event\":" + index + ",\"network\":\"admob\",\"placement\":\"test\"}").getBytes();
+    }
+
+    protected int segmentCount() {
+
+        int result = 0;
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(PubnativeInsightQueue.SEGMENT_SUFFIX)) {
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void dequeue_withEmptyQueue_returnsNull() {
+
+        assertThat(mQueue.dequeue()).isNull();
+        assertThat(mQueue.size()).isZero();
+    }
+
+    @Test
+    public void dequeue_returnsRecordsInOrder() {
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(mQueue.enqueue(record(i))).isTrue();
+        }
+        assertThat(mQueue.size()).isEqualTo(10);
+        for (int i = 0; i < 10; i++) {
+            assertThat(mQueue.dequeue()).isEqualTo(record(i));
+        }
+        assertThat(mQueue.dequeue()).isNull();
+    }
+
+    @Test
+    public void reopen_keepsPendingRecordsAndCursor() {
+
+        for (int i = 0; i < 5; i++) {
+            mQueue.enqueue(record(i));
+        }
+        mQueue.dequeue();
+        mQueue.dequeue();
+        mQueue.close();
+        // New instance as a new process would create it
+        mQueue = new PubnativeInsightQueue(mDirectory);
+        assertThat(mQueue.size()).isEqualTo(3);
+        assertThat(mQueue.dequeue()).isEqualTo(record(2));
+        mQueue.enqueue(record(5));
+        assertThat(mQueue.dequeue()).isEqualTo(record(3));
+        assertThat(mQueue.dequeue()).isEqualTo(record(4));
+        assertThat(mQueue.dequeue()).isEqualTo(record(5));
+    }
+
+    @Test
+    public void enqueue_withNonLatinDigitsLocale_namesSegmentsWithAsciiDigits() {
+
+        Locale defaultLocale = Locale.getDefault();
+        try {
+            // Arabic formats numbers with its own digits by default
+            Locale.setDefault(new Locale("ar"));
+            mQueue.enqueue(record(0));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+        for (File file : mDirectory.listFiles()) {
+            if (file.getName().endsWith(PubnativeInsightQueue.SEGMENT_SUFFIX)) {
+                assertThat(file.getName()).matches("[0-9]{16}\\" + PubnativeInsightQueue.SEGMENT_SUFFIX);
+            }
+        }
+        assertThat(segmentCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void reopen_withTornLastRecord_dropsOnlyThatRecord() throws Exception {
+
+        for (int i = 0; i < 3; i++) {
+            mQueue.enqueue(record(i));
+        }
+        mQueue.close();
+        File segment = mQueue.getSegmentFile(0);
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 5);
+        file.close();
+        mQueue = new PubnativeInsightQueue(mDirectory);
+        assertThat(mQueue.size()).isEqualTo(2);
+        mQueue.enqueue(record(3));
+        assertThat(mQueue.dequeue()).isEqualTo(record(0));
+        assertThat(mQueue.dequeue()).isEqualTo(record(1));
+        assertThat(mQueue.dequeue()).isEqualTo(record(3));
+        assertThat(mQueue.dequeue()).isNull();
+    }
+
+    @Test
+    public void dequeue_acrossSegments_deletesConsumedSegments() {
+
+        mQueue.mSegmentSize = 200;
+        for (int i = 0; i < 20; i++) {
+            mQueue.enqueue(record(i));
+        }
+        int segments = segmentCount();
+        assertThat(segments).isGreaterThan(2);
+        for (int i = 0; i < 10; i++) {
+            assertThat(mQueue.dequeue()).isEqualTo(record(i));
+        }
+        assertThat(segmentCount()).isLessThan(segments);
+        for (int i = 10; i < 20; i++) {
+            assertThat(mQueue.dequeue()).isEqualTo(record(i));
+        }
+        // Empty queue leaves no segments behind
+        assertThat(segmentCount()).isZero();
+    }
+
+    @Test
+    public void clear_removesEverything() {
+
+        for (int i = 0; i < 5; i++) {
+            mQueue.enqueue(record(i));
+        }
+        mQueue.clear();
+        assertThat(mQueue.size()).isZero();
+        assertThat(segmentCount()).isZero();
+        mQueue.close();
+        mQueue = new PubnativeInsightQueue(mDirectory);
+        assertThat(mQueue.dequeue()).isNull();
+    }
+
+    protected long writtenBytesPerEvent(int backlog, int operations) {
+
+        mQueue.clear();
+        for (int i = 0; i < backlog; i++) {
+            mQueue.enqueue(record(i));
+        }
+        long start = mQueue.mWrittenBytes;
+        for (int i = 0; i < operations; i++) {
+            mQueue.enqueue(record(i));
+            mQueue.dequeue();
+        }
+        return (mQueue.mWrittenBytes - start) / operations;
+    }
+
+    @Test
+    public void writtenBytesPerEvent_doesNotGrowWithBacklog() {
+
+        long small = writtenBytesPerEvent(100, 1000);
+        long big = writtenBytesPerEvent(10000, 1000);
+        // Each event appends one record and moves the cursor, a whole-list rewrite would grow with the backlog
+        assertThat(small).isLessThanOrEqualTo(PubnativeInsightQueue.RECORD_HEADER + record(999).length + 2 * PubnativeInsightQueue.CURSOR_SIZE);
+        assertThat(big).isLessThanOrEqualTo(small + PubnativeInsightQueue.CURSOR_SIZE);
+    }
+}
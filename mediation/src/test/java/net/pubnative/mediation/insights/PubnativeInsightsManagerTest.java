@@ -24,14 +24,47 @@
 package net.pubnative.mediation.insights;
 
 import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 import net.pubnative.mediation.BuildConfig;
+import net.pubnative.mediation.insights.model.PubnativeInsightDataModel;
+import net.pubnative.mediation.insights.model.PubnativeInsightHeaderModel;
+import net.pubnative.mediation.insights.model.PubnativeInsightRequestModel;
+import net.pubnative.mediation.network.PubnativeRetryPolicy;
+import net.pubnative.mediation.utils.PubnativeConnectivityMonitor;
 
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowConnectivityManager;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowNetworkInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -40,6 +73,60 @@ import static org.assertj.core.api.Assertions.assertThat;
         sdk = 21)
 public class PubnativeInsightsManagerTest {
 
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        // Run the insights thread work in the test looper
+        PubnativeInsightsManager.sHandler = new Handler(Looper.getMainLooper());
+        PubnativeInsightsManager.getQueue(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA).clear();
+        PubnativeInsightsManager.getQueue(context, PubnativeInsightsManager.INSIGHTS_FAILED_DATA).clear();
+        PubnativeInsightsManager.sNextRetryTimestamp = 0;
+    }
+
+    @After
+    public void tearDown() {
+
+        PubnativeInsightsManager.setBatchUpload(false);
+        PubnativeInsightsManager.setCompactBatches(false);
+        PubnativeInsightsManager.setBatchLimits(PubnativeInsightsManager.DEFAULT_BATCH_EVENTS,
+                                                PubnativeInsightsManager.DEFAULT_BATCH_BYTES,
+                                                PubnativeInsightsManager.DEFAULT_BATCH_AGE);
+        PubnativeInsightsManager.setMaxConcurrentRequests(PubnativeInsightsManager.DEFAULT_MAX_REQUESTS,
+                                                          PubnativeInsightsManager.DEFAULT_MAX_HOST_REQUESTS);
+        PubnativeInsightsManager.setEventRetryPolicy(PubnativeInsightsManager.DEFAULT_EVENT_RETRY);
+        PubnativeInsightsManager.setEventTimeToLive(PubnativeInsightsManager.DEFAULT_EVENT_TTL);
+        PubnativeInsightsManager.setStorageBudget(PubnativeInsightsManager.DEFAULT_STORAGE_BUDGET);
+        PubnativeInsightsManager.sFlushRequested = false;
+        PubnativeInsightsManager.cancelFlush();
+        if (PubnativeInsightsManager.sRetryRunnable != null) {
+            PubnativeInsightsManager.sHandler.removeCallbacks(PubnativeInsightsManager.sRetryRunnable);
+            PubnativeInsightsManager.sRetryRunnable = null;
+        }
+        PubnativeInsightsManager.sScheduledRetryTimestamp = Long.MAX_VALUE;
+        PubnativeInsightsManager.sHostInFlight.clear();
+        PubnativeInsightsManager.sParked.clear();
+        if (PubnativeInsightsManager.sNetworkListener != null) {
+            PubnativeConnectivityMonitor.removeListener(PubnativeInsightsManager.sNetworkListener);
+            PubnativeInsightsManager.sNetworkListener = null;
+        }
+        PubnativeConnectivityMonitor.stop();
+    }
+
+    protected void waitForQueueDrain(Context context) throws InterruptedException {
+
+        // Requests run in the network pool and callback in the main looper
+        PubnativeInsightQueue pending = PubnativeInsightsManager.getQueue(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA);
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((pending.size() > 0 || PubnativeInsightsManager.sInFlight > 0) && System.currentTimeMillis() < deadline) {
+            ShadowLooper.runUiThreadTasks();
+            Thread.sleep(20);
+        }
+    }
+
     @Test
     public void pendingAndFailedQueueIsEmptyAtBeginning() {
 
@@ -55,9 +142,517 @@ public class PubnativeInsightsManagerTest {
         PubnativeInsightsManager.trackData(null, null, null, null);
     }
 
+    @Test
+    public void trackData_whileInsightsThreadHoldsTheLock_returns() throws Exception {
+
+        final Context context = RuntimeEnvironment.application.getApplicationContext();
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        PubnativeInsightsManager.setBatchUpload(true);
+        ShadowLooper.pauseMainLooper();
+        // Stands for the insights thread in the middle of queue or header file access
+        Thread worker = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                synchronized (PubnativeInsightsManager.class) {
+                    locked.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        // Do nothing
+                    }
+                }
+            }
+        });
+        worker.start();
+        Thread caller = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                PubnativeInsightsManager.trackData(context, "http://insights/impression", null, new PubnativeInsightDataModel());
+            }
+        });
+        try {
+            assertThat(locked.await(5, TimeUnit.SECONDS)).isTrue();
+            caller.start();
+            caller.join(1000);
+            assertThat(caller.isAlive()).isFalse();
+        } finally {
+            release.countDown();
+            worker.join();
+            caller.join();
+            ShadowLooper.unPauseMainLooper();
+        }
+    }
+
+    @Test
+    public void trackData_storesEventInInsightsThread() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        // Batches keep the event in the queue
+        PubnativeInsightsManager.setBatchUpload(true);
+        PubnativeInsightQueue pending = PubnativeInsightsManager.getQueue(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA);
+        PubnativeInsightDataModel dataModel = new PubnativeInsightDataModel();
+        ShadowLooper.pauseMainLooper();
+        PubnativeInsightsManager.trackData(context, "http://insights/impression", null, dataModel);
+        // Nothing is stored in the caller thread, and later changes don't reach the tracked event
+        dataModel.placement_name = "next_placement";
+        assertThat(pending.size()).isZero();
+        ShadowLooper.unPauseMainLooper();
+
+        assertThat(pending.size()).isEqualTo(1);
+        assertThat(PubnativeInsightsManager.dequeueInsightItem(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA).dataModel.placement_name).isNull();
+    }
+
     @Test
     public void trackData_withInvalidUrl_pass() {
 
         PubnativeInsightsManager.trackData(RuntimeEnvironment.application.getApplicationContext(), null, null, null);
     }
+
+    @Test
+    public void dequeueInsightItem_withLegacyPreferencesList_importsItIntoQueue() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        PubnativeInsightsManager.sQueues.clear();
+        List<PubnativeInsightRequestModel> legacyList = new ArrayList<PubnativeInsightRequestModel>();
+        legacyList.add(new PubnativeInsightRequestModel("http://insights/first", new PubnativeInsightDataModel()));
+        legacyList.add(new PubnativeInsightRequestModel("http://insights/second", new PubnativeInsightDataModel()));
+        PubnativeInsightsManager.setTrackingList(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA, legacyList);
+
+        assertThat(PubnativeInsightsManager.dequeueInsightItem(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA).url).isEqualTo("http://insights/first");
+        assertThat(PubnativeInsightsManager.getTrackingList(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA)).isNull();
+        assertThat(PubnativeInsightsManager.dequeueInsightItem(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA).url).isEqualTo("http://insights/second");
+        assertThat(PubnativeInsightsManager.dequeueInsightItem(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA)).isNull();
+    }
+
+    protected PubnativeInsightRequestModel insightItem(String url, long ageInMillis) {
+
+        PubnativeInsightDataModel dataModel = new PubnativeInsightDataModel();
+        dataModel.generated_at = (System.currentTimeMillis() - ageInMillis) * 1000;
+        return new PubnativeInsightRequestModel(url, dataModel);
+    }
+
+    protected PubnativeInsightRequestModel sessionItem(String url, String placement) {
+
+        PubnativeInsightRequestModel result = insightItem(url, 0);
+        result.dataModel.pub_app_version = "1.0.0";
+        result.dataModel.pub_app_bundle_id = "net.pubnative.mediation.demo";
+        result.dataModel.os_version = "5.0.2";
+        result.dataModel.sdk_version = "1.3.0";
+        result.dataModel.user_uid = "38400000-8cf0-11bd-b23e-10b96e40000d";
+        result.dataModel.connection_type = "wifi";
+        result.dataModel.device_name = "Nexus 5";
+        result.dataModel.placement_name = placement;
+        result.dataModel.creative_url = "http://creatives/" + placement + ".png";
+        return result;
+    }
+
+    @Test
+    public void getBatchWait_withYoungEvent_waitsForTheBatchToFill() {
+
+        PubnativeInsightQueue queue = new PubnativeInsightQueue(mFolder.getRoot());
+        PubnativeInsightsManager.setBatchLimits(10, 64 * 1024, 30000);
+        queue.enqueue(PubnativeInsightsManager.toRecord(RuntimeEnvironment.application, insightItem("http://insights/impression", 1000)));
+        assertThat(PubnativeInsightsManager.getBatchWait(queue)).isGreaterThan(0).isLessThanOrEqualTo(29000);
+        queue.close();
+    }
+
+    @Test
+    public void getBatchWait_withOldEventFullBatchOrFlush_sendsNow() {
+
+        PubnativeInsightQueue queue = new PubnativeInsightQueue(mFolder.getRoot());
+        PubnativeInsightsManager.setBatchLimits(2, 64 * 1024, 30000);
+        queue.enqueue(PubnativeInsightsManager.toRecord(RuntimeEnvironment.application, insightItem("http://insights/impression", 31000)));
+        assertThat(PubnativeInsightsManager.getBatchWait(queue)).isZero();
+        queue.clear();
+        queue.enqueue(PubnativeInsightsManager.toRecord(RuntimeEnvironment.application, insightItem("http://insights/impression", 0)));
+        queue.enqueue(PubnativeInsightsManager.toRecord(RuntimeEnvironment.application, insightItem("http://insights/impression", 0)));
+        assertThat(PubnativeInsightsManager.getBatchWait(queue)).isZero();
+        queue.dequeue();
+        PubnativeInsightsManager.sFlushRequested = true;
+        assertThat(PubnativeInsightsManager.getBatchWait(queue)).isZero();
+        queue.close();
+    }
+
+    @Test
+    public void dequeueBatch_stopsAtLimitsAndOtherUrl() {
+
+        PubnativeInsightQueue queue = new PubnativeInsightQueue(mFolder.getRoot());
+        PubnativeInsightsManager.setBatchLimits(3, 64 * 1024, 30000);
+        for (int i = 0; i < 4; i++) {
+            queue.enqueue(PubnativeInsightsManager.toRecord(RuntimeEnvironment.application, insightItem("http://insights/impression", 0)));
+        }
+        queue.enqueue(PubnativeInsightsManager.toRecord(RuntimeEnvironment.application, insightItem("http://insights/click", 0)));
+        assertThat(PubnativeInsightsManager.dequeueBatch(queue)).hasSize(3);
+        assertThat(PubnativeInsightsManager.dequeueBatch(queue)).hasSize(1);
+        List<PubnativeInsightRequestModel> clicks = PubnativeInsightsManager.dequeueBatch(queue);
+        assertThat(clicks).hasSize(1);
+        assertThat(clicks.get(0).url).isEqualTo("http://insights/click");
+        assertThat(queue.size()).isZero();
+        queue.close();
+    }
+
+    @Test
+    public void storeFailedItems_withFailedItems_storesOnlyThoseForRetry() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        List<PubnativeInsightRequestModel> batch = new ArrayList<PubnativeInsightRequestModel>();
+        for (int i = 0; i < 3; i++) {
+            batch.add(insightItem("http://insights/impression?item=" + i, 0));
+        }
+        PubnativeInsightsManager.storeFailedItems(context, batch, Arrays.asList(1), "rejected");
+
+        PubnativeInsightRequestModel failed = PubnativeInsightsManager.dequeueInsightItem(context, PubnativeInsightsManager.INSIGHTS_FAILED_DATA);
+        assertThat(failed.url).isEqualTo("http://insights/impression?item=1");
+        assertThat(failed.dataModel.retry).isEqualTo(1);
+        assertThat(failed.dataModel.retry_error).isEqualTo("rejected");
+        assertThat(PubnativeInsightsManager.dequeueInsightItem(context, PubnativeInsightsManager.INSIGHTS_FAILED_DATA)).isNull();
+    }
+
+    @Test
+    public void trackData_withBatchUpload_sendsManyEventsPerRequest() throws Exception {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+
+                return new MockResponse().setBody("{\"status\":\"ok\"}");
+            }
+        });
+        server.start();
+        try {
+            PubnativeInsightsManager.setBatchUpload(true);
+            PubnativeInsightsManager.setBatchLimits(20, 64 * 1024, 60000);
+            String url = server.url("/impression").toString();
+            int eventCount = 100;
+            for (int i = 0; i < eventCount; i++) {
+                PubnativeInsightsManager.trackData(context, url, null, new PubnativeInsightDataModel());
+            }
+            PubnativeInsightsManager.flush(context);
+            waitForQueueDrain(context);
+            int receivedEvents = 0;
+            int requestCount = server.getRequestCount();
+            for (int i = 0; i < requestCount; i++) {
+                String body = server.takeRequest().getBody().readUtf8();
+                receivedEvents += new Gson().fromJson(body, PubnativeInsightDataModel[].class).length;
+            }
+            assertThat(receivedEvents).isEqualTo(eventCount);
+            // One request per event without batches
+            assertThat(requestCount).isLessThanOrEqualTo(eventCount / 10);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void trackData_withSlowHost_doesNotHoldBackOtherHosts() throws Exception {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        final CountDownLatch releaseSlowHost = new CountDownLatch(1);
+        MockWebServer slowServer = new MockWebServer();
+        slowServer.setDispatcher(new Dispatcher() {
+
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+
+                releaseSlowHost.await(10, TimeUnit.SECONDS);
+                return new MockResponse().setBody("{\"status\":\"ok\"}");
+            }
+        });
+        MockWebServer fastServer = new MockWebServer();
+        fastServer.enqueue(new MockResponse().setBody("{\"status\":\"ok\"}"));
+        fastServer.enqueue(new MockResponse().setBody("{\"status\":\"ok\"}"));
+        fastServer.enqueue(new MockResponse().setBody("{\"status\":\"ok\"}"));
+        slowServer.start();
+        fastServer.start();
+        try {
+            PubnativeInsightsManager.setMaxConcurrentRequests(4, 2);
+            long drainedCount = PubnativeInsightsManager.getDrainedCount();
+            for (int i = 0; i < 3; i++) {
+                PubnativeInsightsManager.trackData(context, slowServer.url("/impression").toString(), null, new PubnativeInsightDataModel());
+            }
+            for (int i = 0; i < 3; i++) {
+                PubnativeInsightsManager.trackData(context, fastServer.url("/impression").toString(), null, new PubnativeInsightDataModel());
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (fastServer.getRequestCount() < 3 && System.currentTimeMillis() < deadline) {
+                ShadowLooper.runUiThreadTasks();
+                Thread.sleep(20);
+            }
+            // The fast host was served while the slow one kept its two requests open
+            assertThat(fastServer.getRequestCount()).isEqualTo(3);
+            assertThat(slowServer.getRequestCount()).isEqualTo(2);
+            releaseSlowHost.countDown();
+            waitForQueueDrain(context);
+            assertThat(slowServer.getRequestCount()).isEqualTo(3);
+            assertThat(PubnativeInsightsManager.getDrainedCount()).isEqualTo(drainedCount + 6);
+            assertThat(PubnativeInsightsManager.getDrainThroughput()).isGreaterThan(0);
+        } finally {
+            releaseSlowHost.countDown();
+            slowServer.shutdown();
+            fastServer.shutdown();
+        }
+    }
+
+    @Test
+    public void nextDispatch_withBusyHost_keepsEventsInQueue() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        for (int i = 0; i < 5; i++) {
+            PubnativeInsightsManager.enqueueInsightItem(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA, insightItem("http://insights/impression?item=" + i, 0));
+        }
+        PubnativeInsightsManager.sHostInFlight.put("insights", PubnativeInsightsManager.DEFAULT_MAX_HOST_REQUESTS);
+        assertThat(PubnativeInsightsManager.nextDispatch(context)).isNull();
+        assertThat(PubnativeInsightsManager.nextDispatch(context)).isNull();
+
+        // Only the next event of the host waits in memory
+        assertThat(PubnativeInsightsManager.sParked).hasSize(1);
+        assertThat(PubnativeInsightsManager.getQueue(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA).size()).isEqualTo(4);
+        PubnativeInsightsManager.sHostInFlight.clear();
+        assertThat(PubnativeInsightsManager.nextDispatch(context).items.get(0).url).isEqualTo("http://insights/impression?item=0");
+    }
+
+    @Test
+    public void storeFailedItem_afterMaxAttempts_dropsEvent() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        PubnativeInsightsManager.setEventRetryPolicy(new PubnativeRetryPolicy(2, 1000, 1000));
+        long dropped = PubnativeInsightsManager.getDroppedCount(PubnativeInsightsManager.DropReason.MAX_ATTEMPTS);
+        PubnativeInsightRequestModel model = insightItem("http://insights/impression", 0);
+        PubnativeInsightsManager.storeFailedItem(context, model, "error");
+        assertThat(model.retryTimestamp).isGreaterThan(System.currentTimeMillis());
+        PubnativeInsightsManager.storeFailedItem(context, PubnativeInsightsManager.dequeueInsightItem(context, PubnativeInsightsManager.INSIGHTS_FAILED_DATA), "error");
+
+        assertThat(PubnativeInsightsManager.dequeueInsightItem(context, PubnativeInsightsManager.INSIGHTS_FAILED_DATA)).isNull();
+        assertThat(PubnativeInsightsManager.getDroppedCount(PubnativeInsightsManager.DropReason.MAX_ATTEMPTS)).isEqualTo(dropped + 1);
+    }
+
+    @Test
+    public void storeFailedItem_withExpiredEvent_dropsEvent() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        long dropped = PubnativeInsightsManager.getDroppedCount(PubnativeInsightsManager.DropReason.EXPIRED);
+        PubnativeInsightsManager.storeFailedItem(context, insightItem("http://insights/impression", TimeUnit.DAYS.toMillis(2)), "error");
+
+        assertThat(PubnativeInsightsManager.dequeueInsightItem(context, PubnativeInsightsManager.INSIGHTS_FAILED_DATA)).isNull();
+        assertThat(PubnativeInsightsManager.getDroppedCount(PubnativeInsightsManager.DropReason.EXPIRED)).isEqualTo(dropped + 1);
+    }
+
+    @Test
+    public void promoteFailedItems_movesOnlyDueEvents() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        PubnativeInsightRequestModel due = insightItem("http://insights/due", 0);
+        due.retryTimestamp = System.currentTimeMillis() - 1;
+        PubnativeInsightRequestModel waiting = insightItem("http://insights/waiting", 0);
+        waiting.retryTimestamp = System.currentTimeMillis() + 60000;
+        PubnativeInsightsManager.enqueueInsightItem(context, PubnativeInsightsManager.INSIGHTS_FAILED_DATA, waiting);
+        PubnativeInsightsManager.enqueueInsightItem(context, PubnativeInsightsManager.INSIGHTS_FAILED_DATA, due);
+        PubnativeInsightsManager.promoteFailedItems(context);
+
+        assertThat(PubnativeInsightsManager.sNextRetryTimestamp).isEqualTo(waiting.retryTimestamp);
+        assertThat(PubnativeInsightsManager.dequeueInsightItem(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA).url).isEqualTo("http://insights/due");
+        assertThat(PubnativeInsightsManager.dequeueInsightItem(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA)).isNull();
+        assertThat(PubnativeInsightsManager.dequeueInsightItem(context, PubnativeInsightsManager.INSIGHTS_FAILED_DATA).url).isEqualTo("http://insights/waiting");
+    }
+
+    @Test
+    public void trackNext_whenOffline_resumesOnReconnect() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        ShadowConnectivityManager connectivityManager = Shadows.shadowOf((ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE));
+        connectivityManager.setActiveNetworkInfo(ShadowNetworkInfo.newInstance(NetworkInfo.DetailedState.DISCONNECTED, ConnectivityManager.TYPE_WIFI, 0, false, false));
+        PubnativeConnectivityMonitor.stop();
+        // Batches keep the promoted event in the pending queue
+        PubnativeInsightsManager.setBatchUpload(true);
+        PubnativeInsightRequestModel due = insightItem("http://insights/due", 0);
+        due.retryTimestamp = System.currentTimeMillis() - 1;
+        PubnativeInsightsManager.enqueueInsightItem(context, PubnativeInsightsManager.INSIGHTS_FAILED_DATA, due);
+        PubnativeInsightsManager.trackNext(context);
+        PubnativeInsightQueue pending = PubnativeInsightsManager.getQueue(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA);
+        assertThat(pending.size()).isZero();
+        assertThat(PubnativeInsightsManager.sNetworkListener).isNotNull();
+
+        connectivityManager.setActiveNetworkInfo(ShadowNetworkInfo.newInstance(NetworkInfo.DetailedState.CONNECTED, ConnectivityManager.TYPE_WIFI, 0, true, true));
+        context.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        assertThat(PubnativeInsightsManager.sNetworkListener).isNull();
+        assertThat(pending.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void nextItem_withExpiredPendingEvent_dropsIt() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        long dropped = PubnativeInsightsManager.getDroppedCount(PubnativeInsightsManager.DropReason.EXPIRED);
+        PubnativeInsightsManager.enqueueInsightItem(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA, insightItem("http://insights/stale", TimeUnit.DAYS.toMillis(2)));
+        PubnativeInsightsManager.enqueueInsightItem(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA, insightItem("http://insights/fresh", 0));
+
+        assertThat(PubnativeInsightsManager.nextItem(context).get(0).url).isEqualTo("http://insights/fresh");
+        assertThat(PubnativeInsightsManager.getDroppedCount(PubnativeInsightsManager.DropReason.EXPIRED)).isEqualTo(dropped + 1);
+    }
+
+    @Test
+    public void enqueueInsightItem_overStorageBudget_dropsOldestEvents() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        int recordSize = PubnativeInsightsManager.toRecord(context, insightItem("http://insights/item0", 0)).length;
+        PubnativeInsightsManager.setStorageBudget(recordSize * 3);
+        long dropped = PubnativeInsightsManager.getDroppedCount(PubnativeInsightsManager.DropReason.STORAGE_BUDGET);
+        for (int i = 0; i < 5; i++) {
+            PubnativeInsightsManager.enqueueInsightItem(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA, insightItem("http://insights/item" + i, 0));
+        }
+
+        PubnativeInsightQueue pending = PubnativeInsightsManager.getQueue(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA);
+        assertThat(pending.size()).isEqualTo(3);
+        assertThat(pending.byteSize()).isLessThanOrEqualTo(recordSize * 3);
+        assertThat(PubnativeInsightsManager.getDroppedCount(PubnativeInsightsManager.DropReason.STORAGE_BUDGET)).isEqualTo(dropped + 2);
+        assertThat(PubnativeInsightsManager.dequeueInsightItem(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA).url).isEqualTo("http://insights/item2");
+    }
+
+    @Test
+    public void toRecord_withSessionFields_storesThemOncePerHeader() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        PubnativeInsightRequestModel model = sessionItem("http://insights/impression", "placement_1");
+        byte[] record = PubnativeInsightsManager.toRecord(context, model);
+
+        // Caller model keeps its fields
+        assertThat(model.dataModel.device_name).isEqualTo("Nexus 5");
+        assertThat(record.length).isLessThan(new Gson().toJson(model).length());
+        PubnativeInsightRequestModel stored = PubnativeInsightsManager.fromRecord(record);
+        assertThat(stored.headerId).isNotNull();
+        assertThat(stored.dataModel.device_name).isNull();
+        assertThat(stored.dataModel.placement_name).isEqualTo("placement_1");
+        // Same session, same header
+        assertThat(PubnativeInsightsManager.fromRecord(PubnativeInsightsManager.toRecord(context, sessionItem("http://insights/click", "placement_2"))).headerId).isEqualTo(stored.headerId);
+
+        PubnativeInsightsManager.getHeader(context, stored.headerId).applyTo(stored.dataModel);
+        assertThat(stored.dataModel.device_name).isEqualTo("Nexus 5");
+        assertThat(stored.dataModel.os_version).isEqualTo("5.0.2");
+        assertThat(stored.dataModel.user_uid).isEqualTo(model.dataModel.user_uid);
+    }
+
+    @Test
+    public void toRecord_withNewSessionAndNoStoredEvents_replacesOldHeaders() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        PubnativeInsightQueue pending = PubnativeInsightsManager.getQueue(context, PubnativeInsightsManager.INSIGHTS_PENDING_DATA);
+        PubnativeInsightRequestModel first = sessionItem("http://insights/impression", "placement_1");
+        pending.enqueue(PubnativeInsightsManager.toRecord(context, first));
+        String firstHeaderId = PubnativeInsightsManager.fromRecord(pending.peek()).headerId;
+        PubnativeInsightRequestModel second = sessionItem("http://insights/impression", "placement_1");
+        second.dataModel.device_name = "Nexus 6";
+        pending.enqueue(PubnativeInsightsManager.toRecord(context, second));
+
+        // Stored events still use the first header
+        assertThat(PubnativeInsightsManager.getHeader(context, firstHeaderId)).isNotNull();
+
+        pending.clear();
+        PubnativeInsightRequestModel third = sessionItem("http://insights/impression", "placement_1");
+        third.dataModel.device_name = "Nexus 7";
+        String thirdHeaderId = PubnativeInsightsManager.fromRecord(PubnativeInsightsManager.toRecord(context, third)).headerId;
+
+        assertThat(PubnativeInsightsManager.sHeaders).hasSize(1);
+        assertThat(PubnativeInsightsManager.getHeader(context, thirdHeaderId)).isNotNull();
+        assertThat(PubnativeInsightsManager.sHeadersFile.exists()).isTrue();
+    }
+
+    @Test
+    public void toRecord_withHeaderIdCollision_keepsSessionFields() {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        PubnativeInsightRequestModel model = sessionItem("http://insights/impression", "placement_1");
+        String headerId = PubnativeInsightsManager.fromRecord(PubnativeInsightsManager.toRecord(context, model)).headerId;
+        PubnativeInsightRequestModel other = sessionItem("http://insights/impression", "placement_1");
+        other.dataModel.device_name = "Nexus 6";
+        PubnativeInsightsManager.sHeaders.put(headerId, new PubnativeInsightHeaderModel(other.dataModel));
+
+        PubnativeInsightRequestModel stored = PubnativeInsightsManager.fromRecord(PubnativeInsightsManager.toRecord(context, model));
+
+        assertThat(stored.headerId).isNull();
+        assertThat(stored.dataModel.device_name).isEqualTo("Nexus 5");
+    }
+
+    @Test
+    public void toCompactBatch_sendsSessionFieldsOnce() {
+
+        List<PubnativeInsightRequestModel> batch = new ArrayList<PubnativeInsightRequestModel>();
+        List<PubnativeInsightDataModel> events = new ArrayList<PubnativeInsightDataModel>();
+        for (int i = 0; i < 20; i++) {
+            PubnativeInsightRequestModel model = sessionItem("http://insights/impression", "placement_" + i);
+            batch.add(model);
+            events.add(model.dataModel);
+        }
+        PubnativeInsightHeaderModel header = new PubnativeInsightHeaderModel(batch.get(0).dataModel);
+        String compact = PubnativeInsightsManager.toCompactBatch(header, batch);
+
+        assertThat(compact.length()).isLessThan(new Gson().toJson(events).length() / 2);
+        JsonObject json = new JsonParser().parse(compact).getAsJsonObject();
+        assertThat(json.getAsJsonObject("header").get("device_name").getAsString()).isEqualTo("Nexus 5");
+        assertThat(json.getAsJsonArray("events").size()).isEqualTo(20);
+        JsonObject event = json.getAsJsonArray("events").get(3).getAsJsonObject();
+        assertThat(event.has("device_name")).isFalse();
+        assertThat(event.get("placement_name").getAsString()).isEqualTo("placement_3");
+    }
+
+    @Test
+    public void trackData_withServerError_sendsOnceAndCountsOneEventAttempt() throws Exception {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        MockWebServer server = new MockWebServer();
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setResponseCode(503));
+        }
+        server.start();
+        try {
+            PubnativeInsightsManager.trackData(context, server.url("/impression").toString(), null, new PubnativeInsightDataModel());
+            waitForQueueDrain(context);
+
+            // The event retry policy decides when it's sent again, not the request
+            assertThat(server.getRequestCount()).isEqualTo(1);
+            PubnativeInsightRequestModel failed = PubnativeInsightsManager.dequeueInsightItem(context, PubnativeInsightsManager.INSIGHTS_FAILED_DATA);
+            assertThat(failed).isNotNull();
+            assertThat(failed.dataModel.retry).isEqualTo(1);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void trackData_withCompactBatches_sendsHeaderAndEvents() throws Exception {
+
+        Context context = RuntimeEnvironment.application.getApplicationContext();
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody("{\"status\":\"ok\"}"));
+        server.start();
+        try {
+            PubnativeInsightsManager.setBatchUpload(true);
+            PubnativeInsightsManager.setCompactBatches(true);
+            PubnativeInsightsManager.setBatchLimits(20, 64 * 1024, 60000);
+            String url = server.url("/impression").toString();
+            for (int i = 0; i < 5; i++) {
+                PubnativeInsightsManager.trackData(context, url, null, sessionItem(url, "placement_" + i).dataModel);
+            }
+            PubnativeInsightsManager.flush(context);
+            waitForQueueDrain(context);
+
+            assertThat(server.getRequestCount()).isEqualTo(1);
+            JsonObject body = new JsonParser().parse(server.takeRequest().getBody().readUtf8()).getAsJsonObject();
+            assertThat(body.getAsJsonObject("header").get("sdk_version").getAsString()).isEqualTo("1.3.0");
+            assertThat(body.getAsJsonArray("events").size()).isEqualTo(5);
+            assertThat(body.getAsJsonArray("events").get(0).getAsJsonObject().has("sdk_version")).isFalse();
+            // Header stays stored for the next events of the session
+            assertThat(PubnativeInsightsManager.sHeaders).hasSize(1);
+            assertThat(PubnativeInsightsManager.sHeadersFile.exists()).isTrue();
+        } finally {
+            server.shutdown();
+        }
+    }
 }
@@ -0,0 +1,94 @@
+package net.pubnative.mediation.network;
+
+import net.pubnative.mediation.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class,
+        sdk = 21)
+public class PubnativeCircuitBreakerTest {
+
+    protected static final String HOST = "ml.pubnative.net";
+
+    @Before
+    public void setUp() {
+
+        PubnativeCircuitBreaker.reset();
+        PubnativeCircuitBreaker.setFailureThreshold(3);
+        PubnativeCircuitBreaker.setCoolDown(50);
+    }
+
+    @After
+    public void tearDown() {
+
+        PubnativeCircuitBreaker.setFailureThreshold(PubnativeCircuitBreaker.DEFAULT_FAILURE_THRESHOLD);
+        PubnativeCircuitBreaker.setCoolDown(PubnativeCircuitBreaker.DEFAULT_COOL_DOWN);
+        PubnativeCircuitBreaker.reset();
+    }
+
+    @Test
+    public void onFailure_belowThreshold_keepsCircuitClosed() {
+
+        PubnativeCircuitBreaker.onFailure(HOST);
+        PubnativeCircuitBreaker.onFailure(HOST);
+        assertThat(PubnativeCircuitBreaker.getState(HOST)).isEqualTo(PubnativeCircuitBreaker.State.CLOSED);
+        assertThat(PubnativeCircuitBreaker.getFailureCount(HOST)).isEqualTo(2);
+        assertThat(PubnativeCircuitBreaker.allowRequest(HOST)).isTrue();
+    }
+
+    @Test
+    public void onFailure_atThreshold_opensCircuitOnlyForThatHost() {
+
+        for (int i = 0; i < 3; i++) {
+            PubnativeCircuitBreaker.onFailure(HOST);
+        }
+        assertThat(PubnativeCircuitBreaker.getState(HOST)).isEqualTo(PubnativeCircuitBreaker.State.OPEN);
+        assertThat(PubnativeCircuitBreaker.allowRequest(HOST)).isFalse();
+        assertThat(PubnativeCircuitBreaker.allowRequest("other.host")).isTrue();
+    }
+
+    @Test
+    public void allowRequest_afterCoolDown_letsSingleTrialThrough() throws Exception {
+
+        for (int i = 0; i < 3; i++) {
+            PubnativeCircuitBreaker.onFailure(HOST);
+        }
+        Thread.sleep(100);
+        assertThat(PubnativeCircuitBreaker.allowRequest(HOST)).isTrue();
+        assertThat(PubnativeCircuitBreaker.getState(HOST)).isEqualTo(PubnativeCircuitBreaker.State.HALF_OPEN);
+        assertThat(PubnativeCircuitBreaker.allowRequest(HOST)).isFalse();
+    }
+
+    @Test
+    public void onSuccess_afterTrial_closesCircuit() throws Exception {
+
+        for (int i = 0; i < 3; i++) {
+            PubnativeCircuitBreaker.onFailure(HOST);
+        }
+        Thread.sleep(100);
+        PubnativeCircuitBreaker.allowRequest(HOST);
+        PubnativeCircuitBreaker.onSuccess(HOST);
+        assertThat(PubnativeCircuitBreaker.getState(HOST)).isEqualTo(PubnativeCircuitBreaker.State.CLOSED);
+        assertThat(PubnativeCircuitBreaker.getFailureCount(HOST)).isEqualTo(0);
+    }
+
+    @Test
+    public void onFailure_afterTrial_reopensCircuit() throws Exception {
+
+        for (int i = 0; i < 3; i++) {
+            PubnativeCircuitBreaker.onFailure(HOST);
+        }
+        Thread.sleep(100);
+        PubnativeCircuitBreaker.allowRequest(HOST);
+        PubnativeCircuitBreaker.onFailure(HOST);
+        assertThat(PubnativeCircuitBreaker.allowRequest(HOST)).isFalse();
+    }
+}
@@ -3,25 +3,506 @@ package net.pubnative.mediation.network;
 import android.os.Handler;
 
 import net.pubnative.mediation.BuildConfig;
+import net.pubnative.mediation.exceptions.PubnativeException;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.Robolectric;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = BuildConfig.class,
         sdk = 21)
 public class PubnativeHttpRequestTest {
 
+    protected MockWebServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+
+        mServer = new MockWebServer();
+        mServer.start();
+        PubnativeCircuitBreaker.reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        PubnativeUrlConnectionTransport.setConnectionReuse(true);
+        PubnativeCircuitBreaker.setFailureThreshold(PubnativeCircuitBreaker.DEFAULT_FAILURE_THRESHOLD);
+        PubnativeCircuitBreaker.reset();
+        mServer.shutdown();
+    }
+
+    protected void waitForCallback(PubnativeHttpRequest request) throws InterruptedException {
+
+        // Retries run in the network pool and post the callback to the main looper, that nulls the listener
+        long deadline = System.currentTimeMillis() + 5000;
+        while (request.mListener != null && System.currentTimeMillis() < deadline) {
+            ShadowLooper.runUiThreadTasks();
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void doRequest_withRetryPolicyAndServerError_retriesUntilSuccess() throws Exception {
+
+        mServer.enqueue(new MockResponse().setResponseCode(503));
+        mServer.enqueue(new MockResponse().setBody("ok"));
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        PubnativeHttpRequest.Listener listener = mock(PubnativeHttpRequest.Listener.class);
+        request.mListener = listener;
+        request.mHandler = new Handler();
+        request.setRetryPolicy(new PubnativeRetryPolicy(3, 10, 10));
+        request.doRequest(mServer.url("/insights").toString());
+        waitForCallback(request);
+        verify(listener).onPubnativeHttpRequestFinish(eq(request), eq("ok"));
+        assertThat(request.getAttemptCount()).isEqualTo(2);
+        assertThat(mServer.getRequestCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void doRequest_withRetryPolicyAndClientError_failsWithoutRetry() throws Exception {
+
+        mServer.enqueue(new MockResponse().setResponseCode(404));
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        PubnativeHttpRequest.Listener listener = mock(PubnativeHttpRequest.Listener.class);
+        request.mListener = listener;
+        request.mHandler = new Handler();
+        request.setRetryPolicy(new PubnativeRetryPolicy(3, 10, 10));
+        request.doRequest(mServer.url("/insights").toString());
+        verify(listener).onPubnativeHttpRequestFail(eq(request), any(PubnativeException.class));
+        assertThat(request.getAttemptCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void doRequest_withEmptyGzipErrorBody_failsWithStatusCodeWithoutRetry() throws Exception {
+
+        // A single transport failure would open the circuit
+        PubnativeCircuitBreaker.setFailureThreshold(1);
+        mServer.enqueue(new MockResponse().setResponseCode(404)
+                                          .setHeader("Content-Encoding", "gzip"));
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        PubnativeHttpRequest.Listener listener = mock(PubnativeHttpRequest.Listener.class);
+        request.mListener = listener;
+        request.mHandler = new Handler();
+        request.setRetryPolicy(new PubnativeRetryPolicy(3, 10, 10));
+        request.doRequest(mServer.url("/insights").toString());
+        ArgumentCaptor<Exception> captor = ArgumentCaptor.forClass(Exception.class);
+        verify(listener).onPubnativeHttpRequestFail(eq(request), captor.capture());
+        assertThat(((PubnativeException) captor.getValue()).getErrorCode()).isEqualTo(PubnativeException.NETWORK_INVALID_STATUS_CODE.getErrorCode());
+        assertThat(request.getResponseCode()).isEqualTo(404);
+        assertThat(request.getAttemptCount()).isEqualTo(1);
+        String host = mServer.getHostName() + ":" + mServer.getPort();
+        assertThat(PubnativeCircuitBreaker.getState(host)).isEqualTo(PubnativeCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void doRequest_afterRepeatedFailures_opensCircuitForHost() throws Exception {
+
+        PubnativeCircuitBreaker.setFailureThreshold(2);
+        String url = mServer.url("/insights").toString();
+        for (int i = 0; i < 2; i++) {
+            mServer.enqueue(new MockResponse().setResponseCode(500));
+            PubnativeHttpRequest request = new PubnativeHttpRequest();
+            request.mHandler = new Handler();
+            request.doRequest(url);
+        }
+        String host = mServer.getHostName() + ":" + mServer.getPort();
+        assertThat(PubnativeCircuitBreaker.getState(host)).isEqualTo(PubnativeCircuitBreaker.State.OPEN);
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        PubnativeHttpRequest.Listener listener = mock(PubnativeHttpRequest.Listener.class);
+        request.mListener = listener;
+        request.mHandler = new Handler();
+        request.doRequest(url);
+        verify(listener).onPubnativeHttpRequestFail(eq(request), eq(PubnativeException.NETWORK_CIRCUIT_OPEN));
+        assertThat(mServer.getRequestCount()).isEqualTo(2);
+    }
+
+    protected void doRequests(int count) {
+
+        String url = mServer.url("/config").toString();
+        for (int i = 0; i < count; i++) {
+            mServer.enqueue(new MockResponse().setBody("{\"status\":\"ok\"}"));
+            PubnativeHttpRequest request = new PubnativeHttpRequest();
+            request.mHandler = new Handler();
+            request.doRequest(url);
+        }
+    }
+
+    @Test
+    public void doRequest_withConnectionReuse_handshakesOnce() throws Exception {
+
+        PubnativeUrlConnectionTransport.setConnectionReuse(true);
+        doRequests(3);
+        // The sequence number restarts at 0 on every new connection, so each 0 is a new handshake
+        assertThat(mServer.takeRequest().getSequenceNumber()).isEqualTo(0);
+        assertThat(mServer.takeRequest().getSequenceNumber()).isEqualTo(1);
+        assertThat(mServer.takeRequest().getSequenceNumber()).isEqualTo(2);
+    }
+
+    @Test
+    public void doRequest_withErrorStatusAndConnectionReuse_reusesConnection() throws Exception {
+
+        PubnativeUrlConnectionTransport.setConnectionReuse(true);
+        String url = mServer.url("/config").toString();
+        mServer.enqueue(new MockResponse().setResponseCode(500).setBody("error"));
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        request.mHandler = new Handler();
+        request.doRequest(url);
+        doRequests(1);
+        assertThat(mServer.takeRequest().getSequenceNumber()).isEqualTo(0);
+        assertThat(mServer.takeRequest().getSequenceNumber()).isEqualTo(1);
+    }
+
+    @Test
+    public void doRequest_withoutConnectionReuse_handshakesEveryRequest() throws Exception {
+
+        PubnativeUrlConnectionTransport.setConnectionReuse(false);
+        doRequests(3);
+        assertThat(mServer.takeRequest().getSequenceNumber()).isEqualTo(0);
+        assertThat(mServer.takeRequest().getSequenceNumber()).isEqualTo(0);
+        assertThat(mServer.takeRequest().getSequenceNumber()).isEqualTo(0);
+    }
+
+    @Test
+    public void drainAndClose_withSmallLeftover_returnsTrue() {
+
+        assertThat(PubnativeUrlConnectionTransport.drainAndClose(new ByteArrayInputStream(new byte[100]))).isTrue();
+        assertThat(PubnativeUrlConnectionTransport.drainAndClose(null)).isTrue();
+    }
+
+    @Test
+    public void drainAndClose_withBigLeftover_returnsFalse() {
+
+        byte[] leftover = new byte[PubnativeUrlConnectionTransport.MAX_DRAIN_BYTES * 2];
+        assertThat(PubnativeUrlConnectionTransport.drainAndClose(new ByteArrayInputStream(leftover))).isFalse();
+    }
+
+    @Test
+    public void doRequest_withLoopbackTransport_callbacksReplyWithoutSockets() {
+
+        PubnativeLoopbackTransport transport = new PubnativeLoopbackTransport(200, "loopback");
+        for (int i = 0; i < 100; i++) {
+            PubnativeHttpRequest request = new PubnativeHttpRequest();
+            PubnativeHttpRequest.Listener listener = mock(PubnativeHttpRequest.Listener.class);
+            request.mListener = listener;
+            request.mHandler = new Handler();
+            request.setTransport(transport);
+            request.doRequest("http://loopback/config");
+            verify(listener).onPubnativeHttpRequestFinish(eq(request), eq("loopback"));
+        }
+        assertThat(transport.getRequestCount()).isEqualTo(100);
+        assertThat(mServer.getRequestCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void doRequest_withLoopbackResponder_receivesRequestAndHeaders() {
+
+        final PubnativeHttpTransport.Request[] received = new PubnativeHttpTransport.Request[1];
+        PubnativeLoopbackTransport transport = new PubnativeLoopbackTransport(new PubnativeLoopbackTransport.Responder() {
+
+            @Override
+            public PubnativeLoopbackTransport.Reply respond(PubnativeHttpTransport.Request request) {
+
+                received[0] = request;
+                return new PubnativeLoopbackTransport.Reply(500, "error").setHeader("X-Test", "value");
+            }
+        });
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        PubnativeHttpRequest.Listener listener = mock(PubnativeHttpRequest.Listener.class);
+        request.mListener = listener;
+        request.mHandler = new Handler();
+        request.setTransport(transport);
+        request.setPOSTString("body");
+        request.doRequest("http://loopback/insights");
+        assertThat(received[0].method).isEqualTo("POST");
+        assertThat(new String(received[0].body)).isEqualTo("body");
+        assertThat(request.getResponseCode()).isEqualTo(500);
+        assertThat(request.getResponseHeader("x-test")).isEqualTo("value");
+        verify(listener).onPubnativeHttpRequestFail(eq(request), any(PubnativeException.class));
+    }
+
+    protected String repeatedBody() {
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            builder.append("{\"network\":\"admob\",\"placement\":\"test\",\"os\":\"android\"}");
+        }
+        return builder.toString();
+    }
+
+    protected String gunzip(Buffer body) throws Exception {
+
+        GZIPInputStream gzipInputStream = new GZIPInputStream(body.inputStream());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int length;
+        while ((length = gzipInputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, length);
+        }
+        return outputStream.toString("UTF-8");
+    }
+
+    @Test
+    public void doRequest_withGzipPOST_sendsCompressedBodyAndCountsBytes() throws Exception {
+
+        PubnativeTrafficStats.reset();
+        String body = repeatedBody();
+        mServer.enqueue(new MockResponse().setBody("ok"));
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        request.mHandler = new Handler();
+        request.setPOSTString(body);
+        request.setGzipPOST(true);
+        request.doRequest(mServer.url("/insights").toString());
+        RecordedRequest recordedRequest = mServer.takeRequest();
+        assertThat(recordedRequest.getHeader("Content-Encoding")).isEqualTo("gzip");
+        assertThat(recordedRequest.getBodySize()).isLessThan(body.length());
+        assertThat(gunzip(recordedRequest.getBody())).isEqualTo(body);
+        assertThat(PubnativeTrafficStats.getSentUncompressedBytes()).isEqualTo(body.length());
+        assertThat(PubnativeTrafficStats.getSentBytes()).isEqualTo(recordedRequest.getBodySize());
+        assertThat(PubnativeTrafficStats.getSavedBytes()).isGreaterThan(0);
+    }
+
+    @Test
+    public void doRequest_withSmallGzipPOST_sendsPlainBody() throws Exception {
+
+        mServer.enqueue(new MockResponse().setBody("ok"));
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        request.mHandler = new Handler();
+        request.setPOSTString("small");
+        request.setGzipPOST(true);
+        request.doRequest(mServer.url("/insights").toString());
+        RecordedRequest recordedRequest = mServer.takeRequest();
+        assertThat(recordedRequest.getHeader("Content-Encoding")).isNull();
+        assertThat(recordedRequest.getBody().readUtf8()).isEqualTo("small");
+    }
+
+    @Test
+    public void doRequest_withGzipResponse_callbacksDecodedBody() throws Exception {
+
+        PubnativeTrafficStats.reset();
+        String body = repeatedBody();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed);
+        gzipOutputStream.write(body.getBytes("UTF-8"));
+        gzipOutputStream.close();
+        mServer.enqueue(new MockResponse().setHeader("Content-Encoding", "gzip")
+                                          .setBody(new Buffer().write(compressed.toByteArray())));
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        PubnativeHttpRequest.Listener listener = mock(PubnativeHttpRequest.Listener.class);
+        request.mListener = listener;
+        request.mHandler = new Handler();
+        request.doRequest(mServer.url("/config").toString());
+        assertThat(mServer.takeRequest().getHeader("Accept-Encoding")).isEqualTo("gzip");
+        verify(listener).onPubnativeHttpRequestFinish(eq(request), eq(body));
+        assertThat(PubnativeTrafficStats.getReceivedBytes()).isEqualTo(compressed.size());
+        assertThat(PubnativeTrafficStats.getReceivedDecodedBytes()).isEqualTo(body.length());
+    }
+
+    @Test
+    public void doRequest_withUtf8Body_callbacksDecodedString() {
+
+        String body = "{\"title\":\"caf\u00e9 \u00fcber \u65e5\u672c\"}";
+        mServer.enqueue(new MockResponse().setHeader("Content-Type", "application/json")
+                                          .setBody(new Buffer().writeUtf8(body)));
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        PubnativeHttpRequest.Listener listener = mock(PubnativeHttpRequest.Listener.class);
+        request.mListener = listener;
+        request.mHandler = new Handler();
+        request.doRequest(mServer.url("/config").toString());
+        verify(listener).onPubnativeHttpRequestFinish(eq(request), eq(body));
+    }
+
+    @Test
+    public void doRequest_withContentLengthOverMaxSize_failsWithResponseTooLarge() {
+
+        mServer.enqueue(new MockResponse().setBody(repeatedBody()));
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        PubnativeHttpRequest.Listener listener = mock(PubnativeHttpRequest.Listener.class);
+        request.mListener = listener;
+        request.mHandler = new Handler();
+        request.setMaxResponseSize(100);
+        request.doRequest(mServer.url("/config").toString());
+        verify(listener).onPubnativeHttpRequestFail(eq(request), eq(PubnativeException.NETWORK_RESPONSE_TOO_LARGE));
+    }
+
+    @Test
+    public void doRequest_withChunkedBodyOverMaxSize_failsWithResponseTooLarge() {
+
+        mServer.enqueue(new MockResponse().setChunkedBody(repeatedBody(), 64));
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        PubnativeHttpRequest.Listener listener = mock(PubnativeHttpRequest.Listener.class);
+        request.mListener = listener;
+        request.mHandler = new Handler();
+        request.setMaxResponseSize(100);
+        request.doRequest(mServer.url("/config").toString());
+        verify(listener).onPubnativeHttpRequestFail(eq(request), eq(PubnativeException.NETWORK_RESPONSE_TOO_LARGE));
+    }
+
+    @Test
+    public void processStream_withContentLengthOverMaxSize_failsBeforeProcessing() throws Exception {
+
+        mServer.enqueue(new MockResponse().setBody(repeatedBody()));
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        PubnativeHttpRequest.Listener listener = mock(PubnativeHttpRequest.Listener.class);
+        PubnativeHttpRequest.StreamProcessor processor = mock(PubnativeHttpRequest.StreamProcessor.class);
+        request.mListener = listener;
+        request.mHandler = new Handler();
+        request.setMaxResponseSize(100);
+        request.setStreamProcessor(processor);
+        request.doRequest(mServer.url("/config").toString());
+        verify(processor, never()).onPubnativeHttpRequestStream(any(PubnativeHttpRequest.class), any(InputStream.class));
+        verify(listener).onPubnativeHttpRequestFail(eq(request), eq(PubnativeException.NETWORK_RESPONSE_TOO_LARGE));
+    }
+
+    @Test
+    public void processStream_withChunkedBodyOverMaxSize_failsWithResponseTooLarge() {
+
+        mServer.enqueue(new MockResponse().setChunkedBody(repeatedBody(), 64));
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        PubnativeHttpRequest.Listener listener = mock(PubnativeHttpRequest.Listener.class);
+        request.mListener = listener;
+        request.mHandler = new Handler();
+        request.setMaxResponseSize(100);
+        request.setStreamProcessor(new PubnativeHttpRequest.StreamProcessor() {
+
+            @Override
+            public void onPubnativeHttpRequestStream(PubnativeHttpRequest request, InputStream inputStream) throws Exception {
+
+                byte[] buffer = new byte[64];
+                while (inputStream.read(buffer) != -1) {
+                    // Consume the whole body
+                }
+            }
+        });
+        request.doRequest(mServer.url("/config").toString());
+        verify(listener).onPubnativeHttpRequestFail(eq(request), eq(PubnativeException.NETWORK_RESPONSE_TOO_LARGE));
+    }
+
+    @Test
+    public void bytesFromInputStream_withContentLength_returnsPreSizedBuffer() throws Exception {
+
+        byte[] body = repeatedBody().getBytes("UTF-8");
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        request.mResponseHeaders = new HashMap<String, List<String>>();
+        request.mResponseHeaders.put("Content-Length", Collections.singletonList(String.valueOf(body.length)));
+        PubnativeHttpRequest.ResponseBuffer buffer = request.readResponse(new ByteArrayInputStream(body));
+        // Exact size means the array is handed over without a copy
+        assertThat(buffer.getBytes()).isSameAs(buffer.getBytes());
+        assertThat(request.bytesFromInputStream(new ByteArrayInputStream(body))).isEqualTo(body);
+    }
+
+    @Test
+    public void bytesFromInputStream_withHugeContentLengthAndNoMaxSize_doesNotPreSizeToIt() throws Exception {
+
+        byte[] body = repeatedBody().getBytes("UTF-8");
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        request.setMaxResponseSize(0);
+        request.mResponseHeaders = new HashMap<String, List<String>>();
+        request.mResponseHeaders.put("Content-Length", Collections.singletonList(String.valueOf(Integer.MAX_VALUE - 1)));
+        // Trusting the header would try to allocate 2 GB before reading a byte
+        assertThat(request.bytesFromInputStream(new ByteArrayInputStream(body))).isEqualTo(body);
+        assertThat(PubnativeHttpRequest.getInitialBufferSize(Integer.MAX_VALUE - 1)).isEqualTo(PubnativeHttpRequest.MAX_INITIAL_BUFFER_SIZE);
+        assertThat(PubnativeHttpRequest.getInitialBufferSize(-1)).isEqualTo(PubnativeHttpRequest.MIN_BUFFER_SIZE);
+    }
+
+    @Test
+    public void bytesFromInputStream_withoutContentLength_returnsWholeBody() throws Exception {
+
+        byte[] body = repeatedBody().getBytes("UTF-8");
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        assertThat(request.bytesFromInputStream(new ByteArrayInputStream(body))).isEqualTo(body);
+    }
+
+    @Test
+    public void doRequest_withStalledServer_failsAfterReadTimeout() {
+
+        mServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        PubnativeHttpRequest.Listener listener = mock(PubnativeHttpRequest.Listener.class);
+        request.mListener = listener;
+        request.mHandler = new Handler();
+        request.setReadTimeout(200);
+        request.doRequest(mServer.url("/config").toString());
+        verify(listener).onPubnativeHttpRequestFail(eq(request), any(SocketTimeoutException.class));
+    }
+
+    @Test
+    public void doRequest_withStalledServerAndDeadline_failsWithDeadlineExceeded() {
+
+        mServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        PubnativeHttpRequest.Listener listener = mock(PubnativeHttpRequest.Listener.class);
+        request.mListener = listener;
+        request.mHandler = new Handler();
+        request.setReadTimeout(0);
+        request.setDeadline(300);
+        long start = System.currentTimeMillis();
+        request.doRequest(mServer.url("/config").toString());
+        assertThat(System.currentTimeMillis() - start).isLessThan(5000);
+        verify(listener).onPubnativeHttpRequestFail(eq(request), eq(PubnativeException.NETWORK_DEADLINE_EXCEEDED));
+    }
+
+    @Test
+    public void cancel_withStalledServer_unblocksWithoutCallbacks() throws Exception {
+
+        mServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        final PubnativeHttpRequest request = new PubnativeHttpRequest();
+        PubnativeHttpRequest.Listener listener = mock(PubnativeHttpRequest.Listener.class);
+        request.mListener = listener;
+        request.mHandler = new Handler();
+        request.setReadTimeout(0);
+        final String url = mServer.url("/config").toString();
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                request.doRequest(url);
+            }
+        });
+        thread.start();
+        // Wait until the server accepted the connection and stalls
+        mServer.takeRequest();
+        request.cancel();
+        thread.join(5000);
+        assertThat(thread.isAlive()).isFalse();
+        Robolectric.flushForegroundThreadScheduler();
+        verifyZeroInteractions(listener);
+    }
+
     @Test
     public void start_withNullContext_callbacksFail() {
 
@@ -0,0 +1,159 @@
+package net.pubnative.mediation.network;
+
+import net.pubnative.mediation.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class,
+        sdk = 21)
+public class PubnativeNetworkExecutorTest {
+
+    @Test
+    public void execute_withRunnable_runsInNamedPoolThread() throws Exception {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<String> threadName = new AtomicReference<String>();
+        boolean queued = PubnativeNetworkExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                threadName.set(Thread.currentThread().getName());
+                done.countDown();
+            }
+        });
+        assertThat(queued).isTrue();
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(threadName.get()).startsWith(PubnativeNetworkExecutor.THREAD_NAME_PREFIX);
+    }
+
+    @Test
+    public void execute_overQueueLimit_rejectsAndCounts() throws Exception {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Do nothing
+                }
+            }
+        };
+        long rejectedCount = PubnativeNetworkExecutor.getRejectedCount();
+        try {
+            // Fill every thread and every queue slot
+            for (int i = 0; i < PubnativeNetworkExecutor.MAX_POOL_SIZE + PubnativeNetworkExecutor.MAX_QUEUE_SIZE; i++) {
+                assertThat(PubnativeNetworkExecutor.execute(blocking)).isTrue();
+            }
+            assertThat(PubnativeNetworkExecutor.getPoolSize()).isEqualTo(PubnativeNetworkExecutor.MAX_POOL_SIZE);
+            assertThat(PubnativeNetworkExecutor.getQueueSize()).isEqualTo(PubnativeNetworkExecutor.MAX_QUEUE_SIZE);
+            assertThat(PubnativeNetworkExecutor.execute(blocking)).isFalse();
+            assertThat(PubnativeNetworkExecutor.getRejectedCount()).isEqualTo(rejectedCount + 1);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    protected Runnable blockingRunnable(final CountDownLatch release) {
+
+        return new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Do nothing
+                }
+            }
+        };
+    }
+
+    @Test
+    public void execute_withBusyPool_queuesHigherPriorityFirst() throws Exception {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < PubnativeNetworkExecutor.MAX_POOL_SIZE; i++) {
+                PubnativeNetworkExecutor.execute(PubnativeNetworkExecutor.Priority.ASSET, blockingRunnable(release));
+            }
+            PubnativeNetworkExecutor.execute(PubnativeNetworkExecutor.Priority.ANALYTICS, blockingRunnable(release));
+            PubnativeNetworkExecutor.execute(PubnativeNetworkExecutor.Priority.ASSET, blockingRunnable(release));
+            PubnativeNetworkExecutor.execute(PubnativeNetworkExecutor.Priority.CRITICAL, blockingRunnable(release));
+            PubnativeNetworkExecutor.PrioritizedTask head = (PubnativeNetworkExecutor.PrioritizedTask) PubnativeNetworkExecutor.getExecutor().getQueue().peek();
+            assertThat(head.mPriority).isEqualTo(PubnativeNetworkExecutor.Priority.CRITICAL);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void execute_analyticsWhileCriticalInFlight_isDeferredAndWaitIsMeasured() throws Exception {
+
+        final CountDownLatch releaseCritical = new CountDownLatch(1);
+        final CountDownLatch analyticsDone = new CountDownLatch(1);
+        long executedAnalytics = PubnativeNetworkExecutor.getExecutedCount(PubnativeNetworkExecutor.Priority.ANALYTICS);
+        try {
+            PubnativeNetworkExecutor.execute(PubnativeNetworkExecutor.Priority.CRITICAL, blockingRunnable(releaseCritical));
+            PubnativeNetworkExecutor.execute(PubnativeNetworkExecutor.Priority.ANALYTICS, new Runnable() {
+
+                @Override
+                public void run() {
+
+                    analyticsDone.countDown();
+                }
+            });
+            // Threads are free, but the beacon waits for the critical work
+            assertThat(analyticsDone.await(300, TimeUnit.MILLISECONDS)).isFalse();
+        } finally {
+            releaseCritical.countDown();
+        }
+        assertThat(analyticsDone.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(PubnativeNetworkExecutor.getExecutedCount(PubnativeNetworkExecutor.Priority.ANALYTICS)).isEqualTo(executedAnalytics + 1);
+        assertThat(PubnativeNetworkExecutor.getMaxQueueWait(PubnativeNetworkExecutor.Priority.ANALYTICS)).isGreaterThanOrEqualTo(300);
+    }
+
+    @Test
+    public void defer_withFullQueue_dropsAndCounts() throws Exception {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch analyticsDone = new CountDownLatch(1);
+        PubnativeNetworkExecutor.PrioritizedTask task = new PubnativeNetworkExecutor.PrioritizedTask(PubnativeNetworkExecutor.Priority.ANALYTICS, new Runnable() {
+
+            @Override
+            public void run() {
+
+                analyticsDone.countDown();
+            }
+        });
+        long rejectedCount = PubnativeNetworkExecutor.getRejectedCount();
+        try {
+            for (int i = 0; i < PubnativeNetworkExecutor.MAX_POOL_SIZE + PubnativeNetworkExecutor.MAX_QUEUE_SIZE; i++) {
+                assertThat(PubnativeNetworkExecutor.execute(blockingRunnable(release))).isTrue();
+            }
+            assertThat(task.defer()).isTrue();
+            Thread.sleep(PubnativeNetworkExecutor.DEFER_DELAY * 2);
+            // The deferred task respects the limit instead of growing the queue
+            assertThat(PubnativeNetworkExecutor.getQueueSize()).isEqualTo(PubnativeNetworkExecutor.MAX_QUEUE_SIZE);
+            assertThat(PubnativeNetworkExecutor.getRejectedCount()).isEqualTo(rejectedCount + 1);
+        } finally {
+            release.countDown();
+        }
+        assertThat(analyticsDone.await(PubnativeNetworkExecutor.DEFER_DELAY * 2, TimeUnit.MILLISECONDS)).isFalse();
+    }
+}
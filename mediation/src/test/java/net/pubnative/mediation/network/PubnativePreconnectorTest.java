@@ -0,0 +1,98 @@
+package net.pubnative.mediation.network;
+
+import android.content.Context;
+import android.os.Handler;
+
+import net.pubnative.mediation.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class,
+        sdk = 21)
+public class PubnativePreconnectorTest {
+
+    protected Context       mContext;
+    protected MockWebServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+
+        mContext = RuntimeEnvironment.application.getApplicationContext();
+        mServer = new MockWebServer();
+        mServer.start();
+        PubnativePreconnector.setEnabled(true);
+        PubnativePreconnector.reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        PubnativePreconnector.reset();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void preconnect_withRepeatedHost_warmsUpOnceAndConnectionIsReused() throws Exception {
+
+        mServer.enqueue(new MockResponse());
+        mServer.enqueue(new MockResponse().setBody("ok"));
+        int queued = PubnativePreconnector.preconnect(mContext, Arrays.asList(mServer.url("/beacon?event=impression").toString(),
+                                                                              mServer.url("/beacon?event=click").toString(),
+                                                                              "not an url",
+                                                                              null));
+        assertThat(queued).isEqualTo(1);
+        RecordedRequest warmUp = mServer.takeRequest(5, TimeUnit.SECONDS);
+        assertThat(warmUp.getMethod()).isEqualTo("HEAD");
+        assertThat(warmUp.getPath()).isEqualTo("/");
+        // Recently warmed hosts are skipped
+        assertThat(PubnativePreconnector.preconnect(mContext, Arrays.asList(mServer.url("/config").toString()))).isEqualTo(0);
+        // Wait for the warm up to give the connection back to the pool
+        Thread.sleep(200);
+        PubnativeHttpRequest request = new PubnativeHttpRequest();
+        request.mHandler = new Handler();
+        request.doRequest(mServer.url("/beacon").toString());
+        assertThat(mServer.takeRequest().getSequenceNumber()).isEqualTo(1);
+    }
+
+    @Test
+    public void preconnect_whenDisabled_doesNothing() {
+
+        PubnativePreconnector.setEnabled(false);
+        assertThat(PubnativePreconnector.preconnect(mContext, Arrays.asList(mServer.url("/config").toString()))).isEqualTo(0);
+        assertThat(mServer.getRequestCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void preconnect_withTransport_warmsUpThatTransport() throws Exception {
+
+        mServer.enqueue(new MockResponse());
+        mServer.enqueue(new MockResponse());
+        PubnativeHttpTransport transport = spy(new PubnativeUrlConnectionTransport());
+        String url = mServer.url("/beacon").toString();
+        assertThat(PubnativePreconnector.preconnect(mContext, Arrays.asList(url))).isEqualTo(1);
+        // Warming the default transport doesn't leave connections in this one
+        assertThat(PubnativePreconnector.preconnect(mContext, Arrays.asList(url), transport)).isEqualTo(1);
+        assertThat(PubnativePreconnector.preconnect(mContext, Arrays.asList(url), transport)).isEqualTo(0);
+        verify(transport, timeout(5000)).newCall(any(PubnativeHttpTransport.Request.class));
+    }
+}
@@ -0,0 +1,51 @@
+package net.pubnative.mediation.network;
+
+import net.pubnative.mediation.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class,
+        sdk = 21)
+public class PubnativeRetryPolicyTest {
+
+    @Test
+    public void getDelay_withAttempts_doublesWithJitterUpToMax() {
+
+        PubnativeRetryPolicy policy = new PubnativeRetryPolicy(10, 1000, 5000);
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            assertThat(policy.getDelay(1, random)).isBetween(500L, 1000L);
+            assertThat(policy.getDelay(2, random)).isBetween(1000L, 2000L);
+            assertThat(policy.getDelay(3, random)).isBetween(2000L, 4000L);
+            assertThat(policy.getDelay(9, random)).isBetween(2500L, 5000L);
+        }
+    }
+
+    @Test
+    public void shouldRetry_withConnectionErrorsAndServerErrors_retries() {
+
+        PubnativeRetryPolicy policy = new PubnativeRetryPolicy(3, 1000, 5000);
+        assertThat(policy.shouldRetry(1, new IOException(), 0)).isTrue();
+        assertThat(policy.shouldRetry(1, null, 500)).isTrue();
+        assertThat(policy.shouldRetry(2, null, 429)).isTrue();
+    }
+
+    @Test
+    public void shouldRetry_withClientErrorsOrNoAttemptsLeft_doesNotRetry() {
+
+        PubnativeRetryPolicy policy = new PubnativeRetryPolicy(3, 1000, 5000);
+        assertThat(policy.shouldRetry(1, null, 404)).isFalse();
+        assertThat(policy.shouldRetry(1, new IllegalArgumentException(), 0)).isFalse();
+        assertThat(policy.shouldRetry(3, new IOException(), 0)).isFalse();
+        assertThat(PubnativeRetryPolicy.NONE.shouldRetry(1, new IOException(), 0)).isFalse();
+    }
+}
@@ -0,0 +1,177 @@
+// The MIT License (MIT)
+//
+// Copyright (c) 2016 PubNative GmbH
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package net.pubnative.mediation.utils;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.content.BroadcastReceiver;
+import android.content.IntentFilter;
+import android.net.NetworkInfo;
+import android.os.Looper;
+
+import net.pubnative.mediation.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowConnectivityManager;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowNetworkInfo;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class,
+        sdk = 21)
+public class PubnativeConnectivityMonitorTest {
+
+    protected Context                   mContext;
+    protected ShadowConnectivityManager mConnectivityManager;
+
+    @Before
+    public void setUp() {
+
+        mContext = RuntimeEnvironment.application.getApplicationContext();
+        mConnectivityManager = Shadows.shadowOf((ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE));
+        setActiveNetwork(ConnectivityManager.TYPE_WIFI, true);
+    }
+
+    @After
+    public void tearDown() {
+
+        PubnativeConnectivityMonitor.stop();
+        PubnativeConnectivityMonitor.sListeners.clear();
+    }
+
+    protected void setActiveNetwork(int type, boolean connected) {
+
+        NetworkInfo.DetailedState state = connected ? NetworkInfo.DetailedState.CONNECTED : NetworkInfo.DetailedState.DISCONNECTED;
+        mConnectivityManager.setActiveNetworkInfo(ShadowNetworkInfo.newInstance(state, type, 0, connected, connected));
+    }
+
+    @Test
+    public void isNetworkAvailable_withConnectedWifi_returnsTrueAndWifi() {
+
+        assertThat(PubnativeConnectivityMonitor.isNetworkAvailable(mContext)).isTrue();
+        assertThat(PubnativeConnectivityMonitor.getConnectedNetworkType(mContext)).isEqualTo(ConnectivityManager.TYPE_WIFI);
+    }
+
+    @Test
+    public void isNetworkAvailable_withoutBroadcast_servesCachedState() {
+
+        PubnativeConnectivityMonitor.isNetworkAvailable(mContext);
+        setActiveNetwork(ConnectivityManager.TYPE_WIFI, false);
+        // Nothing changes until the system tells us
+        assertThat(PubnativeConnectivityMonitor.isNetworkAvailable(mContext)).isTrue();
+    }
+
+    @Test
+    public void isNetworkAvailable_afterConnectivityBroadcast_updatesState() {
+
+        PubnativeConnectivityMonitor.isNetworkAvailable(mContext);
+        setActiveNetwork(ConnectivityManager.TYPE_WIFI, false);
+        mContext.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        assertThat(PubnativeConnectivityMonitor.isNetworkAvailable(mContext)).isFalse();
+        assertThat(PubnativeConnectivityMonitor.getConnectedNetworkType(mContext)).isEqualTo(PubnativeConnectivityMonitor.TYPE_NONE);
+
+        setActiveNetwork(ConnectivityManager.TYPE_MOBILE, true);
+        mContext.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        assertThat(PubnativeConnectivityMonitor.isNetworkAvailable(mContext)).isTrue();
+        assertThat(PubnativeConnectivityMonitor.getConnectedNetworkType(mContext)).isEqualTo(ConnectivityManager.TYPE_MOBILE);
+    }
+
+    @Test
+    public void addListener_afterReconnect_isCalledOnce() {
+
+        PubnativeConnectivityMonitor.Listener listener = mock(PubnativeConnectivityMonitor.Listener.class);
+        PubnativeConnectivityMonitor.addListener(mContext, listener);
+        setActiveNetwork(ConnectivityManager.TYPE_WIFI, false);
+        mContext.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        setActiveNetwork(ConnectivityManager.TYPE_WIFI, true);
+        mContext.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        // Still connected, nothing new to tell
+        mContext.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        ShadowLooper.runUiThreadTasks();
+        verify(listener, times(1)).onPubnativeNetworkAvailable();
+    }
+
+    @Test
+    public void addListener_withUpdateInBackgroundThread_isCalledInMainThread() throws Exception {
+
+        final AtomicReference<Thread> callbackThread = new AtomicReference<Thread>();
+        PubnativeConnectivityMonitor.Listener listener = new PubnativeConnectivityMonitor.Listener() {
+
+            @Override
+            public void onPubnativeNetworkAvailable() {
+
+                callbackThread.set(Thread.currentThread());
+            }
+        };
+        setActiveNetwork(ConnectivityManager.TYPE_WIFI, false);
+        PubnativeConnectivityMonitor.addListener(mContext, listener);
+        setActiveNetwork(ConnectivityManager.TYPE_WIFI, true);
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                PubnativeConnectivityMonitor.update(mContext);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertThat(callbackThread.get()).isNull();
+        ShadowLooper.runUiThreadTasks();
+        assertThat(callbackThread.get()).isEqualTo(Looper.getMainLooper().getThread());
+    }
+
+    @Test
+    public void isNetworkAvailable_withRegisterFailure_registersOnceAndReadsStateEveryTime() {
+
+        Context context = mock(Context.class);
+        when(context.getApplicationContext()).thenReturn(context);
+        when(context.getSystemService(Context.CONNECTIVITY_SERVICE)).thenReturn(mContext.getSystemService(Context.CONNECTIVITY_SERVICE));
+        doThrow(new SecurityException()).when(context).registerReceiver(any(BroadcastReceiver.class), any(IntentFilter.class));
+
+        assertThat(PubnativeConnectivityMonitor.isNetworkAvailable(context)).isTrue();
+        setActiveNetwork(ConnectivityManager.TYPE_WIFI, false);
+        // No broadcasts will come, so the state is read again
+        assertThat(PubnativeConnectivityMonitor.isNetworkAvailable(context)).isFalse();
+        verify(context, times(1)).registerReceiver(any(BroadcastReceiver.class), any(IntentFilter.class));
+    }
+}